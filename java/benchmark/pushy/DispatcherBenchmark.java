@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2013 Andrew Wilkins <axwalk@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package pushy;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import pushy.internal.Callable;
+import pushy.internal.Connection;
+
+/**
+ * Compares the throughput of the default message receiving scheme, in which
+ * waiting threads take turns reading from the connection, with dispatcher
+ * mode, in which a dedicated reader thread demultiplexes messages.
+ *
+ * Each caller repeatedly calls a local object through the peer, which calls
+ * back into this process, so every request involves a nested request.
+ *
+ * Usage: DispatcherBenchmark [seconds [callers...]]
+ */
+public class DispatcherBenchmark
+{
+    private static final int SERVE_THREADS =
+        Integer.getInteger("serve.threads", 16).intValue();
+
+    public static void main(String[] args) throws Exception
+    {
+        int seconds = 5;
+        int[] callers = new int[]{1, 8, 64, 512};
+        if (args.length > 0)
+            seconds = Integer.parseInt(args[0]);
+        if (args.length > 1)
+        {
+            callers = new int[args.length - 1];
+            for (int i = 1; i < args.length; ++i)
+                callers[i - 1] = Integer.parseInt(args[i]);
+        }
+
+        System.out.println("callers\tdefault (req/s)\tdispatcher (req/s)");
+        for (int i = 0; i < callers.length; ++i)
+        {
+            double shared = run(false, callers[i], seconds);
+            double dispatcher = run(true, callers[i], seconds);
+            System.out.println(
+                callers[i] + "\t" + (long)shared + "\t" + (long)dispatcher);
+        }
+    }
+
+    /**
+     * Run the benchmark, returning the number of requests per second.
+     */
+    private static double
+    run(boolean dispatcher, int callers, int seconds) throws Exception
+    {
+        Socket[] sockets = new Socket[2];
+        ServerSocket server = new ServerSocket(0);
+        try
+        {
+            sockets[0] = new Socket("localhost", server.getLocalPort());
+            sockets[1] = server.accept();
+        }
+        finally
+        {
+            server.close();
+        }
+        sockets[0].setTcpNoDelay(true);
+        sockets[1].setTcpNoDelay(true);
+
+        final Connection local = new Connection(
+            sockets[0].getInputStream(), sockets[0].getOutputStream());
+        final Connection peer = new Connection(
+            sockets[1].getInputStream(), sockets[1].getOutputStream());
+
+        // The same object is passed in every request, so don't measure the
+        // cost of repeatedly releasing and re-exporting it.
+        local.setGCEnabled(false);
+        peer.setGCEnabled(false);
+
+        ExecutorService executor = null;
+        if (dispatcher)
+        {
+            executor = Executors.newFixedThreadPool(SERVE_THREADS);
+            local.startReader(null);
+            peer.startReader(executor);
+        }
+        else
+        {
+            for (int i = 0; i < SERVE_THREADS; ++i)
+            {
+                Thread thread = new Thread()
+                {
+                    public void run()
+                    {
+                        peer.serve();
+                    }
+                };
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        final Callable identity = new Callable()
+        {
+            public Object call(Object[] args, Map kwargs)
+            {
+                return args[0];
+            }
+        };
+        final Object[] callArgs = new Object[]{"value"};
+
+        // Warm up, then count requests completed within the time limit.
+        final long[] counts = new long[callers];
+        final boolean[] running = new boolean[]{true};
+        Thread[] threads = new Thread[callers];
+        for (int i = 0; i < callers; ++i)
+        {
+            final int index = i;
+            threads[i] = new Thread()
+            {
+                public void run()
+                {
+                    while (running[0])
+                    {
+                        local.call(identity, callArgs, null);
+                        ++counts[index];
+                    }
+                }
+            };
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+
+        Thread.sleep(1000);
+        long start = sum(counts);
+        long startNanos = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        long end = sum(counts);
+        long endNanos = System.nanoTime();
+
+        running[0] = false;
+        for (int i = 0; i < callers; ++i)
+            threads[i].join();
+        sockets[0].close();
+        sockets[1].close();
+        if (executor != null)
+            executor.shutdown();
+
+        return (end - start) * 1e9 / (endNanos - startNanos);
+    }
+
+    private static long sum(long[] counts)
+    {
+        long total = 0;
+        for (int i = 0; i < counts.length; ++i)
+            total += counts[i];
+        return total;
+    }
+}
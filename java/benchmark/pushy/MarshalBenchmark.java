@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2013 Andrew Wilkins <axwalk@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package pushy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+
+import pushy.internal.Connection;
+
+/**
+ * Measures the number of bytes allocated by a thread to marshal and send a
+ * request. Requests are sent asynchronously to a stream that discards them,
+ * so the figures cover only the sending side: building the request,
+ * marshalling its arguments and framing the message.
+ *
+ * Allocation is measured with com.sun.management.ThreadMXBean, which is
+ * looked up reflectively.
+ *
+ * Usage: MarshalBenchmark [requests]
+ */
+public class MarshalBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        int requests = 1000000;
+        if (args.length > 0)
+            requests = Integer.parseInt(args[0]);
+
+        Connection connection =
+            new Connection(new IdleInputStream(), new NullOutputStream());
+        Object[] callArgs = new Object[]{
+            "a string argument", new Integer(42), new Long(1L << 40),
+            new int[]{1, 2, 3, 4, 5, 6, 7, 8}, Boolean.TRUE};
+
+        // Warm up, then measure.
+        run(connection, callArgs, requests);
+        long bytes = getAllocatedBytes();
+        long startNanos = System.nanoTime();
+        run(connection, callArgs, requests);
+        long endNanos = System.nanoTime();
+        bytes = getAllocatedBytes() - bytes;
+
+        System.out.println("requests\tbytes/request\tns/request");
+        System.out.println(
+            requests + "\t" + (bytes / requests) + "\t" +
+            ((endNanos - startNanos) / requests));
+    }
+
+    private static void
+    run(Connection connection, Object[] callArgs, int requests)
+    {
+        for (int i = 0; i < requests; ++i)
+            connection.callAsync("target", callArgs, null);
+    }
+
+    private static long getAllocatedBytes() throws Exception
+    {
+        Object bean = ManagementFactory.getThreadMXBean();
+        Class class_ = Class.forName("com.sun.management.ThreadMXBean");
+        Method method = class_.getMethod(
+            "getThreadAllocatedBytes", new Class[]{Long.TYPE});
+        Long bytes = (Long)method.invoke(
+            bean, new Object[]{new Long(Thread.currentThread().getId())});
+        return bytes.longValue();
+    }
+
+    /**
+     * An input stream that never yields any data.
+     */
+    private static class IdleInputStream extends InputStream
+    {
+        public synchronized int read() throws IOException
+        {
+            try
+            {
+                wait();
+            }
+            catch (InterruptedException e)
+            {
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * An output stream that discards everything written to it.
+     */
+    private static class NullOutputStream extends OutputStream
+    {
+        public void write(int b)
+        {
+        }
+
+        public void write(byte[] b, int off, int len)
+        {
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2013 Andrew Wilkins <axwalk@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package pushy;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+
+import pushy.internal.ProxyTable;
+
+/**
+ * Compares the throughput of resolving proxies by ID from many threads at
+ * once, using a single lock around a HashMap of weak references (as proxies
+ * were previously stored) and using the striped ProxyTable.
+ *
+ * Each thread repeatedly resolves a random ID from a shared working set,
+ * creating and storing a proxy if the ID is not yet mapped, as happens when
+ * the peer's objects are unmarshalled.
+ *
+ * Usage: ProxyContentionBenchmark [seconds [threads...]]
+ */
+public class ProxyContentionBenchmark
+{
+    private static final int WORKING_SET = 10000;
+
+    public static void main(String[] args) throws Exception
+    {
+        int seconds = 3;
+        int[] threads = new int[]{1, 2, 4, 8, 16, 32};
+        if (args.length > 0)
+            seconds = Integer.parseInt(args[0]);
+        if (args.length > 1)
+        {
+            threads = new int[args.length - 1];
+            for (int i = 1; i < args.length; ++i)
+                threads[i - 1] = Integer.parseInt(args[i]);
+        }
+
+        System.out.println("threads\tlocked map (ops/s)\tProxyTable (ops/s)");
+        for (int i = 0; i < threads.length; ++i)
+        {
+            double locked = run(new LockedMapResolver(), threads[i], seconds);
+            double striped = run(new TableResolver(), threads[i], seconds);
+            System.out.println(
+                threads[i] + "\t" + (long)locked + "\t" + (long)striped);
+        }
+    }
+
+    /**
+     * Resolves an ID to a proxy, creating it if necessary.
+     */
+    private static interface Resolver
+    {
+        public Object resolve(long id);
+    }
+
+    private static class LockedMapResolver implements Resolver
+    {
+        private Map proxies = new HashMap();
+
+        public Object resolve(long id)
+        {
+            Long key = new Long(id);
+            synchronized (proxies)
+            {
+                WeakReference ref = (WeakReference)proxies.get(key);
+                Object proxy = ref == null ? null : ref.get();
+                if (proxy == null)
+                {
+                    proxy = new Object();
+                    proxies.put(key, new WeakReference(proxy));
+                }
+                return proxy;
+            }
+        }
+    }
+
+    private static class TableResolver implements Resolver
+    {
+        private ProxyTable proxies = new ProxyTable();
+
+        public Object resolve(long id)
+        {
+            synchronized (proxies.getLock(id))
+            {
+                WeakReference ref = (WeakReference)proxies.get(id);
+                Object proxy = ref == null ? null : ref.get();
+                if (proxy == null)
+                {
+                    proxy = new Object();
+                    proxies.put(id, new WeakReference(proxy));
+                }
+                return proxy;
+            }
+        }
+    }
+
+    /**
+     * Run the benchmark, returning the number of resolutions per second.
+     */
+    private static double
+    run(final Resolver resolver, int threads, int seconds) throws Exception
+    {
+        // Python object IDs are addresses, aligned to 16 bytes.
+        final long[] ids = new long[WORKING_SET];
+        for (int i = 0; i < ids.length; ++i)
+            ids[i] = 0x7f0000000000L + ((long)i << 4);
+
+        final long deadline =
+            System.currentTimeMillis() + seconds * 1000L;
+        final long[] counts = new long[threads];
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; ++i)
+        {
+            final int index = i;
+            workers[i] = new Thread()
+            {
+                public void run()
+                {
+                    // A thread-local xorshift generator, to avoid contending
+                    // on a shared Random.
+                    int seed = index * 0x9e3779b9 + 1;
+                    long count = 0;
+                    while ((count & 0x3ff) != 0 ||
+                           System.currentTimeMillis() < deadline)
+                    {
+                        seed ^= seed << 13;
+                        seed ^= seed >>> 17;
+                        seed ^= seed << 5;
+                        int n = (seed & 0x7fffffff) % ids.length;
+                        resolver.resolve(ids[n]);
+                        ++count;
+                    }
+                    counts[index] = count;
+                }
+            };
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; ++i)
+            workers[i].start();
+        long total = 0;
+        for (int i = 0; i < threads; ++i)
+        {
+            workers[i].join();
+            total += counts[i];
+        }
+        return total / ((System.nanoTime() - start) / 1e9);
+    }
+}
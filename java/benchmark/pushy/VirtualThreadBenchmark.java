@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2013 Andrew Wilkins <axwalk@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package pushy;
+
+import java.lang.reflect.Method;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import pushy.internal.Callable;
+import pushy.internal.Connection;
+
+/**
+ * Measures remote call throughput with many virtual threads sharing a single
+ * connection in dispatcher mode. Virtual threads were introduced in Java 21,
+ * so they are created reflectively, and this benchmark must be run on a Java
+ * 21 or later runtime.
+ *
+ * For comparison, the same number of calls is also made from a fixed pool of
+ * platform threads, with requests from the peer handled by a cached pool of
+ * platform threads.
+ *
+ * Usage: VirtualThreadBenchmark [threads [calls per thread [pool size]]]
+ */
+public class VirtualThreadBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        int threads = 10000;
+        int calls = 10;
+        int poolSize = 64;
+        if (args.length > 0)
+            threads = Integer.parseInt(args[0]);
+        if (args.length > 1)
+            calls = Integer.parseInt(args[1]);
+        if (args.length > 2)
+            poolSize = Integer.parseInt(args[2]);
+
+        ExecutorService virtual;
+        try
+        {
+            Method method = Executors.class.getMethod(
+                "newVirtualThreadPerTaskExecutor", new Class[0]);
+            virtual = (ExecutorService)method.invoke(null, new Object[0]);
+        }
+        catch (NoSuchMethodException e)
+        {
+            System.err.println("Virtual threads require Java 21 or later");
+            return;
+        }
+
+        // Warm up.
+        run(virtual, virtual, 100, calls);
+
+        double rate = run(virtual, virtual, threads, calls);
+        System.out.println(threads + " virtual threads: " +
+                           (long)rate + " calls/s");
+
+        ExecutorService pool = Executors.newFixedThreadPool(poolSize);
+        ExecutorService handlers = Executors.newCachedThreadPool();
+        rate = run(pool, handlers, threads, calls);
+        System.out.println(poolSize + " platform threads: " +
+                           (long)rate + " calls/s");
+
+        pool.shutdown();
+        handlers.shutdown();
+        virtual.shutdown();
+    }
+
+    /**
+     * Run the specified number of tasks, each making a number of calls, on
+     * the executor, with requests from the peer handled by another executor.
+     * Returns the number of calls per second.
+     */
+    private static double
+    run(ExecutorService executor, ExecutorService handlers, int tasks,
+        final int calls) throws Exception
+    {
+        Socket[] sockets = new Socket[2];
+        ServerSocket server = new ServerSocket(0);
+        try
+        {
+            sockets[0] = new Socket("localhost", server.getLocalPort());
+            sockets[1] = server.accept();
+        }
+        finally
+        {
+            server.close();
+        }
+        sockets[0].setTcpNoDelay(true);
+        sockets[1].setTcpNoDelay(true);
+
+        final Connection local = new Connection(
+            sockets[0].getInputStream(), sockets[0].getOutputStream());
+        Connection peer = new Connection(
+            sockets[1].getInputStream(), sockets[1].getOutputStream());
+        local.startReader(handlers);
+        peer.startReader(handlers);
+
+        final Callable identity = new Callable()
+        {
+            public Object call(Object[] args, Map kwargs)
+            {
+                return args[0];
+            }
+        };
+        final Object[] callArgs = new Object[]{"value"};
+
+        final CountDownLatch done = new CountDownLatch(tasks);
+        final AtomicInteger failures = new AtomicInteger();
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < tasks; ++i)
+        {
+            executor.execute(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        for (int j = 0; j < calls; ++j)
+                            local.call(identity, callArgs, null);
+                    }
+                    catch (RuntimeException e)
+                    {
+                        failures.incrementAndGet();
+                    }
+                    finally
+                    {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        done.await();
+        long endNanos = System.nanoTime();
+
+        sockets[0].close();
+        sockets[1].close();
+        if (failures.get() > 0)
+            throw new RuntimeException(failures.get() + " tasks failed");
+        return (double)tasks * calls * 1e9 / (endNanos - startNanos);
+    }
+}
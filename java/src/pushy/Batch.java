@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2009, 2011 Andrew Wilkins <axwalk@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package pushy;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A Batch records a sequence of operations on remote objects, and executes
+ * them in the remote process with a single request. Each operation returns
+ * a {@link Batch.Step}, which may be used as the target or an argument of
+ * later operations to refer to its result.
+ *
+ * The operations are executed in order, and if one raises an exception,
+ * the rest are abandoned and the exception is thrown by {@link #execute}.
+ * Steps are only substituted where they are passed directly as a target,
+ * key or argument, not when nested within other objects.
+ *
+ * Batches are created by {@link Client#batch()}, and are not thread safe.
+ */
+public class Batch
+{
+    /**
+     * A reference to the result of an operation in a batch.
+     */
+    public static final class Step
+    {
+        private final Batch batch;
+        private final int index;
+
+        private Step(Batch batch, int index)
+        {
+            this.batch = batch;
+            this.index = index;
+        }
+
+        /**
+         * Get the result of the operation, once the batch has been
+         * executed.
+         */
+        public Object get()
+        {
+            if (batch.results == null)
+                throw new IllegalStateException("Batch not yet executed");
+            return batch.results[index];
+        }
+    }
+
+    private final Client client;
+    private final List operations = new ArrayList();
+    private Object[] results;
+
+    Batch(Client client)
+    {
+        this.client = client;
+    }
+
+    /**
+     * Evaluate an expression.
+     */
+    public Step evaluate(String expression)
+    {
+        return add("evaluate", new Object[]{expression}, null);
+    }
+
+    /**
+     * Import a module, as with {@link Client#getModule}, but returning the
+     * module object itself.
+     */
+    public Step importModule(String name)
+    {
+        Step module = evaluate("__import__('" + name + "')");
+        String[] parts = name.split("\\.");
+        for (int i = 1; i < parts.length; ++i)
+            module = getattr(module, parts[i]);
+        return module;
+    }
+
+    /**
+     * Get an attribute of an object.
+     */
+    public Step getattr(Object object, String name)
+    {
+        return add("getattr", new Object[]{object, name}, null);
+    }
+
+    /**
+     * Get an item of an object, as with object[key].
+     */
+    public Step getitem(Object object, Object key)
+    {
+        return add("getitem", new Object[]{object, key}, null);
+    }
+
+    /**
+     * Call an object with positional arguments.
+     */
+    public Step call(Object object, Object[] args)
+    {
+        return call(object, args, null);
+    }
+
+    /**
+     * Call an object with positional and keyword arguments.
+     */
+    public Step call(Object object, Object[] args, Map kwargs)
+    {
+        int nargs = args == null ? 0 : args.length;
+        int nkwargs = kwargs == null ? 0 : kwargs.size();
+        Object[] operands = new Object[1 + nargs + nkwargs];
+        String[] kwnames = new String[nkwargs];
+        operands[0] = object;
+        if (nargs > 0)
+            System.arraycopy(args, 0, operands, 1, nargs);
+        if (nkwargs > 0)
+        {
+            Iterator iter = kwargs.entrySet().iterator();
+            for (int i = 0; iter.hasNext(); ++i)
+            {
+                Map.Entry entry = (Map.Entry)iter.next();
+                kwnames[i] = (String)entry.getKey();
+                operands[1 + nargs + i] = entry.getValue();
+            }
+        }
+        return add("call", operands, kwnames);
+    }
+
+    /**
+     * Get the method of an object with the given name, and call it with
+     * positional arguments.
+     */
+    public Step callMethod(Object object, String name, Object[] args)
+    {
+        return call(getattr(object, name), args);
+    }
+
+    /**
+     * Execute the batch's operations in the remote process.
+     *
+     * @return The results of the operations, in the order they were added.
+     */
+    public Object[] execute()
+    {
+        if (results != null)
+            throw new IllegalStateException("Batch already executed");
+        results = client.compound(operations.toArray());
+        return results;
+    }
+
+    // Record an operation, replacing references to earlier steps in its
+    // operands with their indices.
+    private Step add(String kind, Object[] operands, String[] kwnames)
+    {
+        if (results != null)
+            throw new IllegalStateException("Batch already executed");
+
+        int nrefs = 0;
+        int[] refs = new int[operands.length];
+        for (int i = 0; i < operands.length; ++i)
+        {
+            if (operands[i] instanceof Step)
+            {
+                Step step = (Step)operands[i];
+                if (step.batch != this)
+                {
+                    throw new IllegalArgumentException(
+                        "Step belongs to another batch");
+                }
+                operands[i] = new Integer(step.index);
+                refs[nrefs++] = i;
+            }
+        }
+        int[] trimmed = new int[nrefs];
+        System.arraycopy(refs, 0, trimmed, 0, nrefs);
+
+        operations.add(new Object[]{
+            kind, operands, trimmed, kwnames == null ? new String[0] : kwnames
+        });
+        return new Step(this, operations.size() - 1);
+    }
+}
@@ -25,22 +25,32 @@
 
 package pushy;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.Reader;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.JarURLConnection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Properties;
 
 import pushy.modules.ModuleFactory;
+import pushy.internal.Bootstrap;
+import pushy.internal.ChannelInputStream;
+import pushy.internal.ChannelOutputStream;
 import pushy.internal.Connection;
+import pushy.transport.ProcessTransport;
+import pushy.transport.SocketTransport;
+import pushy.transport.Transport;
 
 /**
  * The Client class manages a Pushy connection, and provides the methods to
@@ -81,15 +91,17 @@ public class Client
         return null;
     }
 
-    private Process pushyServer;
+    // The default port of a Pushy daemon, as in pushy/server.py.
+    private static final int DEFAULT_DAEMON_PORT = 10101;
+
+    private volatile Transport transport;
+    private boolean local;
     private Connection connection;
     private PushyObject remoteConnection;
-    private PushyObject remoteEvaluate;
-    private PushyObject remotePutfile;
-    private PushyObject remoteGetfile;
-    private PushyObject remoteClose;
     private Map modules = new HashMap();
     private RemoteSystem system;
+    private Map startupTimes = new LinkedHashMap();
+    private boolean remoteStartupTimesAdded = false;
 
     /**
      * Create a Pushy connection, with the specified address.
@@ -101,10 +113,37 @@ public class Client
         this(address, null);
     }
 
+    /**
+     * Create a Pushy connection over the specified transport, to a Pushy
+     * server (see pushy/server.py) which is ready to serve a connection.
+     * Closing the client closes the transport.
+     */
+    public Client(Transport transport)
+    {
+        this.transport = transport;
+        connection = new Connection(getInputStream(transport),
+                                    getOutputStream(transport));
+    }
+
     /**
      * Create a Pushy connection, with the specified address and a map of
      * arbitrary keyword arguments.
      *
+     * If the address is an "ssh:" address, and the "direct" property is
+     * true, the connection is made by running the system's ssh command
+     * directly, rather than through a local Python process. The properties
+     * "username", "port", "python" (the remote Python command) and "ssh"
+     * (the local ssh command) are supported in this case.
+     *
+     * A "daemon:" address is connected to directly over a socket, without
+     * a local Python process. The "port" property specifies the port the
+     * daemon is listening on, which defaults to 10101.
+     *
+     * A "unix:" address is connected to directly over the Unix domain
+     * socket at the path following the colon, such as one created by
+     * running pushy.server with "unix:&lt;path&gt;" as its port. This requires
+     * Java 16 or later.
+     *
      * @param address The Pushy address to connect with.
      * @param properties Keyword arguments to pass to 'pushy.connect'.
      */
@@ -116,6 +155,31 @@ public class Client
         else
             address = address.trim();
 
+        // Connect directly to a Pushy daemon, without a local process.
+        // Daemons on the same host may be connected to over a Unix domain
+        // socket, which has lower latency than TCP over loopback.
+        long phaseStart = System.currentTimeMillis();
+        if (address.startsWith("daemon:"))
+        {
+            transport = SocketTransport.connect(
+                address.substring(7), getDaemonPort(properties));
+            connection = new Connection(getInputStream(transport),
+                                        getOutputStream(transport));
+            endPhase("connect", phaseStart);
+            return;
+        }
+        if (address.startsWith("unix:"))
+        {
+            if (properties != null && !properties.isEmpty())
+                throw new IllegalArgumentException(
+                    "Unix domain socket connections take no properties");
+            transport = SocketTransport.connectUnix(address.substring(5));
+            connection = new Connection(getInputStream(transport),
+                                        getOutputStream(transport));
+            endPhase("connect", phaseStart);
+            return;
+        }
+
         String pushyLoaderProgram =
             "import sys;" +
             "sys.path.insert(0, sys.argv[1]);" +
@@ -123,35 +187,55 @@ public class Client
             "pushy.server.serve_forever(sys.stdin, sys.stdout)";
 
         // Start XML-RPC server process.
-        String[] args =
-            new String[]{"python", "-u", "-c", pushyLoaderProgram, jarPath};
-        pushyServer = Runtime.getRuntime().exec(args);
+        local = address.equals("local:");
+        Bootstrap bootstrap = null;
+        String[] args;
+        if (address.startsWith("ssh:") && properties != null &&
+            Boolean.TRUE.equals(properties.get("direct")))
+        {
+            bootstrap = Bootstrap.getInstance();
+            args = getSshCommand(address.substring(4), properties,
+                                 bootstrap.getProgram());
+        }
+        else
+        {
+            args = new String[]{
+                "python", "-u", "-c", pushyLoaderProgram, jarPath};
+        }
+        ProcessTransport processTransport = ProcessTransport.exec(args);
+        Process pushyServer = processTransport.getProcess();
+        transport = processTransport;
+        phaseStart = endPhase("spawn", phaseStart);
 
         try
         {
+            InputStream istream = getInputStream(transport);
+            OutputStream ostream = getOutputStream(transport);
+
+            // Send the Pushy package to a directly connected remote process.
+            if (bootstrap != null)
+            {
+                boolean cached = bootstrap.start(istream, ostream);
+                phaseStart = endPhase(
+                    cached ? "bootstrap (cached)" : "bootstrap", phaseStart);
+            }
+
             // Create the connection.
-            connection = new Connection(pushyServer.getInputStream(),
-                                        pushyServer.getOutputStream());
+            connection = new Connection(istream, ostream);
 
             // If the address is non-local, create a tunnelled connection.
-            if (!address.equals("local:"))
+            if (!local && bootstrap == null)
             {
+                // The remote connection's methods are called by path,
+                // rather than looked up first, to save a round trip each.
                 PushyObject pushyModule =
                     (PushyObject)connection.evaluate(
                         "__import__('pushy')", null, null);
-                PushyObject connectMethod =
-                    (PushyObject)pushyModule.__getattr__("connect");
+                phaseStart = endPhase("start", phaseStart);
                 remoteConnection =
-                    (PushyObject)connectMethod.__call__(
-                        new Object[]{address}, properties);
-                remoteEvaluate =
-                    (PushyObject)remoteConnection.__getattr__("eval");
-                remotePutfile =
-                    (PushyObject)remoteConnection.__getattr__("putfile");
-                remoteGetfile =
-                    (PushyObject)remoteConnection.__getattr__("getfile");
-                remoteClose =
-                    (PushyObject)remoteConnection.__getattr__("close");
+                    (PushyObject)pushyModule.__callpath__(
+                        "connect", new Object[]{address}, properties);
+                endPhase("connect", phaseStart);
             }
         }
         catch (Throwable e)
@@ -174,12 +258,131 @@ public class Client
             {
                 e2.printStackTrace();
             }
-            pushyServer.destroy();
+            try
+            {
+                transport.close();
+            }
+            catch (IOException e2) {}
             throw new RuntimeException(e);
         }
         pushyServer.getErrorStream().close();
     }
 
+    // Get the port of a Pushy daemon from the connection properties.
+    private static int getDaemonPort(Map properties)
+    {
+        int port = DEFAULT_DAEMON_PORT;
+        if (properties != null)
+        {
+            for (java.util.Iterator iter = properties.entrySet().iterator();
+                 iter.hasNext();)
+            {
+                Map.Entry entry = (Map.Entry)iter.next();
+                if (entry.getKey().equals("port"))
+                    port = Integer.parseInt(entry.getValue().toString());
+                else
+                    throw new IllegalArgumentException(
+                        "Unsupported property for daemon connections: " +
+                        entry.getKey());
+            }
+        }
+        return port;
+    }
+
+    // Streams for a connection over a transport. Messages are read in two
+    // parts, header and payload, so reads are buffered; the connection
+    // buffers writes itself.
+    private static InputStream getInputStream(Transport transport)
+    {
+        return new BufferedInputStream(
+            new ChannelInputStream(transport.getReadChannel()));
+    }
+
+    private static OutputStream getOutputStream(Transport transport)
+    {
+        return new ChannelOutputStream(transport.getWriteChannel());
+    }
+
+    // Get the command for running the Pushy server on a remote host with
+    // the system's ssh command.
+    private static String[]
+    getSshCommand(String host, Map properties, String program)
+    {
+        String ssh = "ssh";
+        String python = "python";
+        java.util.List command = new java.util.ArrayList();
+        for (java.util.Iterator iter = properties.entrySet().iterator();
+             iter.hasNext();)
+        {
+            Map.Entry entry = (Map.Entry)iter.next();
+            String key = (String)entry.getKey();
+            if (key.equals("ssh"))
+                ssh = (String)entry.getValue();
+            else if (key.equals("python"))
+                python = (String)entry.getValue();
+            else if (key.equals("username"))
+                host = entry.getValue() + "@" + host;
+            else if (key.equals("port"))
+                command.add("-p" + entry.getValue());
+            else if (!key.equals("direct"))
+                throw new IllegalArgumentException(
+                    "Unsupported property for direct SSH connections: " +
+                    key);
+        }
+
+        // The remote command is interpreted by the remote user's shell; the
+        // program contains no quotes, so double quotes protect it.
+        command.add(0, ssh);
+        command.add("-T");
+        command.add("-oBatchMode=yes");
+        command.add(host);
+        command.add(python + " -u -c \"" + program + "\"");
+        return (String[])command.toArray(new String[command.size()]);
+    }
+
+    // Record the time taken by a phase of starting the connection, returning
+    // the start time of the next phase.
+    private long endPhase(String phase, long phaseStart)
+    {
+        long now = System.currentTimeMillis();
+        startupTimes.put(phase, new Long(now - phaseStart));
+        return now;
+    }
+
+    /**
+     * Get the time taken by each phase of starting the connection, in
+     * milliseconds, keyed by phase name in the order they occurred.
+     *
+     * For daemon and Unix domain socket connections, the only phase is
+     * "connect". Otherwise, the phases are "spawn", starting the local
+     * Python process (or ssh, for a direct SSH connection, followed by
+     * "bootstrap" or "bootstrap (cached)", sending the Pushy package to the
+     * remote process), and for tunnelled connections to a remote address,
+     * "start", waiting for the local process to be ready, and "connect",
+     * connecting to the remote address. The latter is broken down further
+     * by phases recorded by the local process, prefixed with "remote.":
+     * "remote.spawn", "remote.bootstrap" (or "remote.bootstrap (cached)" if
+     * the remote process had the Pushy packages cached), and
+     * "remote.connect".
+     */
+    public synchronized Map getStartupTimes()
+    {
+        if (remoteConnection != null && !remoteStartupTimesAdded)
+        {
+            Object[] timings = Connection.toObjectArray(
+                remoteConnection.__getattr__("timings"));
+            for (int i = 0; i < timings.length; ++i)
+            {
+                Object[] timing = Connection.toObjectArray(timings[i]);
+                long millis =
+                    (long)(((Number)timing[1]).doubleValue() * 1000);
+                startupTimes.put("remote." + timing[0], new Long(millis));
+            }
+            remoteStartupTimesAdded = true;
+        }
+        return Collections.unmodifiableMap(new LinkedHashMap(startupTimes));
+    }
+
     protected void finalize()
     {
         close();
@@ -193,27 +396,35 @@ public class Client
      */
     public void close()
     {
-        if (pushyServer != null)
+        if (transport != null)
         {
             synchronized (this)
             {
-                if (pushyServer != null)
+                if (transport != null)
                 {
                     try
                     {
-                        if (remoteClose != null)
-                            remoteClose.__call__();
-                        pushyServer.getOutputStream().close();
-                        pushyServer.getInputStream().close();
+                        if (remoteConnection != null)
+                            remoteConnection.__callpath__("close", null, null);
+                        transport.close();
                     }
                     catch (java.io.IOException e) {}
-                    pushyServer.destroy();
-                    pushyServer = null;
+                    transport = null;
                 }
             }
         }
     }
 
+    /**
+     * Check whether the client has been closed, or its transport has
+     * closed, such as when its server process exits.
+     */
+    public boolean isClosed()
+    {
+        Transport transport = this.transport;
+        return transport == null || !transport.isOpen();
+    }
+
     /**
      * Evaluate an expression.
      */
@@ -235,10 +446,10 @@ public class Client
      */
     public Object evaluate(String expression, Map locals, Map globals)
     {
-        if (remoteEvaluate == null)
+        if (remoteConnection == null)
             return connection.evaluate(expression, locals, globals);
         Object[] args = new Object[]{expression, locals, globals};
-        return remoteEvaluate.__call__(args);
+        return remoteConnection.__callpath__("eval", args, null);
     }
 
     /**
@@ -267,10 +478,33 @@ public class Client
      */
     public void putfile(String localFile, String remoteFile)
     {
-        if (remotePutfile == null)
+        if (local)
+        {
             pushy.internal.LocalFileIO.copyfile(localFile, remoteFile);
+        }
+        else if (remoteConnection == null)
+        {
+            try
+            {
+                InputStream in = new java.io.FileInputStream(localFile);
+                try
+                {
+                    pushy.internal.LocalFileIO.copy(
+                        in, new pushy.io.FileOutputStream(this, remoteFile));
+                }
+                finally
+                {
+                    in.close();
+                }
+            }
+            catch (IOException e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
         else
-            remotePutfile.__call__(new Object[]{localFile, remoteFile});
+            remoteConnection.__callpath__(
+                "putfile", new Object[]{localFile, remoteFile}, null);
     }
 
     /**
@@ -282,10 +516,34 @@ public class Client
      */
     public void getfile(String remoteFile, String localFile)
     {
-        if (remotePutfile == null)
+        if (local)
+        {
             pushy.internal.LocalFileIO.copyfile(remoteFile, localFile);
+        }
+        else if (remoteConnection == null)
+        {
+            try
+            {
+                InputStream in =
+                    new pushy.io.FileInputStream(this, remoteFile);
+                try
+                {
+                    pushy.internal.LocalFileIO.copy(
+                        in, new FileOutputStream(localFile));
+                }
+                finally
+                {
+                    in.close();
+                }
+            }
+            catch (IOException e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
         else
-            remoteGetfile.__call__(new Object[]{remoteFile, localFile});
+            remoteConnection.__callpath__(
+                "getfile", new Object[]{remoteFile, localFile}, null);
     }
 
     /**
@@ -324,7 +582,10 @@ public class Client
     /**
      * Get the garbage collection interval, in milliseconds.
      *
-     * This is the amount of time in between sending of "delete" messages.
+     * This is the longest time that the deletion of a garbage collected
+     * proxy is held back, waiting to be batched with others into a "delete"
+     * message. Pending deletes are sent in the background, even if no other
+     * messages are being sent.
      */
     public int getGCIntervalMillis()
     {
@@ -338,5 +599,219 @@ public class Client
     {
         connection.setGCIntervalMillis(intervalMillis);
     }
+
+    /**
+     * Get the number of pending deletes at which a "delete" message is sent
+     * without waiting for the garbage collection interval.
+     */
+    public int getGCBatchSize()
+    {
+        return connection.getGCBatchSize();
+    }
+
+    /**
+     * Set the number of pending deletes at which a "delete" message is sent
+     * without waiting for the garbage collection interval.
+     */
+    public void setGCBatchSize(int size)
+    {
+        connection.setGCBatchSize(size);
+    }
+
+    /**
+     * Get the estimated size, in bytes, at which a "delete" message is sent
+     * without waiting for the garbage collection interval.
+     */
+    public int getGCBatchBytes()
+    {
+        return connection.getGCBatchBytes();
+    }
+
+    /**
+     * Set the estimated size, in bytes, at which a "delete" message is sent
+     * without waiting for the garbage collection interval.
+     */
+    public void setGCBatchBytes(int bytes)
+    {
+        connection.setGCBatchBytes(bytes);
+    }
+
+    /**
+     * Get the pipelining window, in milliseconds.
+     *
+     * Asynchronous requests sent within this amount of time of each other are
+     * written out together. Zero, the default, means asynchronous requests
+     * are only held back within a batch.
+     */
+    public int getPipelineWindowMillis()
+    {
+        return connection.getPipelineWindowMillis();
+    }
+
+    /**
+     * Set the pipelining window, in milliseconds.
+     */
+    public void setPipelineWindowMillis(int millis)
+    {
+        connection.setPipelineWindowMillis(millis);
+    }
+
+    /**
+     * Get the maximum number of bytes that may be held back by pipelining
+     * before the connection is flushed.
+     */
+    public int getPipelineBufferSize()
+    {
+        return connection.getPipelineBufferSize();
+    }
+
+    /**
+     * Set the maximum number of bytes that may be held back by pipelining
+     * before the connection is flushed.
+     */
+    public void setPipelineBufferSize(int size)
+    {
+        connection.setPipelineBufferSize(size);
+    }
+
+    /**
+     * Compress messages exchanged with the remote Python interpreter whose
+     * payload is at least the specified number of bytes. A negative
+     * threshold, the default, disables compression.
+     *
+     * Compression helps large payloads over slow links. If the connection
+     * is tunnelled through a local Python interpreter, compression is
+     * enabled between it and the remote one.
+     */
+    public void setCompressionThreshold(int threshold)
+    {
+        if (remoteConnection == null)
+        {
+            connection.setCompressionThreshold(threshold);
+        }
+        else
+        {
+            Integer arg = threshold < 0 ? null : new Integer(threshold);
+            remoteConnection.__callpath__(
+                "remote.set_compression", new Object[]{arg}, null);
+        }
+    }
+
+    /**
+     * Enable or disable caching of a remote object's callable attributes,
+     * such as bound methods and module functions, so that looking them up
+     * again does not make a request. Cached attributes expire after
+     * {@link #getAttributeCacheTTLMillis} milliseconds, and at most
+     * {@link #getAttributeCacheSize} are cached per object.
+     *
+     * Attributes set through the proxy are invalidated automatically; if the
+     * remote object is changed by other means, use
+     * {@link #invalidateAttributes}.
+     */
+    public void setAttributeCacheEnabled(PushyObject object, boolean enabled)
+    {
+        connection.setAttributeCacheEnabled(object, enabled);
+    }
+
+    /**
+     * Discard all of a remote object's cached attributes.
+     */
+    public void invalidateAttributes(PushyObject object)
+    {
+        connection.invalidateAttributes(object);
+    }
+
+    /**
+     * Discard a remote object's cached attribute.
+     */
+    public void invalidateAttribute(PushyObject object, String name)
+    {
+        connection.invalidateAttribute(object, name);
+    }
+
+    /**
+     * Get the maximum number of attributes cached per remote object.
+     */
+    public int getAttributeCacheSize()
+    {
+        return connection.getAttributeCacheSize();
+    }
+
+    /**
+     * Set the maximum number of attributes cached per remote object.
+     */
+    public void setAttributeCacheSize(int size)
+    {
+        connection.setAttributeCacheSize(size);
+    }
+
+    /**
+     * Get the time, in milliseconds, for which attributes are cached.
+     */
+    public long getAttributeCacheTTLMillis()
+    {
+        return connection.getAttributeCacheTTLMillis();
+    }
+
+    /**
+     * Set the time, in milliseconds, for which attributes are cached.
+     */
+    public void setAttributeCacheTTLMillis(long millis)
+    {
+        connection.setAttributeCacheTTLMillis(millis);
+    }
+
+    /**
+     * Write out any requests held back by pipelining.
+     */
+    public void flush()
+    {
+        connection.flush();
+    }
+
+    /**
+     * Run the specified code, holding back any asynchronous requests (see
+     * {@link PushyObject#__call_async__}) it sends until it completes, so
+     * they are written out together.
+     */
+    public void batch(Runnable runnable)
+    {
+        connection.batch(runnable);
+    }
+
+    /**
+     * Create a batch of operations, which will be executed in the remote
+     * process with a single request.
+     */
+    public Batch batch()
+    {
+        return new Batch(this);
+    }
+
+    // Execute a batch's operations.
+    Object[] compound(Object[] operations)
+    {
+        if (remoteConnection == null)
+            return connection.compound(operations);
+        Object result = remoteConnection.__callpath__(
+            "remote.compound", new Object[]{operations}, null);
+        return Connection.toObjectArray(result);
+    }
+
+    /**
+     * Switch the connection to dispatcher mode, in which a single thread
+     * reads all messages from the remote process, rather than having the
+     * threads waiting on responses take turns to read. This scales better
+     * with many concurrent callers.
+     *
+     * Requests made by the remote process other than on behalf of a request
+     * from this process are executed by the specified executor, or in a new
+     * thread per request if it is null. This must be called before the
+     * client is used by multiple threads.
+     */
+    public void startReader(java.util.concurrent.Executor executor)
+    {
+        connection.startReader(executor);
+    }
 }
 
@@ -0,0 +1,449 @@
+/*
+ * Copyright (c) 2011 Andrew Wilkins <axwalk@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package pushy;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A pool of {@link Client} objects, keyed by address and properties.
+ *
+ * Creating a client starts a Python process and, for remote addresses,
+ * a new transport to the remote host; borrowing from the pool reuses a
+ * client that has already been started. Clients are borrowed with
+ * {@link #borrow}, and must be given back with {@link #release}, or
+ * {@link #invalidate} if they should not be reused.
+ *
+ * Clients that have been idle for longer than the idle timeout are closed
+ * when the pool is next used, or when {@link #evictIdle} is called.
+ */
+public class ClientPool
+{
+    private Map targets = new HashMap();
+    private Map borrowed = new HashMap();
+    private int maxPerTarget = 8;
+    private long idleTimeoutMillis = 5 * 60 * 1000;
+    private long maxWaitMillis = 0;
+    private boolean testOnBorrow = true;
+    private boolean closed = false;
+
+    /**
+     * Borrow a client for the specified address.
+     */
+    public Client borrow(String address) throws IOException
+    {
+        return borrow(address, null);
+    }
+
+    /**
+     * Borrow a client for the specified address and properties, creating one
+     * if there are no idle clients for them. If there are already the
+     * maximum number of clients for the target, wait for one to be released.
+     *
+     * @param address The Pushy address to connect with.
+     * @param properties Keyword arguments to pass to 'pushy.connect'.
+     */
+    public Client borrow(String address, Map properties) throws IOException
+    {
+        // Normalise the address in the same way as the Client constructor.
+        if (address == null)
+            address = "local:";
+        else
+            address = address.trim();
+        Object key = Arrays.asList(new Object[]{
+            address,
+            properties == null ? Collections.EMPTY_MAP
+                               : new HashMap(properties)});
+
+        for (;;)
+        {
+            Target target;
+            Client client = null;
+            List evicted = new ArrayList();
+            synchronized (this)
+            {
+                evictIdle(evicted);
+                long deadline = System.currentTimeMillis() + maxWaitMillis;
+                for (;;)
+                {
+                    if (closed)
+                        throw new IllegalStateException("Pool is closed");
+
+                    // Look the target up again after waiting, as it is
+                    // removed from the map if its count drops to zero.
+                    target = (Target)targets.get(key);
+                    if (target == null)
+                    {
+                        target = new Target();
+                        targets.put(key, target);
+                    }
+                    if (!target.idle.isEmpty())
+                    {
+                        // Take the most recently used client, leaving older
+                        // ones to be evicted.
+                        client = ((Idle)target.idle.removeLast()).client;
+                        break;
+                    }
+                    else if (target.count < maxPerTarget)
+                    {
+                        ++target.count;
+                        break;
+                    }
+                    else
+                    {
+                        awaitRelease(deadline, address);
+                    }
+                }
+            }
+            closeAll(evicted);
+
+            // Reuse an idle client if it's still healthy, otherwise discard
+            // it and try again.
+            if (client != null)
+            {
+                if (isHealthy(client))
+                {
+                    synchronized (this)
+                    {
+                        borrowed.put(client, target);
+                    }
+                    return client;
+                }
+                discard(target, client);
+                continue;
+            }
+
+            // Create a new client, outside the lock as it takes a while.
+            boolean created = false;
+            try
+            {
+                client = new Client(address, properties);
+                synchronized (this)
+                {
+                    borrowed.put(client, target);
+                }
+                created = true;
+                return client;
+            }
+            finally
+            {
+                if (!created)
+                    discard(target, null);
+            }
+        }
+    }
+
+    // Wait for a client to be released, or for the maximum wait time to
+    // elapse.
+    private void awaitRelease(long deadline, String address)
+        throws IOException
+    {
+        long timeout = 0;
+        if (maxWaitMillis > 0)
+        {
+            timeout = deadline - System.currentTimeMillis();
+            if (timeout <= 0)
+                throw new IOException(
+                    "Timed out waiting for a client for " + address);
+        }
+        try
+        {
+            wait(timeout);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException(
+                "Interrupted waiting for a client for " + address);
+        }
+    }
+
+    /**
+     * Give a borrowed client back to the pool, to be reused.
+     */
+    public void release(Client client)
+    {
+        boolean reusable;
+        synchronized (this)
+        {
+            Target target = (Target)borrowed.remove(client);
+            if (target == null)
+                throw new IllegalArgumentException(
+                    "Client was not borrowed from this pool");
+            reusable = !closed && !client.isClosed();
+            if (reusable)
+            {
+                target.idle.addLast(
+                    new Idle(client, System.currentTimeMillis()));
+            }
+            else
+            {
+                --target.count;
+            }
+            notifyAll();
+        }
+        if (!reusable)
+            client.close();
+    }
+
+    /**
+     * Give a borrowed client back to the pool, to be closed rather than
+     * reused. This should be called if the client is in an unknown state,
+     * e.g. after an error.
+     */
+    public void invalidate(Client client)
+    {
+        Target target;
+        synchronized (this)
+        {
+            target = (Target)borrowed.remove(client);
+            if (target == null)
+                throw new IllegalArgumentException(
+                    "Client was not borrowed from this pool");
+        }
+        discard(target, client);
+    }
+
+    /**
+     * Close clients that have been idle for longer than the idle timeout.
+     */
+    public void evictIdle()
+    {
+        List evicted = new ArrayList();
+        synchronized (this)
+        {
+            evictIdle(evicted);
+        }
+        closeAll(evicted);
+    }
+
+    // Remove expired idle clients from the pool, adding them to the
+    // specified list to be closed outside the lock.
+    private void evictIdle(List evicted)
+    {
+        long expiry = System.currentTimeMillis() - idleTimeoutMillis;
+        for (Iterator iter = targets.values().iterator(); iter.hasNext();)
+        {
+            Target target = (Target)iter.next();
+            // Idle clients are in the order they were released.
+            while (!target.idle.isEmpty() &&
+                   ((Idle)target.idle.getFirst()).since <= expiry)
+            {
+                evicted.add(((Idle)target.idle.removeFirst()).client);
+                --target.count;
+            }
+            if (target.count == 0)
+                iter.remove();
+        }
+        if (!evicted.isEmpty())
+            notifyAll();
+    }
+
+    /**
+     * Close the pool, and all idle clients. Borrowed clients are closed
+     * when they are released.
+     */
+    public void close()
+    {
+        List idle = new ArrayList();
+        synchronized (this)
+        {
+            closed = true;
+            for (Iterator iter = targets.values().iterator(); iter.hasNext();)
+            {
+                Target target = (Target)iter.next();
+                while (!target.idle.isEmpty())
+                {
+                    idle.add(((Idle)target.idle.removeFirst()).client);
+                    --target.count;
+                }
+            }
+            notifyAll();
+        }
+        closeAll(idle);
+    }
+
+    // Check that an idle client can be reused.
+    private boolean isHealthy(Client client)
+    {
+        if (client.isClosed())
+            return false;
+        if (!testOnBorrow)
+            return true;
+        try
+        {
+            client.evaluate("None");
+            return true;
+        }
+        catch (RuntimeException e)
+        {
+            return false;
+        }
+    }
+
+    // Remove a client from a target's count, and close it.
+    private void discard(Target target, Client client)
+    {
+        synchronized (this)
+        {
+            --target.count;
+            notifyAll();
+        }
+        if (client != null)
+            client.close();
+    }
+
+    private static void closeAll(List clients)
+    {
+        for (Iterator iter = clients.iterator(); iter.hasNext();)
+            ((Client)iter.next()).close();
+    }
+
+    /**
+     * Get the number of idle clients in the pool.
+     */
+    public synchronized int getIdleCount()
+    {
+        int count = 0;
+        for (Iterator iter = targets.values().iterator(); iter.hasNext();)
+            count += ((Target)iter.next()).idle.size();
+        return count;
+    }
+
+    /**
+     * Get the number of clients currently borrowed from the pool.
+     */
+    public synchronized int getBorrowedCount()
+    {
+        return borrowed.size();
+    }
+
+    /**
+     * Get the maximum number of clients, borrowed or idle, for each address
+     * and properties.
+     */
+    public synchronized int getMaxPerTarget()
+    {
+        return maxPerTarget;
+    }
+
+    /**
+     * Set the maximum number of clients, borrowed or idle, for each address
+     * and properties. The default is 8.
+     */
+    public synchronized void setMaxPerTarget(int max)
+    {
+        if (max < 1)
+            throw new IllegalArgumentException("max must be positive");
+        maxPerTarget = max;
+        notifyAll();
+    }
+
+    /**
+     * Get the time, in milliseconds, a client may be idle before it is
+     * closed.
+     */
+    public synchronized long getIdleTimeoutMillis()
+    {
+        return idleTimeoutMillis;
+    }
+
+    /**
+     * Set the time, in milliseconds, a client may be idle before it is
+     * closed. The default is five minutes.
+     */
+    public synchronized void setIdleTimeoutMillis(long millis)
+    {
+        idleTimeoutMillis = millis;
+    }
+
+    /**
+     * Get the maximum time, in milliseconds, to wait for a client to be
+     * released when the maximum number for a target are in use. Zero means
+     * wait indefinitely.
+     */
+    public synchronized long getMaxWaitMillis()
+    {
+        return maxWaitMillis;
+    }
+
+    /**
+     * Set the maximum time, in milliseconds, to wait for a client to be
+     * released when the maximum number for a target are in use. Zero (the
+     * default) means wait indefinitely.
+     */
+    public synchronized void setMaxWaitMillis(long millis)
+    {
+        maxWaitMillis = millis;
+    }
+
+    /**
+     * Check whether idle clients are tested with a round trip to the remote
+     * process before they are borrowed.
+     */
+    public synchronized boolean isTestOnBorrow()
+    {
+        return testOnBorrow;
+    }
+
+    /**
+     * Set whether idle clients are tested with a round trip to the remote
+     * process before they are borrowed. If not, they are only checked for
+     * having exited. The default is true.
+     */
+    public synchronized void setTestOnBorrow(boolean test)
+    {
+        testOnBorrow = test;
+    }
+
+    // The clients for an address and properties.
+    private static class Target
+    {
+        LinkedList idle = new LinkedList();
+        int count = 0;
+    }
+
+    // An idle client, and the time it was released.
+    private static class Idle
+    {
+        final Client client;
+        final long since;
+
+        Idle(Client client, long since)
+        {
+            this.client = client;
+            this.since = since;
+        }
+    }
+}
+
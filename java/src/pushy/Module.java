@@ -25,25 +25,149 @@
 
 package pushy;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * Module is the base class of all objects returned by
  * {@link Client#getModule}.
+ *
+ * Subclasses wrapping specific modules may defer importing the module until
+ * it is first used, and look up the methods they call on first use with
+ * {@link #__getmethod__}, so that creating a module costs no requests.
+ * Module-level values that are needed up front can be fetched together,
+ * along with the module itself, with {@link #__getattrs__}.
  */
 public class Module extends pushy.internal.DelegatingPushyObject
 {
+    // Marks a method known not to exist in the method cache.
+    private static final Object MISSING = new Object();
+
+    private final Client client;
+    private final String name;
+    private volatile PushyObject module;
+    private final Map methods = new HashMap();
+
     public Module(Client client, String name)
     {
-        this(__import__(client, name));
+        this(client, name, false);
     }
 
-    private Module(PushyObject object)
+    /**
+     * Create a module, importing it now, or if lazy is true, when it is
+     * first used.
+     */
+    protected Module(Client client, String name, boolean lazy)
     {
-        super(object);
+        super(null);
+        this.client = client;
+        this.name = name;
+        if (!lazy)
+            module = __import__(client, name);
     }
 
+    protected PushyObject getDelegate()
+    {
+        PushyObject module = this.module;
+        if (module == null)
+            module = setModule(__import__(client, name));
+        return module;
+    }
+
+    /**
+     * Record the imported module, unless another thread has already done
+     * so, and return the module recorded. Modules are imported without
+     * holding a lock, so that the request does not hold up other threads.
+     */
+    private synchronized PushyObject setModule(PushyObject module)
+    {
+        if (this.module == null)
+            this.module = module;
+        return this.module;
+    }
+
+    /**
+     * Get a method of the module, looking it up the first time it is
+     * requested.
+     */
     protected PushyObject __getmethod__(String name)
     {
-        return (PushyObject)__getattr__(name);
+        Object method = getCachedMethod(name);
+        if (method == null)
+            method = cacheMethod(name, __getattr__(name));
+        if (method == MISSING)
+            throw new UnsupportedOperationException(name);
+        return (PushyObject)method;
+    }
+
+    /**
+     * Check if the module has a method, looking it up the first time it is
+     * requested.
+     */
+    protected boolean __hasmethod__(String name)
+    {
+        Object method = getCachedMethod(name);
+        if (method == null)
+        {
+            method = __getattrs__(new String[]{name})[0];
+            method = cacheMethod(name, method == null ? MISSING : method);
+        }
+        return method != MISSING;
+    }
+
+    private Object getCachedMethod(String name)
+    {
+        synchronized (methods)
+        {
+            return methods.get(name);
+        }
+    }
+
+    /**
+     * Record a method that has been looked up, unless another thread has
+     * already done so, and return the method recorded. Methods are looked
+     * up without holding the lock, so that looking up one method does not
+     * hold up lookups of others.
+     */
+    private Object cacheMethod(String name, Object method)
+    {
+        synchronized (methods)
+        {
+            Object cached = methods.get(name);
+            if (cached != null)
+                return cached;
+            methods.put(name, method);
+            return method;
+        }
+    }
+
+    /**
+     * Get several attributes of the module with a single request, importing
+     * the module in the same request if it hasn't been already. Attributes
+     * that don't exist are returned as null.
+     */
+    protected Object[] __getattrs__(String[] names)
+    {
+        Batch batch = client.batch();
+        Batch.Step imported = null;
+        Object target = module;
+        if (target == null)
+            target = imported = batch.importModule(name);
+        Batch.Step getattr = batch.evaluate("getattr");
+        Batch.Step[] steps = new Batch.Step[names.length];
+        for (int i = 0; i < names.length; ++i)
+        {
+            steps[i] = batch.call(
+                getattr, new Object[]{target, names[i], null});
+        }
+        batch.execute();
+        if (imported != null)
+            setModule((PushyObject)imported.get());
+
+        Object[] values = new Object[names.length];
+        for (int i = 0; i < names.length; ++i)
+            values[i] = steps[i].get();
+        return values;
     }
 
     private static PushyObject __import__(Client client, String name)
@@ -60,4 +184,3 @@ public class Module extends pushy.internal.DelegatingPushyObject
         return module;
     }
 }
-
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2013 Andrew Wilkins <axwalk@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package pushy;
+
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The pending result of an asynchronous request, such as one made with
+ * {@link PushyObject#__call_async__}.
+ */
+public interface PushyFuture
+{
+    /**
+     * Wait for the request to complete, and return its result.
+     *
+     * If the request raised an exception in the remote process, the exception
+     * will be thrown from this method. The result (or exception) is retained,
+     * so this method may be called any number of times.
+     *
+     * @return The result of the request.
+     */
+    public Object get();
+
+    /**
+     * Wait for the request to complete, for at most the specified time, and
+     * return its result. If the time elapses first, the request remains
+     * outstanding, and its result may be waited for again.
+     *
+     * @param timeoutMillis The maximum time to wait, in milliseconds.
+     * @return The result of the request.
+     * @throws TimeoutException If the result was not received in time.
+     */
+    public Object get(long timeoutMillis) throws TimeoutException;
+
+    /**
+     * Stop waiting for the result of the request. The request cannot be
+     * withdrawn from the peer, but its result will be discarded when it is
+     * received, and {@link #get} will throw a CancellationException.
+     *
+     * @return False if the result has already been received.
+     */
+    public boolean cancel();
+
+    /**
+     * Check if the response to the request has been received.
+     *
+     * @return True if {@link #get} would return without waiting on the peer.
+     */
+    public boolean isDone();
+}
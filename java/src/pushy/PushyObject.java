@@ -46,6 +46,27 @@ public interface PushyObject
      */
     public Object __getattr__(String name);
 
+    /**
+     * Get the value at the end of a chain of attributes, such as "a.b.c",
+     * in a single request.
+     *
+     * @param path The dot-separated names of the attributes to look up.
+     * @return The value of the last attribute.
+     */
+    public Object __getpath__(String path);
+
+    /**
+     * Look up a chain of attributes, such as "a.b.c", and call the last
+     * with positional and keyword arguments, in a single request.
+     *
+     * @param path The dot-separated names of the attributes to look up.
+     * @param args Positional arguments.
+     * @param kwargs Keyword arguments.
+     * @return The return value of the call.
+     */
+    public Object __callpath__(String path, Object[] args,
+                               java.util.Map kwargs);
+
     /**
      * Set an attribute with the given name and value.
      *
@@ -100,5 +121,27 @@ public interface PushyObject
      * @return The return value of the call.
      */
     public Object __call__(Object[] args, java.util.Map kwargs);
+
+    /**
+     * Call the object with positional arguments, without waiting for the
+     * result.
+     *
+     * @param args Positional arguments.
+     * @return A future for the return value of the call.
+     */
+    public PushyFuture __call_async__(Object[] args);
+
+    /**
+     * Call the object with positional and keyword arguments, without waiting
+     * for the result.
+     *
+     * Any number of asynchronous calls may be outstanding at once, and their
+     * results may be collected in any order.
+     *
+     * @param args Positional arguments.
+     * @param kwargs Keyword arguments.
+     * @return A future for the return value of the call.
+     */
+    public PushyFuture __call_async__(Object[] args, java.util.Map kwargs);
 }
 
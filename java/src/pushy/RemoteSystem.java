@@ -69,12 +69,6 @@ class RemoteSystemProperties extends java.util.Properties
 {
     public static final long serialVersionUID = 0L;
 
-    private static final String[] DYNAMIC_VALUE_KEYS = new String[] {
-        "os.name", "os.arch", "os.version",
-        "file.separator", "path.separator", "line.separator",
-        "user.name", "user.home", "user.dir"
-    };
-
     private Client client;
     private GetpassModule getpassModule;
     private OsModule osModule;
@@ -85,16 +79,45 @@ class RemoteSystemProperties extends java.util.Properties
     {
         super();
         this.client = client;
-        getpassModule = (GetpassModule)client.getModule("getpass");
-        osModule = (OsModule)client.getModule("os");
-        osPathModule = (OsPathModule)client.getModule("os.path");
-        platformModule = (PlatformModule)client.getModule("platform");
-        for (int i = 0; i < DYNAMIC_VALUE_KEYS.length; ++i)
-        {
-            String value = getDynamicValue(DYNAMIC_VALUE_KEYS[i]);
-            if (value != null)
-                setProperty(DYNAMIC_VALUE_KEYS[i], value);
-        }
+
+        // Fetch the initial values in a single request, rather than going
+        // through the modules, which would take a request per value (and
+        // more to create the modules).
+        Batch batch = client.batch();
+        Batch.Step platform = batch.importModule("platform");
+        Batch.Step os = batch.importModule("os");
+        Batch.Step getpass = batch.importModule("getpass");
+        Batch.Step system = batch.callMethod(platform, "system", null);
+        Batch.Step machine = batch.callMethod(platform, "machine", null);
+        Batch.Step release = batch.callMethod(platform, "release", null);
+        Batch.Step version = batch.callMethod(platform, "version", null);
+        Batch.Step win32ver = batch.callMethod(platform, "win32_ver", null);
+        Batch.Step sep = batch.getattr(os, "sep");
+        Batch.Step pathsep = batch.getattr(os, "pathsep");
+        Batch.Step linesep = batch.getattr(os, "linesep");
+        Batch.Step user = batch.callMethod(getpass, "getuser", null);
+        Batch.Step tildeUser =
+            batch.callMethod("~", "__add__", new Object[]{user});
+        Batch.Step home = batch.callMethod(
+            batch.getattr(os, "path"), "expanduser", new Object[]{tildeUser});
+        Batch.Step cwd = batch.callMethod(os, "getcwd", null);
+        batch.execute();
+
+        String systemValue = (String)system.get();
+        String releaseValue = (String)release.get();
+        String versionValue = (String)version.get();
+        setDynamicValue("os.name",
+            getOsName(systemValue, releaseValue, versionValue));
+        setDynamicValue("os.arch", (String)machine.get());
+        setDynamicValue("os.version",
+            getOsVersion(systemValue, releaseValue, versionValue,
+                         (Object[])win32ver.get()));
+        setDynamicValue("file.separator", (String)sep.get());
+        setDynamicValue("path.separator", (String)pathsep.get());
+        setDynamicValue("line.separator", (String)linesep.get());
+        setDynamicValue("user.name", (String)user.get());
+        setDynamicValue("user.home", (String)home.get());
+        setDynamicValue("user.dir", (String)cwd.get());
     }
 
     public Object get(Object key)
@@ -107,26 +130,63 @@ class RemoteSystemProperties extends java.util.Properties
         return value;
     }
 
+    private void setDynamicValue(String key, String value)
+    {
+        if (value != null)
+            setProperty(key, value);
+    }
+
+    private synchronized GetpassModule getGetpassModule()
+    {
+        if (getpassModule == null)
+            getpassModule = (GetpassModule)client.getModule("getpass");
+        return getpassModule;
+    }
+
+    private synchronized OsModule getOsModule()
+    {
+        if (osModule == null)
+            osModule = (OsModule)client.getModule("os");
+        return osModule;
+    }
+
+    private synchronized OsPathModule getOsPathModule()
+    {
+        if (osPathModule == null)
+            osPathModule = (OsPathModule)client.getModule("os.path");
+        return osPathModule;
+    }
+
+    private synchronized PlatformModule getPlatformModule()
+    {
+        if (platformModule == null)
+            platformModule = (PlatformModule)client.getModule("platform");
+        return platformModule;
+    }
+
     private String getDynamicValue(String key)
     {
         if (key.equals("os.name"))
             return getOsName();
         if (key.equals("os.arch"))
-            return platformModule.machine();
+            return getPlatformModule().machine();
         if (key.equals("os.version"))
             return getOsVersion();
         if (key.equals("file.separator"))
-            return osModule.sep;
+            return getOsModule().sep;
         if (key.equals("path.separator"))
-            return osModule.pathsep;
+            return getOsModule().pathsep;
         if (key.equals("line.separator"))
-            return osModule.linesep;
+            return getOsModule().linesep;
         if (key.equals("user.name"))
-            return getpassModule.getuser();
+            return getGetpassModule().getuser();
         if (key.equals("user.home"))
-            return osPathModule.expanduser("~" + getpassModule.getuser());
+        {
+            return getOsPathModule().expanduser(
+                "~" + getGetpassModule().getuser());
+        }
         if (key.equals("user.dir"))
-            return osModule.getcwd();
+            return getOsModule().getcwd();
         return null;
     }
 
@@ -138,10 +198,17 @@ class RemoteSystemProperties extends java.util.Properties
      */
     private String getOsName()
     {
-        String system = platformModule.system();
+        PlatformModule platform = getPlatformModule();
+        String system = platform.system();
+        if (system.equals("Windows") || system.equals("Microsoft"))
+            return getOsName(system, platform.release(), platform.version());
+        return system;
+    }
+
+    private String getOsName(String system, String release, String version)
+    {
         if (system.equals("Windows") || system.equals("Microsoft"))
         {
-            String release = platformModule.release();
 
             // For Python 2.6 and below, Windows 7 is reported as
             // "post2008Server". This has been fixed in Python 2.7
@@ -152,7 +219,7 @@ class RemoteSystemProperties extends java.util.Properties
             // and checks for the presence of "Server" in the product name.
             //
             if (release.equals("post2008Server") &&
-                platformModule.version().startsWith("6.1."))
+                version.startsWith("6.1."))
             {
                 boolean isServer = false;
                 WinregModule winreg =
@@ -182,16 +249,27 @@ class RemoteSystemProperties extends java.util.Properties
      */
     public String getOsVersion()
     {
-        String system = platformModule.system();
+        PlatformModule platform = getPlatformModule();
+        String system = platform.system();
+        if (system.equals("Windows") || system.equals("Microsoft"))
+        {
+            return getOsVersion(system, platform.release(),
+                                platform.version(), platform.win32_ver());
+        }
+        return platform.release();
+    }
+
+    private String getOsVersion(String system, String platformRelease,
+                                String platformVersion, Object[] win32ver)
+    {
         if (system.equals("Windows") || system.equals("Microsoft"))
         {
-            String[] win32ver = platformModule.win32_ver();
-            String version = win32ver[1]; // Release/build version
+            String version = (String)win32ver[1]; // Release/build version
             if (version.length() == 0)
             {
                 // platform.win32_ver() has been known to return empty strings
                 // (observed in a Cygwin environment, Windows 2003 Server).
-                version = platformModule.version();
+                version = platformVersion;
             }
 
             int dot = version.lastIndexOf('.');
@@ -207,7 +285,8 @@ class RemoteSystemProperties extends java.util.Properties
             if (vmVendor.equals("Sun Microsystems Inc."))
                 return release;
 
-            String csd = win32ver[2]; // Corrective Service Deliverable (SP)
+            // Corrective Service Deliverable (SP)
+            String csd = (String)win32ver[2];
             if (csd.startsWith("SP"))
                 csd = "Service Pack " + csd.substring(2);
             String osVersion = release + " build " + build;
@@ -217,7 +296,7 @@ class RemoteSystemProperties extends java.util.Properties
         }
         else
         {
-            return platformModule.release();
+            return platformRelease;
         }
     }
 }
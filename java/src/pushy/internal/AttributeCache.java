@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2013 Andrew Wilkins <axwalk@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package pushy.internal;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of a proxy's attributes, so that repeatedly looking up the same
+ * attribute does not make a request each time. Only attributes that may be
+ * assumed not to change are cached: those whose values are callable, such
+ * as bound methods and module functions.
+ *
+ * Entries expire after a fixed time, and the least recently used entry is
+ * evicted when the cache is full.
+ */
+class AttributeCache
+{
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final Map entries;
+
+    AttributeCache(final int maxEntries, long ttlMillis)
+    {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry eldest)
+            {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Get a cached attribute value, or null if it isn't cached or has
+     * expired.
+     */
+    synchronized Object get(String name)
+    {
+        Entry entry = (Entry)entries.get(name);
+        if (entry == null)
+            return null;
+        if (System.currentTimeMillis() >= entry.expiresMillis)
+        {
+            entries.remove(name);
+            return null;
+        }
+        return entry.value;
+    }
+
+    /**
+     * Cache an attribute value.
+     */
+    synchronized void put(String name, Object value)
+    {
+        if (maxEntries > 0)
+        {
+            entries.put(name, new Entry(
+                value, System.currentTimeMillis() + ttlMillis));
+        }
+    }
+
+    /**
+     * Remove an attribute from the cache.
+     */
+    synchronized void invalidate(String name)
+    {
+        entries.remove(name);
+    }
+
+    /**
+     * Remove all attributes from the cache.
+     */
+    synchronized void invalidateAll()
+    {
+        entries.clear();
+    }
+
+    private static class Entry
+    {
+        final Object value;
+        final long expiresMillis;
+
+        Entry(Object value, long expiresMillis)
+        {
+            this.value = value;
+            this.expiresMillis = expiresMillis;
+        }
+    }
+}
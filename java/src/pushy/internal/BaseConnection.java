@@ -33,13 +33,27 @@ import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.reflect.Array;
-import java.lang.ref.WeakReference;
+import java.lang.ref.ReferenceQueue;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -55,31 +69,61 @@ public abstract class BaseConnection
     private static final Integer MARSHAL_TUPLE = new Integer(0);
     private static final Integer MARSHAL_ORIGIN = new Integer(1);
     private static final Integer MARSHAL_PROXY = new Integer(2);
+    private static final Integer MARSHAL_BYTES = new Integer(3);
+
+    // The most threads that handle requests received by drainer threads,
+    // shared by all connections not in dispatcher mode.
+    private static final int MAX_DRAINED_REQUEST_THREADS = 16;
+    private static ExecutorService drainedRequestExecutor = null;
 
     private java.io.InputStream istream;
     private java.io.OutputStream ostream;
+    private Lock readLock = new ReentrantLock();
+    private Lock writeLock = new ReentrantLock();
+    private CountDownLatch closed = new CountDownLatch(1);
     private Object processingCondition = new Object();
     private boolean receiving = false;
-    private boolean open = true;
+    private volatile boolean open = true;
     private int waitingCount = 0;
     private int processingCount = 0;
     private int responseCount = 0;
-    private Map responseHandlers = new HashMap();
+    private int drainingCount = 0;
+    private boolean drainerRunning = false;
+    private Map responseHandlers = Collections.synchronizedMap(new HashMap());
+    private AtomicInteger asyncRequestCount = new AtomicInteger();
     private List requests = new ArrayList();
-    private Map proxiedObjects = new HashMap();
-    private Map proxies = new HashMap();
+    private ExportTable exports = new ExportTable();
+    private ProxyTable proxies = new ProxyTable();
     private Map pendingDeletes = new HashMap();
+    private ReferenceQueue proxyQueue = new ReferenceQueue();
+    private Marshal.TupleLoader valueLoader = new ValueLoader();
     private ThreadLocal threadRequestCount = new ThreadLocal();
     private ThreadLocal peerThread = new ThreadLocal();
     private boolean gcEnabled = true;
     private int gcIntervalMillis = 5000; // 5 seconds
-    private long gcLastDeleteMillis = System.currentTimeMillis();
+    private int gcBatchSize = 256;
+    private int gcBatchBytes = 4096;
+    private int pendingDeleteBytes = 0;
+    private long pendingDeletesSinceMillis = 0;
+    private volatile boolean gcFlusherStarted = false;
+    private AtomicBoolean deleteWriterRunning = new AtomicBoolean();
+    private volatile boolean deleteWriteFailed = false;
+    private int attributeCacheSize = 64;
+    private long attributeCacheTTLMillis = 60000; // 1 minute
+    private int pipelineWindowMillis = 0; // disabled
+    private int pipelineBufferSize = 8192;
+    private volatile int unflushedBytes = 0;
+    private long unflushedSinceMillis = 0;
+    private ThreadLocal batchDepth = new ThreadLocal();
+    private volatile Thread readerThread;
+    private volatile int compressionThreshold = -1;
+    private Executor requestExecutor;
 
     protected BaseConnection(java.io.InputStream istream,
                              java.io.OutputStream ostream)
     {
         this.istream = istream;
-        this.ostream = ostream;
+        this.ostream = new java.io.BufferedOutputStream(ostream);
     }
 
     /**
@@ -104,7 +148,9 @@ public abstract class BaseConnection
     /**
      * Get the garbage collection interval, in milliseconds.
      *
-     * This is the amount of time in between sending of "delete" messages.
+     * This is the longest time that the deletion of a garbage collected
+     * proxy is held back, waiting to be batched with others into a "delete"
+     * message.
      */
     public int getGCIntervalMillis()
     {
@@ -119,6 +165,303 @@ public abstract class BaseConnection
         gcIntervalMillis = millis;
     }
 
+    /**
+     * Get the garbage collection batch size.
+     *
+     * This is the number of garbage collected proxies for which a "delete"
+     * message is sent without waiting for the garbage collection interval
+     * to expire.
+     */
+    public int getGCBatchSize()
+    {
+        return gcBatchSize;
+    }
+
+    /**
+     * Set the garbage collection batch size.
+     */
+    public void setGCBatchSize(int size)
+    {
+        if (size <= 0)
+            throw new IllegalArgumentException("size must be positive");
+        gcBatchSize = size;
+    }
+
+    /**
+     * Get the garbage collection batch size in bytes.
+     *
+     * This is the estimated size of the pending "delete" message at which
+     * it is sent without waiting for the garbage collection interval to
+     * expire.
+     */
+    public int getGCBatchBytes()
+    {
+        return gcBatchBytes;
+    }
+
+    /**
+     * Set the garbage collection batch size in bytes.
+     */
+    public void setGCBatchBytes(int bytes)
+    {
+        if (bytes <= 0)
+            throw new IllegalArgumentException("bytes must be positive");
+        gcBatchBytes = bytes;
+    }
+
+    /**
+     * Get the maximum number of attributes cached for each proxy with
+     * attribute caching enabled.
+     */
+    public int getAttributeCacheSize()
+    {
+        return attributeCacheSize;
+    }
+
+    /**
+     * Set the maximum number of attributes cached for each proxy. This
+     * applies to proxies for which caching is enabled after the call.
+     */
+    public void setAttributeCacheSize(int size)
+    {
+        if (size < 0)
+            throw new IllegalArgumentException("size must not be negative");
+        attributeCacheSize = size;
+    }
+
+    /**
+     * Get the time, in milliseconds, for which attributes are cached.
+     */
+    public long getAttributeCacheTTLMillis()
+    {
+        return attributeCacheTTLMillis;
+    }
+
+    /**
+     * Set the time, in milliseconds, for which attributes are cached. This
+     * applies to proxies for which caching is enabled after the call.
+     */
+    public void setAttributeCacheTTLMillis(long millis)
+    {
+        if (millis < 0)
+            throw new IllegalArgumentException("millis must not be negative");
+        attributeCacheTTLMillis = millis;
+    }
+
+    /**
+     * Enable or disable caching of a proxy's callable attributes, such as
+     * bound methods and module functions. Attributes set through the proxy
+     * are invalidated; changes made to the remote object by other means
+     * must be invalidated explicitly.
+     *
+     * @throws IllegalArgumentException if the object is not a proxy for an
+     *         object of this connection's peer.
+     */
+    public void setAttributeCacheEnabled(Object proxy, boolean enabled)
+    {
+        PushyObjectImpl impl = getOwnImpl(proxy);
+        if (!enabled)
+            impl.setAttributeCache(null);
+        else if (impl.getAttributeCache() == null)
+            impl.setAttributeCache(new AttributeCache(
+                attributeCacheSize, attributeCacheTTLMillis));
+    }
+
+    /**
+     * Remove all cached attributes of a proxy.
+     */
+    public void invalidateAttributes(Object proxy)
+    {
+        AttributeCache cache = getOwnImpl(proxy).getAttributeCache();
+        if (cache != null)
+            cache.invalidateAll();
+    }
+
+    /**
+     * Remove a cached attribute of a proxy.
+     */
+    public void invalidateAttribute(Object proxy, String name)
+    {
+        AttributeCache cache = getOwnImpl(proxy).getAttributeCache();
+        if (cache != null)
+            cache.invalidate(name);
+    }
+
+    // Get the PushyObjectImpl underlying a proxy for the peer's object.
+    private PushyObjectImpl getOwnImpl(Object proxy)
+    {
+        PushyObjectImpl impl = Proxy.getImpl(proxy);
+        if (impl == null || impl.getConnection() != this)
+            throw new IllegalArgumentException(
+                "Not a proxy for an object of this connection");
+        return impl;
+    }
+
+    /**
+     * Get the pipelining window, in milliseconds.
+     *
+     * Asynchronous requests sent within this amount of time of the first
+     * unflushed request are written out together. Zero, the default, means
+     * asynchronous requests are only held back within a batch.
+     */
+    public int getPipelineWindowMillis()
+    {
+        return pipelineWindowMillis;
+    }
+
+    /**
+     * Set the pipelining window, in milliseconds.
+     */
+    public void setPipelineWindowMillis(int millis)
+    {
+        pipelineWindowMillis = millis;
+    }
+
+    /**
+     * Get the maximum number of bytes that may be held back by pipelining
+     * before the connection is flushed.
+     */
+    public int getPipelineBufferSize()
+    {
+        return pipelineBufferSize;
+    }
+
+    /**
+     * Set the maximum number of bytes that may be held back by pipelining
+     * before the connection is flushed.
+     */
+    public void setPipelineBufferSize(int size)
+    {
+        pipelineBufferSize = size;
+    }
+
+    /**
+     * Get the payload size, in bytes, from which messages sent to the peer
+     * are compressed, or -1 if compression is disabled (the default).
+     */
+    public int getCompressionThreshold()
+    {
+        return compressionThreshold;
+    }
+
+    /**
+     * Compress messages sent in both directions whose payload is at least
+     * the specified number of bytes. A negative threshold disables
+     * compression.
+     *
+     * The peer is asked to do the same before compression is enabled for
+     * messages sent to it. The request is wrapped in an "as_tuple" message,
+     * which a peer that predates compression can decode: it fails the
+     * request, this throws a RemoteException, and both sides carry on
+     * uncompressed. Messages are only sent compressed if that makes them
+     * smaller.
+     */
+    public void setCompressionThreshold(int threshold)
+    {
+        Integer arg = threshold < 0 ? null : new Integer(threshold);
+        Integer code = new Integer(Message.Type.compression.getCode());
+        try
+        {
+            sendRequest(Message.Type.as_tuple, new Object[]{code, arg});
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+        compressionThreshold = threshold < 0 ? -1 : threshold;
+    }
+
+    /**
+     * Write out any messages held back by pipelining.
+     */
+    public void flush()
+    {
+        if (unflushedBytes == 0)
+            return;
+        boolean draining = startDraining();
+        writeLock.lock();
+        try
+        {
+            flushMessages();
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+        finally
+        {
+            writeLock.unlock();
+            if (draining)
+                stopDraining();
+        }
+    }
+
+    /**
+     * Run the specified code, holding back the asynchronous requests it sends
+     * until it completes, so they may be written out together.
+     *
+     * Synchronous requests sent within the batch still flush the connection,
+     * as they must wait for their response.
+     */
+    public void batch(Runnable runnable)
+    {
+        Integer depth = (Integer)batchDepth.get();
+        int newDepth = (depth == null ? 0 : depth.intValue()) + 1;
+        batchDepth.set(new Integer(newDepth));
+        try
+        {
+            runnable.run();
+        }
+        finally
+        {
+            batchDepth.set(new Integer(newDepth - 1));
+            if (newDepth == 1)
+                flush();
+        }
+    }
+
+    /**
+     * Switch the connection to dispatcher mode, in which a single thread
+     * reads all messages from the peer.
+     *
+     * Responses, and requests made by the peer while handling a request from
+     * this process, are passed directly to the waiting thread. Other requests
+     * are handed to the specified executor, or to a new thread per request if
+     * the executor is null. This avoids contention between threads competing
+     * to read from the connection when there are many concurrent callers.
+     *
+     * Waiting threads block on java.util.concurrent locks rather than object
+     * monitors, so this mode may be used with virtual threads without
+     * pinning them to their carrier threads; in that case, pass an executor
+     * that creates a virtual thread per task.
+     *
+     * This must be called before any requests are sent or served.
+     */
+    public synchronized void startReader(Executor executor)
+    {
+        if (readerThread != null)
+            throw new IllegalStateException("Reader thread already started");
+
+        requestExecutor = executor;
+        readerThread = new Thread("pushy-reader")
+        {
+            public void run()
+            {
+                readMessages();
+            }
+        };
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    /**
+     * Determine whether the connection is in dispatcher mode.
+     */
+    public boolean isReaderStarted()
+    {
+        return readerThread != null;
+    }
+
     /**
      * Handle a request or response message.
      */
@@ -126,19 +469,21 @@ public abstract class BaseConnection
     {
         // Track the number of requests being processed in this thread. May be
         // greater than one, if there is to-and-fro. We need to track this so
-        // we know when to set the 'peerThread'.
+        // we know when to set the 'peerThread'. Requests made on behalf of
+        // asynchronous requests may come from any peer thread, so the
+        // previous peer thread is restored afterwards.
         boolean isRequest = !message.getType().isResponse();
+        long previousPeerThread = getPeerThread();
         if (isRequest)
         {
             int threadRequestCount = getThreadRequestCount();
             setThreadRequestCount(threadRequestCount + 1);
-            if (threadRequestCount == 0)
-                setPeerThread(message.getSource());
+            setPeerThread(message.getSource());
         }
 
         try
         {
-            Object value = unmarshal(message.getPayload());
+            Object value = message.getValue();
             Object result = handleInternal(message.getType(), value);
 
             // Before returning, return the "real" object for an exported
@@ -162,12 +507,7 @@ public abstract class BaseConnection
                 throw e;
 
             // Allow the message receiving thread to proceed.
-            synchronized (processingCondition)
-            {
-                if (--processingCount == 0)
-                    processingCondition.notifyAll();
-            }
-
+            finishProcessing();
             sendMessage(Message.Type.exception, e);
             return null;
         }
@@ -182,8 +522,7 @@ public abstract class BaseConnection
             {
                 int threadRequestCount = getThreadRequestCount();
                 setThreadRequestCount(threadRequestCount - 1);
-                if (threadRequestCount == 1)
-                    setPeerThread(0);
+                setPeerThread(previousPeerThread);
             }
         }
     }
@@ -193,16 +532,10 @@ public abstract class BaseConnection
      */
     private void handleDelete(Object[] ids)
     {
-        synchronized (proxiedObjects)
+        for (int i = 0; i < ids.length; ++i)
         {
-            for (int i = 0; i < ids.length; ++i)
-            {
-                int[] id_and_version = (int[])ids[i];
-                Integer id = new Integer(id_and_version[0]);
-                ExportedObject eo = (ExportedObject)proxiedObjects.get(id);
-                if (eo.getVersion() == id_and_version[1])
-                    proxiedObjects.remove(id);
-            }
+            int[] id_and_version = (int[])ids[i];
+            exports.remove(id_and_version[0], id_and_version[1]);
         }
     }
 
@@ -222,6 +555,13 @@ public abstract class BaseConnection
             else
                 throw new RemoteException((PushyObject)arg);
         }
+        else if (type.equals(Message.Type.compression))
+        {
+            // The peer is asking for messages sent to it to be compressed.
+            compressionThreshold =
+                arg == null ? -1 : ((Number)arg).intValue();
+            return null;
+        }
         else
         {
             return handle(type, arg);
@@ -238,6 +578,21 @@ public abstract class BaseConnection
      */
     public void serve()
     {
+        // In dispatcher mode, requests are served by the reader thread's
+        // executor; just wait for the connection to close.
+        if (readerThread != null)
+        {
+            try
+            {
+                closed.await();
+            }
+            catch (InterruptedException e)
+            {
+                throw new RuntimeException(e);
+            }
+            return;
+        }
+
         while (open)
         {
             try
@@ -276,10 +631,10 @@ public abstract class BaseConnection
                 responseHandlers.put(new Long(handler.getThreadId()), handler);
             }
 
-            if (getThreadRequestCount() > 0)
+            if (readerThread == null && getThreadRequestCount() > 0)
             {
                 if (processingCount == ++waitingCount)
-                    processingCondition.notify();
+                    processingCondition.notifyAll();
             }
         }
 
@@ -290,13 +645,7 @@ public abstract class BaseConnection
         Message m = null;
         try
         {
-            m = getResponse(handler);
-            while (open && (m == null || !m.getType().isResponse()))
-            {
-                if (m != null)
-                    handle(m);
-                m = getResponse(handler);
-            }
+            m = waitForResponse(handler);
         }
         finally
         {
@@ -306,36 +655,522 @@ public abstract class BaseConnection
         return handle(m);
     }
 
+    /**
+     * Send a request to the peer, without waiting for the result.
+     *
+     * The request is tagged with a unique id rather than the current thread's
+     * id, so any number of requests may be outstanding at once, and their
+     * responses may be collected in any order, by any thread.
+     */
+    protected ResponseFuture
+    sendRequestAsync(Message.Type type, Object arg) throws IOException
+    {
+        ResponseHandler handler = new ResponseHandler(ThreadId.nextId());
+        synchronized (processingCondition)
+        {
+            if (!open)
+                throw new RuntimeException("Connection is closed");
+            responseHandlers.put(new Long(handler.getThreadId()), handler);
+            asyncRequestCount.incrementAndGet();
+        }
+
+        try
+        {
+            sendMessage(type, arg, handler.getThreadId(), true);
+        }
+        catch (IOException e)
+        {
+            removeAsyncHandler(handler.getThreadId());
+            throw e;
+        }
+        catch (RuntimeException e)
+        {
+            removeAsyncHandler(handler.getThreadId());
+            throw e;
+        }
+        return new ResponseFuture(this, handler);
+    }
+
+    /**
+     * Wait for the response to an asynchronous request, and return the
+     * result. Requests made by the peer on behalf of the asynchronous request
+     * are handled in the calling thread while waiting.
+     */
+    Object getAsyncResult(ResponseHandler handler) throws IOException
+    {
+        // Treat this thread as waiting on a response, as if it had just sent
+        // the request synchronously.
+        synchronized (processingCondition)
+        {
+            if (readerThread == null && getThreadRequestCount() > 0)
+            {
+                if (processingCount == ++waitingCount)
+                    processingCondition.notifyAll();
+            }
+        }
+
+        Message m = null;
+        try
+        {
+            m = waitForResponse(handler);
+        }
+        finally
+        {
+            removeAsyncHandler(handler.getThreadId());
+        }
+        return handle(m);
+    }
+
+    /**
+     * Wait for the response to an asynchronous request, for at most the
+     * specified time, and return the result. The response is received by
+     * the reader or drainer thread, so that this thread can stop waiting
+     * at any time; requests made by the peer on behalf of the asynchronous
+     * request are handled by other threads.
+     */
+    Object getAsyncResult(ResponseHandler handler, long timeoutMillis)
+        throws IOException, TimeoutException
+    {
+        if (!open)
+            handler.close();
+
+        // The request may be held back by pipelining.
+        flush();
+
+        Message m = null;
+        boolean draining = startDraining();
+        try
+        {
+            m = handler.takeMessage(timeoutMillis);
+        }
+        finally
+        {
+            if (draining)
+                stopDraining();
+        }
+        if (m == null)
+        {
+            if (handler.isClosed() || !open)
+                throw new RuntimeException("Connection is closed");
+            throw new TimeoutException("Timed out waiting for response");
+        }
+        return handle(m);
+    }
+
+    /**
+     * Cancel an asynchronous request, unless its response has already been
+     * received. Any thread waiting for the response is woken up.
+     */
+    boolean cancelAsyncRequest(ResponseHandler handler)
+    {
+        // Whichever of this and the receipt of the response removes the
+        // handler first decides whether the request is cancelled.
+        if (!removeAsyncHandler(handler.getThreadId()))
+            return false;
+        handler.cancel();
+        synchronized (processingCondition)
+        {
+            processingCondition.notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Check if a response has been received for an asynchronous request.
+     */
+    boolean isResponseReceived(ResponseHandler handler)
+    {
+        // The request may not have been sent yet.
+        flush();
+        synchronized (processingCondition)
+        {
+            Message m = handler.getMessage();
+            return m != null && m.getType().isResponse();
+        }
+    }
+
+    /**
+     * Wait for a response message for the specified handler, handling any
+     * requests made by the peer in the meantime.
+     */
+    private Message waitForResponse(ResponseHandler handler) throws IOException
+    {
+        if (readerThread != null)
+        {
+            Message m = takeMessage(handler);
+            while (!m.getType().isResponse())
+            {
+                handle(m);
+                m = takeMessage(handler);
+            }
+            return m;
+        }
+
+        Message m = getResponse(handler);
+        while (open && (m == null || !m.getType().isResponse()))
+        {
+            if (m != null)
+                handle(m);
+            m = getResponse(handler);
+        }
+        return m;
+    }
+
+    /**
+     * Wait for the reader thread to pass a message to the specified handler.
+     */
+    private Message takeMessage(ResponseHandler handler)
+    {
+        // The handler may have been registered after the reader thread
+        // closed the others.
+        if (!open)
+            handler.close();
+
+        // The request may be held back by pipelining. The reader thread never
+        // writes, so make sure the peer has it before waiting.
+        flush();
+
+        Message message = handler.takeMessage();
+        if (message == null)
+            throw new RuntimeException("Connection is closed");
+        return message;
+    }
+
+    /**
+     * Read and dispatch messages until the connection is closed. This is the
+     * body of the reader thread, in dispatcher mode.
+     */
+    private void readMessages()
+    {
+        try
+        {
+            while (open)
+            {
+                final Message message = receiveMessage();
+                ResponseHandler handler = getTargetHandler(message);
+                if (handler != null)
+                {
+                    handler.setMessage(message);
+                }
+                else
+                {
+                    Runnable task = new Runnable()
+                    {
+                        public void run()
+                        {
+                            try
+                            {
+                                handle(message);
+                            }
+                            catch (IOException e)
+                            {
+                                logger.log(Level.WARNING,
+                                    "Failed to handle request", e);
+                            }
+                        }
+                    };
+                    if (requestExecutor != null)
+                        requestExecutor.execute(task);
+                    else
+                        new Thread(task).start();
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            logger.log(Level.FINE, "Reader thread terminating", e);
+        }
+        finally
+        {
+            synchronized (processingCondition)
+            {
+                open = false;
+                processingCondition.notifyAll();
+            }
+            closed.countDown();
+
+            // Wake up any threads waiting on a response.
+            synchronized (responseHandlers)
+            {
+                Iterator iter = responseHandlers.values().iterator();
+                while (iter.hasNext())
+                    ((ResponseHandler)iter.next()).close();
+            }
+        }
+    }
+
     /**
      * Send a message as a response to a request.
      */
-    protected void sendResponse(Object result) throws IOException
+    protected void sendResponse(Object result) throws IOException
+    {
+        finishProcessing();
+        sendMessage(Message.Type.response, result);
+    }
+
+    /**
+     * Record that a request has finished processing, allowing the message
+     * receiving thread to proceed.
+     */
+    private void finishProcessing()
+    {
+        if (readerThread != null)
+            return;
+        synchronized (processingCondition)
+        {
+            if (--processingCount == 0)
+                processingCondition.notifyAll();
+        }
+    }
+
+    /**
+     * Send a message.
+     */
+    private void
+    sendMessage(Message.Type type, Object value) throws IOException
+    {
+        sendMessage(type, value, ThreadId.getThreadId(), false);
+    }
+
+    /**
+     * Send a message, specifying the id to which the peer should direct its
+     * response, and whether the message may be held back to be written out
+     * with subsequent messages.
+     */
+    private void
+    sendMessage(Message.Type type, Object value, long source,
+                boolean pipelined) throws IOException
+    {
+        // Marshal the value straight into this thread's buffer, after
+        // space reserved for the message header.
+        MarshalBuffer buffer = MarshalBuffer.get(Message.HEADER_SIZE);
+        marshal(value, buffer);
+        long target = getPeerThread();
+
+        boolean draining = startDraining();
+        writeLock.lock();
+        try
+        {
+            // See if there are any proxy objects that have been garbage
+            // collected. If there are, send a delete message first.
+            sendPendingDeletes();
+
+            // Send the original message.
+            if (logger.isLoggable(Level.FINEST))
+            {
+                logger.log(Level.FINEST, "Sending message: {0}",
+                           new Object[]{type + " (" + buffer.size() +
+                                        " bytes) to " + target});
+            }
+            Message.pack(ostream, type, source, target, buffer,
+                         compressionThreshold);
+
+            long timeNowMillis = System.currentTimeMillis();
+            if (unflushedBytes == 0)
+                unflushedSinceMillis = timeNowMillis;
+            unflushedBytes += buffer.size();
+
+            if (!pipelined || unflushedBytes >= pipelineBufferSize)
+            {
+                flushMessages();
+            }
+            else if (batchDepth.get() == null ||
+                     ((Integer)batchDepth.get()).intValue() == 0)
+            {
+                if ((timeNowMillis - unflushedSinceMillis) >=
+                        pipelineWindowMillis)
+                    flushMessages();
+            }
+        }
+        finally
+        {
+            writeLock.unlock();
+            buffer.clearReferences();
+            if (draining)
+                stopDraining();
+        }
+    }
+
+    /**
+     * Make sure messages are read while the calling thread writes, if there
+     * are asynchronous requests outstanding. Returns true if stopDraining
+     * must be called once the write is complete.
+     *
+     * In dispatcher mode the reader thread is always reading. Otherwise, no
+     * thread may be reading while this one writes. If the peer is blocked
+     * writing the results of asynchronous requests, it would never read
+     * what this thread writes, and both sides would wait forever. A drainer
+     * thread reads and dispatches messages until all such writes complete.
+     */
+    private boolean startDraining()
+    {
+        if (readerThread != null || asyncRequestCount.get() == 0)
+            return false;
+        synchronized (processingCondition)
+        {
+            if (!open)
+                return false;
+            ++drainingCount;
+            if (!drainerRunning)
+            {
+                drainerRunning = true;
+                Thread drainer = new Thread("pushy-drainer")
+                {
+                    public void run()
+                    {
+                        drainMessages();
+                    }
+                };
+                drainer.setDaemon(true);
+                drainer.start();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Record that a write started with startDraining is complete.
+     */
+    private void stopDraining()
+    {
+        synchronized (processingCondition)
+        {
+            --drainingCount;
+            processingCondition.notifyAll();
+        }
+    }
+
+    /**
+     * Read and dispatch messages while any thread is writing with
+     * startDraining. This is the body of the drainer thread.
+     */
+    private void drainMessages()
+    {
+        try
+        {
+            for (;;)
+            {
+                // Another thread may be receiving already; it dispatches
+                // messages just the same, so wait for it to finish.
+                synchronized (processingCondition)
+                {
+                    while (open && drainingCount > 0 && receiving)
+                        processingCondition.wait();
+                    if (!open || drainingCount == 0)
+                        return;
+                    receiving = true;
+                }
+                try
+                {
+                    dispatchMessage(receiveMessage());
+                }
+                finally
+                {
+                    synchronized (processingCondition)
+                    {
+                        receiving = false;
+                        processingCondition.notifyAll();
+                    }
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            logger.log(Level.FINE, "Drainer thread interrupted", e);
+        }
+        catch (IOException e)
+        {
+            // Threads that go on to receive will see the error themselves.
+            logger.log(Level.FINE, "Drainer thread terminating", e);
+        }
+        finally
+        {
+            synchronized (processingCondition)
+            {
+                drainerRunning = false;
+                processingCondition.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Pass a message read by the drainer thread to the thread that will
+     * handle it. The drainer must not handle requests itself, as sending
+     * the response could block.
+     */
+    private void dispatchMessage(final Message message)
+    {
+        ResponseHandler handler = getTargetHandler(message);
+        synchronized (processingCondition)
+        {
+            if (handler != null)
+            {
+                handler.setMessage(message);
+                if (!handler.isAsync())
+                    ++responseCount;
+                return;
+            }
+            if (message.getTarget() == 0)
+            {
+                requests.add(message);
+                return;
+            }
+
+            // A request made on behalf of an asynchronous request may be
+            // handled by any thread, so hand it to a pooled one.
+            ++processingCount;
+        }
+        getDrainedRequestExecutor().execute(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    handle(message);
+                }
+                catch (IOException e)
+                {
+                    logger.log(Level.WARNING, "Failed to handle request", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Get the pool of threads that handle requests received by drainer
+     * threads. The number of threads is bounded, so that a peer making many
+     * requests on behalf of asynchronous requests cannot exhaust this
+     * process's threads; further requests wait for a thread to be free.
+     */
+    private static synchronized ExecutorService getDrainedRequestExecutor()
     {
-        synchronized (processingCondition)
+        if (drainedRequestExecutor == null)
         {
-            if (--processingCount == 0)
-                processingCondition.notifyAll();
+            ThreadFactory factory = new ThreadFactory()
+            {
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, "pushy-request");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            };
+            drainedRequestExecutor = new ThreadPoolExecutor(
+                MAX_DRAINED_REQUEST_THREADS, MAX_DRAINED_REQUEST_THREADS,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue(), factory);
         }
-        sendMessage(Message.Type.response, result);
+        return drainedRequestExecutor;
     }
 
     /**
-     * Send a message.
+     * Flush the output stream, if any messages have been held back. The
+     * caller must hold the write lock.
      */
-    private void
-    sendMessage(Message.Type type, Object value) throws IOException
+    private void flushMessages() throws IOException
     {
-        Message msg = new Message(type, marshal(value), getPeerThread());
-        synchronized (ostream)
+        if (unflushedBytes > 0)
         {
-            // See if there are any proxy objects that have been garbage
-            // collected. If there are, send a delete message first.
-            sendPendingDeletes();
-
-            // Send the original message.
-            logger.log(
-                Level.FINEST, "Sending message: {0}", new Object[]{msg});
-            msg.pack(ostream);
+            unflushedBytes = 0;
             ostream.flush();
         }
     }
@@ -346,41 +1181,131 @@ public abstract class BaseConnection
      */
     private void sendPendingDeletes() throws IOException
     {
+        // Take the pending deletes, and write them out without holding the
+        // pendingDeletes lock, so garbage collection isn't held up by I/O.
+        collectProxies();
+        Object[] pendingItems;
         synchronized (pendingDeletes)
         {
-            if (pendingDeletes.isEmpty())
+            if (!isDeleteDue())
                 return;
+            pendingDeleteBytes = 0;
 
-            // Check if the garbage collection timer has expired.
-            long timeNowMillis = System.currentTimeMillis();
-            if ((timeNowMillis - gcLastDeleteMillis) < gcIntervalMillis)
-                return;
-            gcLastDeleteMillis = timeNowMillis;
+            // Convert the map into an array of pairs.
+            pendingItems = new Object[pendingDeletes.size()];
+            Iterator iter = pendingDeletes.entrySet().iterator();
+            for (int i = 0; iter.hasNext(); ++i)
+            {
+                Map.Entry entry = (Map.Entry)iter.next();
+                pendingItems[i] =
+                    new Object[]{entry.getKey(), entry.getValue()};
+            }
+            pendingDeletes.clear();
+        }
 
-            try
+        // Send a "delete" message.
+        logger.log(Level.FINEST, "Sending deleting message");
+        byte[] payload = Marshal.dump(pendingItems);
+        Message msg = new Message(Message.Type.delete_, payload, 0, 0);
+        msg.pack(ostream);
+    }
+
+    /**
+     * Check whether the pending deletes should be sent: once there are
+     * enough of them, or the oldest has waited for the garbage collection
+     * interval. The caller must hold the pendingDeletes lock.
+     */
+    private boolean isDeleteDue()
+    {
+        if (pendingDeletes.isEmpty())
+            return false;
+        long timeNowMillis = System.currentTimeMillis();
+        return pendingDeletes.size() >= gcBatchSize ||
+               pendingDeleteBytes >= gcBatchBytes ||
+               (timeNowMillis - pendingDeletesSinceMillis) >= gcIntervalMillis;
+    }
+
+    /**
+     * Send the pending deletes if they are due, without waiting for another
+     * message to be sent. This is called periodically by the garbage
+     * collection flusher. Returns false once the connection is closed.
+     *
+     * The flusher's thread is shared by all connections, and writing blocks
+     * if the peer is not reading, so the deletes are written by a thread of
+     * the flusher's writer pool. At most one such write is in progress for
+     * each connection.
+     */
+    boolean flushPendingDeletes()
+    {
+        if (!open || deleteWriteFailed)
+            return false;
+        collectProxies();
+        synchronized (pendingDeletes)
+        {
+            if (!isDeleteDue())
+                return true;
+        }
+
+        if (deleteWriterRunning.compareAndSet(false, true))
+        {
+            GCFlusher.execute(new Runnable()
             {
-                // Convert the map into an array of pairs.
-                Object[] pendingItems = new Object[pendingDeletes.size()];
-                Iterator iter = pendingDeletes.entrySet().iterator();
-                for (int i = 0; iter.hasNext(); ++i)
+                public void run()
                 {
-                    Map.Entry entry = (Map.Entry)iter.next();
-                    pendingItems[i] =
-                        new Object[]{entry.getKey(), entry.getValue()};
+                    try
+                    {
+                        writePendingDeletes();
+                    }
+                    catch (IOException e)
+                    {
+                        // The connection has been closed.
+                        deleteWriteFailed = true;
+                        logger.log(Level.FINE,
+                            "Failed to send pending deletes", e);
+                    }
+                    catch (RuntimeException e)
+                    {
+                        logger.log(Level.WARNING,
+                            "Failed to send pending deletes", e);
+                    }
+                    finally
+                    {
+                        deleteWriterRunning.set(false);
+                    }
                 }
+            });
+        }
+        return true;
+    }
 
-                // Send a "delete" message.
-                logger.log(Level.FINEST, "Sending deleting message");
-                byte[] payload = Marshal.dump(pendingItems);
-                Message msg = new Message(Message.Type.delete_, payload, 0, 0);
-                msg.pack(ostream);
-                ostream.flush();
-            }
-            finally
+    /**
+     * Write out the pending deletes, unless another thread is writing, in
+     * which case it will send them itself.
+     */
+    private void writePendingDeletes() throws IOException
+    {
+        boolean draining = startDraining();
+        try
+        {
+            if (writeLock.tryLock())
             {
-                pendingDeletes.clear();
+                try
+                {
+                    sendPendingDeletes();
+                    unflushedBytes = 0;
+                    ostream.flush();
+                }
+                finally
+                {
+                    writeLock.unlock();
+                }
             }
         }
+        finally
+        {
+            if (draining)
+                stopDraining();
+        }
     }
 
     /**
@@ -426,6 +1351,11 @@ public abstract class BaseConnection
      */
     private Message getRequest() throws IOException
     {
+        // Make sure the peer has everything it needs to respond before we
+        // block waiting for it. This must be done before becoming the
+        // receiving thread, as the write may block until a message is read.
+        flush();
+
         synchronized (processingCondition)
         {
             // Wait until we're allowed to read from the input stream, or
@@ -436,7 +1366,6 @@ public abstract class BaseConnection
                     (processingCount > 0 &&
                      (processingCount > waitingCount))))
             {
-                processingCondition.notify();
                 try
                 {
                     processingCondition.wait();
@@ -456,7 +1385,7 @@ public abstract class BaseConnection
             {
                 Message request = (Message)requests.remove(0);
                 ++processingCount;
-                processingCondition.notify();
+                processingCondition.notifyAll();
                 return request;
             }
 
@@ -465,26 +1394,23 @@ public abstract class BaseConnection
         }
 
         // Wait for a message.
-        boolean notifyAll = true;
         try
         {
-            Message message = getMessage();
-            if (message.getTarget() != 0)
+            Message message = receiveMessage();
+            ResponseHandler handler = getTargetHandler(message);
+            if (handler != null)
             {
-                ResponseHandler handler =
-                    (ResponseHandler)responseHandlers.get(
-                        new Long(message.getTarget()));
                 handler.setMessage(message);
-                ++responseCount;
+                if (!handler.isAsync())
+                    ++responseCount;
                 return null;
             }
             else
             {
-                // We got a request, so return it. Wake up one other thread
+                // We got a request, so return it. Wake up the other threads
                 // waiting to receive a message.
                 if (open)
                     ++processingCount;
-                notifyAll = false;
                 return message;
             }
         }
@@ -492,10 +1418,7 @@ public abstract class BaseConnection
         {
             synchronized (processingCondition)
             {
-                if (notifyAll)
-                    processingCondition.notifyAll();
-                else
-                    processingCondition.notify();
+                processingCondition.notifyAll();
                 receiving = false;
             }
         }
@@ -508,16 +1431,20 @@ public abstract class BaseConnection
     private Message
     getResponse(ResponseHandler handler) throws IOException
     {
+        // As above, flush before waiting to receive.
+        flush();
+
+        boolean receiver = false;
         synchronized (processingCondition)
         {
             // Wait until we're allowed to read from the input stream, or
             // another thread has enqueued a request for us.
-            while ((open && handler.getMessage() == null) &&
+            while ((open && handler.getMessage() == null &&
+                    !handler.isClosed()) &&
                    (receiving ||
                     (processingCount > 0 &&
                      (processingCount > waitingCount))))
             {
-                processingCondition.notify();
                 try
                 {
                     processingCondition.wait();
@@ -528,6 +1455,14 @@ public abstract class BaseConnection
                 }
             }
 
+            // The request may have been cancelled while waiting.
+            if (handler.getMessage() == null && handler.isClosed())
+            {
+                if (getThreadRequestCount() > 0)
+                    --waitingCount;
+                throw new RuntimeException("Request was cancelled");
+            }
+
             // If we don't have a message yet, then we'll need to release the
             // lock and then receive a message.
             if (open)
@@ -535,8 +1470,9 @@ public abstract class BaseConnection
                 if (handler.getMessage() == null)
                 {
                     receiving = true;
+                    receiver = true;
                 }
-                else
+                else if (!handler.isAsync())
                 {
                     --responseCount;
                 }
@@ -544,28 +1480,40 @@ public abstract class BaseConnection
         }
 
         // Receive a message.
-        if (open && handler.getMessage() == null)
+        if (receiver)
         {
-            Message message = getMessage();
-            if (message.getTarget() == 0)
+            Message message = receiveMessage();
+            ResponseHandler targetResponseHandler = getTargetHandler(message);
+            if (targetResponseHandler == null)
             {
-                requests.add(message);
+                if (message.getTarget() == 0)
+                {
+                    synchronized (processingCondition)
+                    {
+                        requests.add(message);
+                    }
+                }
+                else
+                    handler.setMessage(message);
             }
             else
             {
-                ResponseHandler targetResponseHandler =
-                    (ResponseHandler)responseHandlers.get(
-                        new Long(message.getTarget()));
                 targetResponseHandler.setMessage(message);
-                if (message.getTarget() != handler.getThreadId())
+                if (message.getTarget() != handler.getThreadId() &&
+                    !targetResponseHandler.isAsync())
+                {
                     ++responseCount;
+                }
             }
         }
 
         // Stopped receiving: acquire the lock again, and update the state.
+        // Only the receiving thread may clear the flag, or another thread
+        // could start reading while this one is still blocked on the stream.
         synchronized (processingCondition)
         {
-            receiving = false;
+            if (receiver)
+                receiving = false;
             try
             {
                 Message message = handler.getMessage();
@@ -591,37 +1539,120 @@ public abstract class BaseConnection
     }
 
     /**
-     * Receive a message from the input stream.
+     * Get the response handler to which a received message should be given,
+     * or null if the message may be handled by any thread.
+     *
+     * Requests made on behalf of an asynchronous request have no thread
+     * dedicated to them, so they are handled by whichever thread receives
+     * them.
+     */
+    private ResponseHandler getTargetHandler(Message message)
+    {
+        if (message.getTarget() == 0)
+            return null;
+        Long key = new Long(message.getTarget());
+        ResponseHandler handler = (ResponseHandler)responseHandlers.get(key);
+        if (handler != null && !handler.isAsync())
+            return handler;
+        if (!message.getType().isResponse())
+            return null;
+
+        // The response to an asynchronous request belongs to its future from
+        // now on, so the handler is forgotten. If the request was cancelled
+        // first, the response is given to a handler of its own, and
+        // discarded along with it.
+        if (handler == null || !removeAsyncHandler(message.getTarget()))
+            return new ResponseHandler(message.getTarget());
+        return handler;
+    }
+
+    /**
+     * Forget the handler of an asynchronous request, returning false if it
+     * has already been removed.
+     */
+    private boolean removeAsyncHandler(long id)
+    {
+        if (responseHandlers.remove(new Long(id)) == null)
+            return false;
+        asyncRequestCount.decrementAndGet();
+        return true;
+    }
+
+    /**
+     * Receive a message from the input stream. This never takes the write
+     * lock, so that a thread blocked writing to the peer cannot stop the
+     * reader or drainer thread from reading.
      */
-    private Message getMessage() throws IOException
+    private Message receiveMessage() throws IOException
     {
         Message message;
-        synchronized (istream)
+        readLock.lock();
+        try
         {
             message = Message.unpack(istream);
             while (message.getType() == Message.Type.delete_)
             {
                 logger.log(Level.FINEST, "Received message: {0}",
                     new Object[]{message});
-                handleDelete((Object[])Marshal.load(message.getPayload()));
+                try
+                {
+                    handleDelete(
+                        (Object[])Marshal.load(message.getPayloadReader()));
+                }
+                finally
+                {
+                    message.release();
+                }
                 message = Message.unpack(istream);
             }
+
+            // Unmarshal the payload before reading on, so that any objects
+            // it refers to are looked up before a later delete message
+            // removes them.
+            try
+            {
+                message.setValue(unmarshal(message));
+            }
+            catch (RuntimeException e)
+            {
+                message.setError(e);
+            }
+        }
+        finally
+        {
+            readLock.unlock();
         }
         return message;
     }
 
-    private byte[] marshal(Object value) throws IOException
+    /**
+     * Marshal a value into a buffer. Values that cannot be marshalled
+     * directly are described in place: binary data is sent by value, arrays
+     * are encoded as tuples whose elements are marshalled recursively, and
+     * other objects as references to proxies, exporting them if necessary.
+     * The encoding is understood by ValueLoader.
+     */
+    private void marshal(Object value, MarshalBuffer buffer)
+        throws IOException
     {
-        return Marshal.dump(makeMarshallable(value));
-    }
+        // Binary data is sent by value, and received as a byte array.
+        if (value != null && Marshal.isBytesType(value.getClass()))
+        {
+            Marshal.dumpTupleHeader(2, buffer);
+            Marshal.dumpInt(MARSHAL_BYTES.intValue(), buffer);
+            Marshal.dump(value, buffer);
+            return;
+        }
 
-    private Object makeMarshallable(Object value) throws IOException
-    {
         boolean isArray = value==null ? false : value.getClass().isArray();
 
         // Simple type?
-        if (!isArray && Marshal.isMarshallable(value))
-            return value;
+        if (!isArray && (value == null ||
+                         Marshal.isMarshallableType(value.getClass())))
+        {
+            Marshal.dump(value, buffer);
+            return;
+        }
 
         if (!(value instanceof PushyObject))
             logger.log(Level.FINEST, "Marshalling object: {0}", value);
@@ -629,11 +1660,16 @@ public abstract class BaseConnection
         // Marshal array in the same way as Python tuples.
         if (isArray)
         {
-            int length = Array.getLength(value);
-            Object[] elements = new Object[length];
-            for (int i = 0; i < length; ++i)
-                elements[i] = makeMarshallable(Array.get(value, i));
-            return new Object[]{MARSHAL_TUPLE, elements};
+            Marshal.dumpTupleHeader(2, buffer);
+            Marshal.dumpInt(MARSHAL_TUPLE.intValue(), buffer);
+            if (!Marshal.dumpPrimitiveArray(value, buffer))
+            {
+                int length = Array.getLength(value);
+                Marshal.dumpTupleHeader(length, buffer);
+                for (int i = 0; i < length; ++i)
+                    marshal(Array.get(value, i), buffer);
+            }
+            return;
         }
 
         // If it's a proxy object and it belongs to this connection, then
@@ -642,7 +1678,15 @@ public abstract class BaseConnection
         {
             ProxyObject proxy = (ProxyObject)value;
             if (proxy.getConnection() == this)
-                return new Object[]{MARSHAL_ORIGIN, proxy.getId()};
+            {
+                // The proxy must outlive the message, or its delete could
+                // be sent first, and the peer would not find the object.
+                buffer.addReference(proxy);
+                Marshal.dumpTupleHeader(2, buffer);
+                Marshal.dumpInt(MARSHAL_ORIGIN.intValue(), buffer);
+                Marshal.dump(proxy.getId(), buffer);
+                return;
+            }
         }
 
         // If it's a previously proxied object and belongs to this connection,
@@ -652,90 +1696,133 @@ public abstract class BaseConnection
             ExportedObject eo = (ExportedObject)value;
             if (eo.getConnection() == this)
             {
-                // Increment the version, and remarshal.
-                return new Object[]{MARSHAL_PROXY,
-                                    eo.getMarshallableRepresentation(),
-                                    new Integer(eo.incrementVersion())};
+                // Increment the version, and remarshal. The version must be
+                // incremented atomically with the check that the peer has
+                // not deleted the object in the meantime; if it has, the
+                // object is exported afresh.
+                int version = -1;
+                synchronized (exports)
+                {
+                    if (exports.contains(eo))
+                        version = eo.incrementVersion();
+                }
+                if (version != -1)
+                {
+                    Marshal.dumpTupleHeader(3, buffer);
+                    Marshal.dumpInt(MARSHAL_PROXY.intValue(), buffer);
+                    Marshal.dump(eo.getMarshallableRepresentation(), buffer);
+                    Marshal.dumpInt(version, buffer);
+                    return;
+                }
+                value = eo.getObject();
             }
         }
 
-        synchronized (proxiedObjects)
-        {
-            // XXX this only works at the moment because we don't
-            //     discard objects from the proxied objects map.
-            Number id = new Integer(proxiedObjects.size());
-            Proxy.Type type = Proxy.getType(value);
-            Number operators = Proxy.getOperators(value);
-            Object proxyArg = Proxy.getArgument(value, type);
-            Integer typeCode = new Integer(type.getCode());
-
-            // Create the "exported object"
-            ExportedObject eo = createExportObject(id, type, value);
-            proxiedObjects.put(id, eo);
-
-            // Create the marshallable result, and record it on the object.
-            Object[] marshallable;
-            if (proxyArg == null)
-                marshallable = new Object[]{id, operators, typeCode};
-            else
-                marshallable = new Object[]{id, operators, typeCode, proxyArg};
-            eo.setMarshallableRepresentation(marshallable);
-            return new Object[]{MARSHAL_PROXY, marshallable, new Integer(0)};
-        }
+        final Object object = value;
+        ExportedObject eo = exports.export(new ExportTable.Factory() {
+            public ExportedObject create(int id_)
+            {
+                Integer id = new Integer(id_);
+                Proxy.Type type = Proxy.getType(object);
+                Number operators = Proxy.getOperators(object);
+                Object proxyArg = Proxy.getArgument(object, type);
+                Integer typeCode = new Integer(type.getCode());
+
+                // Create the "exported object", and record the marshallable
+                // result on it.
+                ExportedObject eo = createExportObject(id, type, object);
+                Object[] marshallable;
+                if (proxyArg == null)
+                    marshallable = new Object[]{id, operators, typeCode};
+                else
+                    marshallable =
+                        new Object[]{id, operators, typeCode, proxyArg};
+                eo.setMarshallableRepresentation(marshallable);
+                return eo;
+            }
+        });
+        Marshal.dumpTupleHeader(3, buffer);
+        Marshal.dumpInt(MARSHAL_PROXY.intValue(), buffer);
+        Marshal.dump(eo.getMarshallableRepresentation(), buffer);
+        Marshal.dumpInt(0, buffer);
     }
 
-    private Object unmarshal(byte[] bytes) throws IOException
+    /**
+     * Unmarshal a message's payload, and release the message.
+     */
+    private Object unmarshal(Message message) throws IOException
     {
-        return reconstruct(Marshal.load(bytes));
+        try
+        {
+            return Marshal.load(message.getPayloadReader(), valueLoader);
+        }
+        finally
+        {
+            message.release();
+        }
     }
 
     /**
-     * Reconstruct an unmarshalled object that was created by makeMarshallable.
+     * Reconstructs values encoded by marshal as they are unmarshalled. Each
+     * tuple holds the kind of encoding, followed by its arguments.
      */
-    private Object reconstruct(Object marshallable) throws IOException
+    private class ValueLoader implements Marshal.TupleLoader
     {
-        if (marshallable == null || !marshallable.getClass().isArray())
-            return marshallable;
-
-        Number type = (Number)Array.get(marshallable, 0);
-        if (type.equals(MARSHAL_TUPLE))
-        {
-            Object values = Array.get(marshallable, 1);
-            int length = Array.getLength(values);
-            List items = new ArrayList(length);
-            for (int i = 0; i < length; ++i)
-                items.add(reconstruct(Array.get(values, i)));
-            return Marshal.createArray(items);
-        }
-        else if (type.equals(MARSHAL_ORIGIN))
+        public Object loadTuple(MarshalReader reader, int size)
+            throws IOException
         {
-            Object id = Array.get(marshallable, 1);
-            synchronized (proxiedObjects)
+            int type = Marshal.loadInt(reader);
+            if (type == MARSHAL_TUPLE.intValue())
+            {
+                return Marshal.loadArray(reader, this);
+            }
+            else if (type == MARSHAL_ORIGIN.intValue())
+            {
+                return exports.get(Marshal.loadInt(reader));
+            }
+            else if (type == MARSHAL_PROXY.intValue())
+            {
+                Object description = Marshal.load(reader);
+                int version = Marshal.loadInt(reader);
+                return getProxy(description, version);
+            }
+            else if (type == MARSHAL_BYTES.intValue())
+            {
+                return Marshal.loadBytes(reader);
+            }
+            else
             {
-                return (ExportedObject)proxiedObjects.get(id);
+                for (int i = 1; i < size; ++i)
+                    Marshal.load(reader);
+                logger.severe("Unhandled type: " + type);
+                return null;
             }
         }
-        else if (type.equals(MARSHAL_PROXY))
-        {
-            Object description = Array.get(marshallable, 1);
-            Number version = (Number)Array.get(marshallable, 2);
+    }
 
-            // Get the object ID and check if we have received it before.
-            Number id = (Number)Array.get(description, 0);
-            synchronized (proxies)
+    /**
+     * Get the proxy for an object described by the peer, creating it if it
+     * has not been received before.
+     */
+    private ProxyObject getProxy(Object description, int version)
+    {
+        // Get the object ID and check if we have received it before. The
+        // entry is locked while the proxy is created, so that there is only
+        // ever one live proxy for an object.
+        Number id = (Number)Array.get(description, 0);
+        long key = id.longValue();
+        synchronized (proxies.getLock(key))
+        {
+            Object entry = proxies.get(key);
+            ProxyObject proxy;
+            if (entry instanceof ProxyReference)
+                proxy = ((ProxyReference)entry).getProxy();
+            else
+                proxy = (ProxyObject)entry;
+            if (proxy != null)
             {
-                Object proxy_ = proxies.get(id);
-                if (proxy_ != null)
-                {
-                    if (proxy_ instanceof WeakReference)
-                        proxy_ = (ProxyObject)((WeakReference)proxy_).get();
-                    ProxyObject proxy = (ProxyObject)proxy_;
-                    if (proxy != null)
-                    {
-                        proxy.setVersion(version.intValue());
-                        return proxy;
-                    }
-                }
+                proxy.setVersion(version);
+                return proxy;
             }
 
             // Split apart the rest of the description.
@@ -745,44 +1832,79 @@ public abstract class BaseConnection
             if (Array.getLength(description) > 3)
                 arg = Array.get(description, 3);
 
-            // Create the proxy object.
-            ProxyObject proxy = createProxy(id, opmask, objectType, arg);
-            proxy.setVersion(version.intValue());
-
-            // Add the proxy.
-            synchronized (proxies)
-            {
-                if (isGCEnabled())
-                    proxies.put(id, new WeakReference(proxy));
-                else
-                    proxies.put(id, proxy);
-            }
+            // Create the proxy object, and add it.
+            proxy = createProxy(id, opmask, objectType, arg);
+            proxy.setVersion(version);
+            proxies.put(key, track(proxy));
             return proxy;
         }
-        else
+    }
+
+    /**
+     * Track a newly created proxy, so that the peer is told to delete the
+     * object once the proxy has been garbage collected. Returns the entry
+     * for the proxies table: a reference to the proxy, or the proxy itself
+     * if garbage collection is disabled.
+     */
+    private Object track(ProxyObject proxy)
+    {
+        PushyObjectImpl impl = Proxy.getImpl(proxy);
+        if (!isGCEnabled() || impl == null)
+            return proxy;
+
+        // The table keeps the reference reachable, so that it is enqueued.
+        // A reference replaced in the table is for an older version of the
+        // object, so the peer would ignore its delete anyway.
+        ProxyReference reference =
+            new ProxyReference(proxy, impl, proxyQueue);
+        impl.setReference(reference);
+        if (!gcFlusherStarted)
+            startGCFlusher();
+        return reference;
+    }
+
+    private synchronized void startGCFlusher()
+    {
+        if (!gcFlusherStarted)
         {
-            logger.severe("Unhandled type: " + type);
-            return null;
+            gcFlusherStarted = true;
+            GCFlusher.start(this);
         }
     }
 
     /**
-     * This method should be called on proxy objects when they are garbage
-     * collected.
+     * Take the proxies that have been garbage collected from the reference
+     * queue, and record them as pending deletion.
      */
-    void deleted(ProxyObject proxy)
+    private void collectProxies()
     {
-        synchronized (proxies)
+        ProxyReference reference;
+        while ((reference = (ProxyReference)proxyQueue.poll()) != null)
         {
+            // Forget the proxy, unless it has been replaced by a new one for
+            // the same object.
+            Object id = reference.getId();
+            if (!proxies.remove(((Number)id).longValue(), reference))
+                continue;
+
             synchronized (pendingDeletes)
             {
-                proxies.remove(proxy.getId());
-                pendingDeletes.put(
-                    proxy.getId(), new Integer(proxy.getVersion()));
+                if (pendingDeletes.isEmpty())
+                    pendingDeletesSinceMillis = System.currentTimeMillis();
+                if (!pendingDeletes.containsKey(id))
+                    pendingDeleteBytes += getDeleteBytes(id);
+                pendingDeletes.put(id, new Integer(reference.getVersion()));
             }
         }
     }
 
+    // Estimate the marshalled size of a delete message entry: a tuple of
+    // the ID, which is an int or a long, and the version.
+    private static int getDeleteBytes(Object id)
+    {
+        return 5 + (id instanceof Integer ? 5 : 9) + 5;
+    }
+
     /**
      * Create a proxy object, with the given ID, type, a bitmask describing the
      * operators the remote object contains, and optionally some arguments for
@@ -832,15 +1954,34 @@ public abstract class BaseConnection
         } while (nread < buf.length);
     }
 
-    // A class that holds the result of a request.
-    private static class ResponseHandler
+    // A class that holds the result of a request. Synchronous requests are
+    // identified by the requesting thread's id, and asynchronous requests by
+    // an id of their own.
+    static class ResponseHandler
     {
         private Message message;
         private long threadId;
+        private boolean async;
+        private boolean closed;
+        private volatile boolean cancelled;
+        private Lock lock = new ReentrantLock();
+        private Condition received = lock.newCondition();
 
         private ResponseHandler()
         {
             threadId = ThreadId.getThreadId();
+            async = false;
+        }
+
+        private ResponseHandler(long id)
+        {
+            threadId = id;
+            async = true;
+        }
+
+        public boolean isAsync()
+        {
+            return async;
         }
 
         public long getThreadId()
@@ -850,12 +1991,127 @@ public abstract class BaseConnection
 
         public Message getMessage()
         {
-            return message;
+            lock.lock();
+            try
+            {
+                return message;
+            }
+            finally
+            {
+                lock.unlock();
+            }
         }
 
         public void setMessage(Message message)
         {
-            this.message = message;
+            lock.lock();
+            try
+            {
+                this.message = message;
+                if (message != null)
+                    received.signalAll();
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Wait for a message to be set, and remove it. Returns null if the
+         * handler is closed before a message is set.
+         */
+        public Message takeMessage()
+        {
+            lock.lock();
+            try
+            {
+                while (message == null && !closed)
+                    received.await();
+                Message result = message;
+                message = null;
+                return result;
+            }
+            catch (InterruptedException e)
+            {
+                throw new RuntimeException(e);
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Wait for a message to be set, for at most the specified time, and
+         * remove it. Returns null if the time elapses, or the handler is
+         * closed, before a message is set.
+         */
+        public Message takeMessage(long timeoutMillis)
+        {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            lock.lock();
+            try
+            {
+                while (message == null && !closed && nanos > 0)
+                    nanos = received.awaitNanos(nanos);
+                Message result = message;
+                message = null;
+                return result;
+            }
+            catch (InterruptedException e)
+            {
+                throw new RuntimeException(e);
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        public boolean isClosed()
+        {
+            lock.lock();
+            try
+            {
+                return closed;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        public boolean isCancelled()
+        {
+            return cancelled;
+        }
+
+        /**
+         * Close the handler, as its request has been cancelled.
+         */
+        public void cancel()
+        {
+            cancelled = true;
+            close();
+        }
+
+        /**
+         * Wake up any thread waiting in takeMessage, as no more messages
+         * will be received.
+         */
+        public void close()
+        {
+            lock.lock();
+            try
+            {
+                closed = true;
+                received.signalAll();
+            }
+            finally
+            {
+                lock.unlock();
+            }
         }
     }
 }
@@ -0,0 +1,391 @@
+/*
+ * Copyright (c) 2013 Andrew Wilkins <axwalk@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package pushy.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.net.URLDecoder;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.zip.Deflater;
+
+/**
+ * Starts a Pushy server in a Python process which cannot import the Pushy
+ * package itself, such as one on a remote host, by sending the package to
+ * it over its standard input.
+ *
+ * This follows the same protocol as PushyClient in pushy/client.py: the
+ * process is started with the program returned by {@link #getProgram},
+ * which reads and executes the compressed source of pushy/client.py; that
+ * then reads the digest of the package payload, and the payload itself
+ * if the process does not have it cached.
+ */
+public class Bootstrap
+{
+    // The loader program is taken from realServerLoaderSource in
+    // pushy/client.py, so the two cannot diverge.
+    private static final String LOADER_START =
+        "realServerLoaderSource = \"\"\"";
+    private static final String LOADER_END = "\"\"\".strip()";
+
+    private static Bootstrap instance;
+
+    private String program;
+    private byte[] serverSource;
+    private byte[] payload;
+    private String digest;
+
+    /**
+     * Create a bootstrap for the specified Python package sources.
+     *
+     * @param sources A map of path, relative to the directory containing the
+     *                "pushy" package, to byte array contents.
+     */
+    public Bootstrap(Map sources) throws IOException
+    {
+        byte[] client = (byte[])sources.get("pushy/client.py");
+        if (client == null)
+            throw new IOException("Missing pushy/client.py");
+        serverSource = compress(Marshal.dump(client));
+        payload = compress(getPackages(sources));
+        digest = toHex(md5(payload));
+
+        String loader = formatLoader(
+            getLoader(client), serverSource.length, md5(serverSource));
+        StringBuffer program = new StringBuffer(
+            "exec reduce(lambda a,b: a+b, map(chr, (");
+        for (int i = 0; i < loader.length(); ++i)
+        {
+            if (i > 0)
+                program.append(',');
+            program.append((int)loader.charAt(i));
+        }
+        this.program = program.append(")))").toString();
+    }
+
+    /**
+     * Get the bootstrap for the Pushy package that this class was loaded
+     * with. The package is read and compressed once, and shared.
+     */
+    public static synchronized Bootstrap getInstance() throws IOException
+    {
+        if (instance == null)
+            instance = new Bootstrap(loadSources());
+        return instance;
+    }
+
+    /**
+     * Get the program to pass to "python -c". It contains no quote
+     * characters, so may be passed through a shell in double quotes.
+     */
+    public String getProgram()
+    {
+        return program;
+    }
+
+    /**
+     * Get the MD5 digest of the package payload, as a hex string.
+     */
+    public String getDigest()
+    {
+        return digest;
+    }
+
+    /**
+     * Start the server, in a process started with the program returned by
+     * {@link #getProgram}. On return, the streams are ready to be used for a
+     * {@link Connection}.
+     *
+     * @return true if the process had the package cached, and it was not
+     *         sent.
+     */
+    public boolean start(InputStream in, OutputStream out) throws IOException
+    {
+        out.write(serverSource);
+        out.write((digest + "\n").getBytes("US-ASCII"));
+        out.flush();
+
+        int cached = in.read();
+        if (cached == '1')
+            return true;
+        if (cached != '0')
+            throw new IOException("Unexpected response from server");
+        out.write(new byte[]{
+            (byte)(payload.length >>> 24), (byte)(payload.length >>> 16),
+            (byte)(payload.length >>> 8), (byte)payload.length});
+        out.write(payload);
+        out.flush();
+        return false;
+    }
+
+    // Extract the body of realServerLoaderSource from the source of
+    // pushy/client.py, stripped as it is by Python.
+    private static String getLoader(byte[] client) throws IOException
+    {
+        String source = new String(stripCR(client), "ISO-8859-1");
+        int start = source.indexOf(LOADER_START);
+        int end = start == -1 ? -1 : source.indexOf(LOADER_END, start);
+        if (end == -1)
+        {
+            throw new IOException(
+                "Missing realServerLoaderSource in pushy/client.py");
+        }
+        String loader = source.substring(start + LOADER_START.length(), end);
+        if (loader.indexOf('\\') != -1)
+        {
+            throw new IOException(
+                "Unsupported escape in realServerLoaderSource");
+        }
+        return loader.trim();
+    }
+
+    // Substitute the server source length and digest into the loader, as
+    // the "%" operator does in pushy/client.py.
+    private static String formatLoader(
+        String loader, int length, byte[] digest) throws IOException
+    {
+        StringBuffer formatted = new StringBuffer();
+        int argument = 0;
+        for (int i = 0; i < loader.length(); ++i)
+        {
+            char c = loader.charAt(i);
+            if (c != '%')
+            {
+                formatted.append(c);
+                continue;
+            }
+            char conversion = ++i < loader.length() ? loader.charAt(i) : 0;
+            if (conversion == '%')
+                formatted.append('%');
+            else if (conversion == 'd' && argument++ == 0)
+                formatted.append(length);
+            else if (conversion == 'r' && argument++ == 1)
+                formatted.append(toLiteral(digest));
+            else
+                throw new IOException("Unexpected format in loader");
+        }
+        if (argument != 2)
+            throw new IOException("Unexpected format in loader");
+        return formatted.toString();
+    }
+
+    // Marshal the package hierarchy in the form expected by
+    // InMemoryImporter: a tuple of (packages, modules), where each package
+    // is a list of [directory, subpackages, modules].
+    private static byte[] getPackages(Map sources) throws IOException
+    {
+        Map packages = new TreeMap();
+        Map directories = new TreeMap();
+        for (Iterator iter = sources.entrySet().iterator(); iter.hasNext();)
+        {
+            Map.Entry entry = (Map.Entry)iter.next();
+            String path = (String)entry.getKey();
+            int slash = path.lastIndexOf('/');
+            if (slash == -1 || !path.endsWith(".py"))
+                continue;
+            String directory = path.substring(0, slash);
+            String name = path.substring(slash + 1, path.length() - 3);
+            Map modules = (Map)directories.get(directory);
+            if (modules == null)
+            {
+                modules = new TreeMap();
+                directories.put(directory, modules);
+            }
+            byte[] source = stripCR((byte[])entry.getValue());
+            modules.put(name, Marshal.dump(source));
+        }
+
+        // Directories sort before their subdirectories, so parent packages
+        // are always added first. Directories without an __init__.py are not
+        // packages, and neither are their subdirectories.
+        for (Iterator iter = directories.entrySet().iterator();
+             iter.hasNext();)
+        {
+            Map.Entry entry = (Map.Entry)iter.next();
+            String directory = (String)entry.getKey();
+            Map modules = (Map)entry.getValue();
+            if (!modules.containsKey("__init__"))
+                continue;
+            String[] parts = directory.split("/");
+            Map parent = packages;
+            for (int i = 0; i < parts.length - 1 && parent != null; ++i)
+            {
+                Object[] package_ = (Object[])parent.get(parts[i]);
+                parent = package_ == null ? null : (Map)package_[1];
+            }
+            if (parent != null)
+            {
+                parent.put(parts[parts.length - 1],
+                           new Object[]{directory, new TreeMap(), modules});
+            }
+        }
+
+        MarshalBuffer buffer = new MarshalBuffer();
+        Marshal.dumpTupleHeader(2, buffer);
+        Marshal.dumpDict(packages, buffer);
+        Marshal.dumpDict(new TreeMap(), buffer);
+        return buffer.toByteArray();
+    }
+
+    // Read the Python sources of the Pushy package from the jar file or
+    // directory this class was loaded from.
+    private static Map loadSources() throws IOException
+    {
+        URL url = Bootstrap.class.getResource("/pushy/__init__.py");
+        if (url == null)
+            throw new IOException("Unable to find the Pushy Python package");
+
+        Map sources = new TreeMap();
+        if (url.getProtocol().equals("jar"))
+        {
+            JarFile jar =
+                ((JarURLConnection)url.openConnection()).getJarFile();
+            for (Enumeration e = jar.entries(); e.hasMoreElements();)
+            {
+                JarEntry entry = (JarEntry)e.nextElement();
+                String name = entry.getName();
+                if (name.startsWith("pushy/") && name.endsWith(".py"))
+                    sources.put(name, readFully(jar.getInputStream(entry)));
+            }
+        }
+        else if (url.getProtocol().equals("file"))
+        {
+            File init = new File(URLDecoder.decode(url.getPath(), "UTF-8"));
+            loadSources(init.getParentFile(), "pushy", sources);
+        }
+        else
+        {
+            throw new IOException(
+                "Unable to read the Pushy Python package from " + url);
+        }
+        return sources;
+    }
+
+    private static void loadSources(File directory, String path, Map sources)
+        throws IOException
+    {
+        File[] files = directory.listFiles();
+        for (int i = 0; files != null && i < files.length; ++i)
+        {
+            String name = path + "/" + files[i].getName();
+            if (files[i].isDirectory())
+                loadSources(files[i], name, sources);
+            else if (name.endsWith(".py"))
+                sources.put(name, readFully(new FileInputStream(files[i])));
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException
+    {
+        try
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int nread;
+            while ((nread = in.read(buffer)) != -1)
+                out.write(buffer, 0, nread);
+            return out.toByteArray();
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private static byte[] stripCR(byte[] source)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(source.length);
+        for (int i = 0; i < source.length; ++i)
+            if (source[i] != '\r')
+                out.write(source[i]);
+        return out.toByteArray();
+    }
+
+    private static byte[] compress(byte[] data)
+    {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished())
+            out.write(buffer, 0, deflater.deflate(buffer));
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    private static byte[] md5(byte[] data)
+    {
+        try
+        {
+            return MessageDigest.getInstance("MD5").digest(data);
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes)
+    {
+        StringBuffer hex = new StringBuffer();
+        for (int i = 0; i < bytes.length; ++i)
+        {
+            hex.append(Character.forDigit((bytes[i] >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(bytes[i] & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    // Format bytes as a Python string literal.
+    private static String toLiteral(byte[] bytes)
+    {
+        StringBuffer literal = new StringBuffer("'");
+        for (int i = 0; i < bytes.length; ++i)
+        {
+            literal.append("\\x");
+            literal.append(Character.forDigit((bytes[i] >> 4) & 0xf, 16));
+            literal.append(Character.forDigit(bytes[i] & 0xf, 16));
+        }
+        return literal.append("'").toString();
+    }
+}
+
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2013 Andrew Wilkins <axwalk@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package pushy.internal;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A pool of heap byte buffers, used to hold the payloads of received
+ * messages, so that reading a stream of large messages does not allocate a
+ * new array for each one.
+ *
+ * Buffers are pooled in power-of-two size classes, from 256 bytes to 1MB.
+ * Larger buffers are allocated on demand and not pooled.
+ */
+class BufferPool
+{
+    private static final int MIN_SHIFT = 8;
+    private static final int MAX_SHIFT = 20;
+    private static final int MAX_POOLED_PER_CLASS = 8;
+
+    private static List[] pools = new List[MAX_SHIFT - MIN_SHIFT + 1];
+    static
+    {
+        for (int i = 0; i < pools.length; ++i)
+            pools[i] = new ArrayList();
+    }
+
+    /**
+     * Acquire a buffer with a capacity of at least the specified size. The
+     * buffer's limit is set to the size.
+     */
+    static ByteBuffer acquire(int size)
+    {
+        if (size < 0)
+            throw new IllegalArgumentException("size must not be negative");
+        int index = getSizeClass(size);
+        ByteBuffer buffer = null;
+        if (index < pools.length)
+        {
+            List pool = pools[index];
+            synchronized (pool)
+            {
+                if (!pool.isEmpty())
+                    buffer = (ByteBuffer)pool.remove(pool.size() - 1);
+            }
+            if (buffer == null)
+                buffer = ByteBuffer.allocate(1 << (index + MIN_SHIFT));
+        }
+        else
+        {
+            buffer = ByteBuffer.allocate(size);
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Return a buffer acquired from the pool.
+     */
+    static void release(ByteBuffer buffer)
+    {
+        int capacity = buffer.capacity();
+        int index = getSizeClass(capacity);
+        if (index >= pools.length || (1 << (index + MIN_SHIFT)) != capacity)
+            return;
+
+        List pool = pools[index];
+        synchronized (pool)
+        {
+            if (pool.size() < MAX_POOLED_PER_CLASS)
+                pool.add(buffer);
+        }
+    }
+
+    /**
+     * Get the index of the smallest size class that can hold the specified
+     * number of bytes.
+     */
+    private static int getSizeClass(int size)
+    {
+        int shift = MIN_SHIFT;
+        while ((1 << shift) < size && shift <= MAX_SHIFT)
+            ++shift;
+        return shift - MIN_SHIFT;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2013 Andrew Wilkins <axwalk@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package pushy.internal;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An output stream which writes to a channel. If the channel is a
+ * non-blocking selectable channel, writes wait for it to become writable
+ * with a selector of their own.
+ *
+ * Unlike the streams returned by java.nio.channels.Channels, writing does
+ * not lock the channel's blocking lock, so a thread may write to the
+ * channel while another is blocked reading from it.
+ */
+public class ChannelOutputStream extends OutputStream
+{
+    private WritableByteChannel channel;
+    private volatile Selector selector;
+
+    public ChannelOutputStream(WritableByteChannel channel)
+    {
+        this.channel = channel;
+    }
+
+    public void write(int b) throws IOException
+    {
+        write(new byte[]{(byte)b}, 0, 1);
+    }
+
+    public synchronized void write(byte[] b, int offset, int length)
+        throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(b, offset, length);
+        while (buffer.hasRemaining())
+        {
+            if (channel.write(buffer) == 0)
+                awaitWritable();
+        }
+    }
+
+    // Wait for a non-blocking channel to become writable.
+    private void awaitWritable() throws IOException
+    {
+        if (selector == null)
+        {
+            selector = Selector.open();
+            ((SelectableChannel)channel).register(
+                selector, SelectionKey.OP_WRITE);
+        }
+        try
+        {
+            selector.select();
+            selector.selectedKeys().clear();
+        }
+        catch (ClosedSelectorException e)
+        {
+            // The stream was closed while waiting.
+            throw new ClosedChannelException();
+        }
+    }
+
+    public void close() throws IOException
+    {
+        try
+        {
+            channel.close();
+        }
+        finally
+        {
+            // Closing the selector wakes any thread waiting on it.
+            Selector selector = this.selector;
+            if (selector != null)
+                selector.close();
+        }
+    }
+}
+
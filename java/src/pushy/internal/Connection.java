@@ -26,12 +26,14 @@
 package pushy.internal;
 
 import pushy.Module;
+import pushy.PushyFuture;
 import pushy.PushyObject;
 
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.IOException;
 
+import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
@@ -108,21 +110,26 @@ public class Connection extends BaseConnection
     {
         try
         {
-            // Convert the keyword arguments to a tuple of items.
-            Object[] kwargs_items = null;
-            if (kwargs != null)
-            {
-                kwargs_items = new Object[kwargs.size()];
-                Iterator iter = kwargs.entrySet().iterator();
-                for (int i = 0; iter.hasNext(); ++i)
-                {
-                    Map.Entry entry = (Map.Entry)iter.next();
-                    kwargs_items[i] = new Object[]{entry.getKey(),
-                                                   entry.getValue()};
-                }
-            }
+            return sendRequest(
+                type, new Object[]{object, args, getItems(kwargs)});
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
 
-            return sendRequest(type, new Object[]{object, args, kwargs_items});
+    /**
+     * Call this method for asynchronous "op__xxx___" message type requests.
+     */
+    private PushyFuture
+    invokeOperatorAsync(Message.Type type, Object object, Object[] args,
+                        Map kwargs)
+    {
+        try
+        {
+            return sendRequestAsync(
+                type, new Object[]{object, args, getItems(kwargs)});
         }
         catch (IOException e)
         {
@@ -130,6 +137,21 @@ public class Connection extends BaseConnection
         }
     }
 
+    // Convert keyword arguments to a tuple of items.
+    private static Object[] getItems(Map kwargs)
+    {
+        if (kwargs == null)
+            return null;
+        Object[] items = new Object[kwargs.size()];
+        Iterator iter = kwargs.entrySet().iterator();
+        for (int i = 0; iter.hasNext(); ++i)
+        {
+            Map.Entry entry = (Map.Entry)iter.next();
+            items[i] = new Object[]{entry.getKey(), entry.getValue()};
+        }
+        return items;
+    }
+
     public Object evaluate(String expression, Map locals, Map globals)
     {
         try
@@ -173,6 +195,167 @@ public class Connection extends BaseConnection
         }
     }
 
+    public PushyFuture getattrAsync(Object object, String name)
+    {
+        try
+        {
+            return sendRequestAsync(Message.Type.getattr,
+                                    new Object[]{object, name});
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Look up a chain of attributes in a single request.
+     */
+    public Object getpath(Object object, String path)
+    {
+        try
+        {
+            return sendRequest(Message.Type.getpath,
+                               new Object[]{object, splitPath(path),
+                                            Boolean.FALSE, null, null});
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Look up a chain of attributes and call the last, in a single request.
+     */
+    public Object
+    callpath(Object object, String path, Object[] args, Map kwargs)
+    {
+        try
+        {
+            return sendRequest(Message.Type.getpath,
+                               new Object[]{object, splitPath(path),
+                                            Boolean.TRUE, args,
+                                            getItems(kwargs)});
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Execute a sequence of operations in a single request, returning their
+     * results.
+     *
+     * Each operation is an array of {kind, operands, refs, kwnames}, where
+     * kind is one of "evaluate", "getattr", "getitem" or "call". The
+     * operands at the indices in refs are the indices of earlier operations,
+     * whose results are substituted for them. The last kwnames.length
+     * operands of a call are its keyword arguments.
+     */
+    public Object[] compound(Object[] operations)
+    {
+        try
+        {
+            Object[] results = toObjectArray(
+                sendRequest(Message.Type.compound, operations));
+
+            // As for the result of any request, return the "real" objects
+            // for objects exported by this connection.
+            for (int i = 0; i < results.length; ++i)
+            {
+                if (results[i] instanceof ExportedObject)
+                {
+                    ExportedObject eo = (ExportedObject)results[i];
+                    if (eo.getConnection() == this)
+                        results[i] = eo.getObject();
+                }
+            }
+            return results;
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Execute the operations of a "compound" request.
+    private Object[] compound(Object[] operations, Object[] results)
+    {
+        for (int i = 0; i < operations.length; ++i)
+        {
+            Object[] operation = toObjectArray(operations[i]);
+            String kind = (String)operation[0];
+            Object[] operands = toObjectArray(operation[1]);
+            Object[] refs = toObjectArray(operation[2]);
+            Object[] kwnames = toObjectArray(operation[3]);
+            for (int j = 0; refs != null && j < refs.length; ++j)
+            {
+                int index = ((Number)refs[j]).intValue();
+                int ref = ((Number)operands[index]).intValue();
+                operands[index] = results[ref];
+            }
+
+            PushyObject target = (PushyObject)operands[0];
+            if (kind.equals("getattr"))
+            {
+                results[i] = target.__getattr__((String)operands[1]);
+            }
+            else if (kind.equals("getitem"))
+            {
+                results[i] = target.__getitem__(operands[1]);
+            }
+            else if (kind.equals("call"))
+            {
+                int nkwargs = kwnames == null ? 0 : kwnames.length;
+                int nargs = operands.length - nkwargs;
+                Object[] args = new Object[nargs - 1];
+                System.arraycopy(operands, 1, args, 0, args.length);
+                Map kwargs = null;
+                if (nkwargs > 0)
+                {
+                    kwargs = new HashMap();
+                    for (int j = 0; j < nkwargs; ++j)
+                        kwargs.put(kwnames[j], operands[nargs + j]);
+                }
+                results[i] = target.__call__(args, kwargs);
+            }
+            else
+            {
+                throw new UnsupportedOperationException(
+                    "Unsupported operation: " + kind);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Convert an unmarshalled tuple, which may have been loaded into an
+     * array of primitives, to an array of objects.
+     */
+    public static Object[] toObjectArray(Object array)
+    {
+        if (array == null || array instanceof Object[])
+            return (Object[])array;
+        Object[] objects = new Object[Array.getLength(array)];
+        for (int i = 0; i < objects.length; ++i)
+            objects[i] = Array.get(array, i);
+        return objects;
+    }
+
+    // Split a dot-separated attribute path into its names.
+    static String[] splitPath(String path)
+    {
+        String[] names = path.split("\\.", -1);
+        for (int i = 0; i < names.length; ++i)
+        {
+            if (names[i].length() == 0)
+                throw new IllegalArgumentException("Invalid path: " + path);
+        }
+        return names;
+    }
+
     public void setattr(Object object, String name, Object value)
     {
         try
@@ -210,6 +393,12 @@ public class Connection extends BaseConnection
         return invokeOperator(Message.Type.op__call__, object, args, kwargs);
     }
 
+    public PushyFuture callAsync(Object object, Object[] args, Map kwargs)
+    {
+        return invokeOperatorAsync(
+                   Message.Type.op__call__, object, args, kwargs);
+    }
+
     public String str(Object object)
     {
         try
@@ -232,9 +421,9 @@ public class Connection extends BaseConnection
 
         if (type.equals(Message.Type.as_tuple))
         {
-            Object[] args = (Object[])arg;
+            Object[] args = toObjectArray(arg);
             type = Message.Type.getType(((Number)args[0]).intValue());
-            Object result = handle(type, args[1]);
+            Object result = handleInternal(type, args[1]);
             return createArray(result);
         }
 
@@ -245,6 +434,33 @@ public class Connection extends BaseConnection
             return ((PushyObject)args[0]).__getattr__((String)args[1]);
         }
 
+        // Attribute chains
+        if (type.equals(Message.Type.getpath))
+        {
+            Object[] args = (Object[])arg;
+            StringBuffer path = new StringBuffer();
+            Object[] names = toObjectArray(args[1]);
+            for (int i = 0; i < names.length; ++i)
+            {
+                if (i > 0)
+                    path.append('.');
+                path.append(names[i]);
+            }
+            PushyObject object = (PushyObject)args[0];
+            if (!((Boolean)args[2]).booleanValue())
+                return object.__getpath__(path.toString());
+            return object.__callpath__(path.toString(),
+                                       toObjectArray(args[3]),
+                                       getKeywords((Object[])args[4]));
+        }
+
+        // Compound requests
+        if (type.equals(Message.Type.compound))
+        {
+            Object[] operations = toObjectArray(arg);
+            return compound(operations, new Object[operations.length]);
+        }
+
         // __setattr__
         if (type.equals(Message.Type.setattr))
         {
@@ -268,24 +484,30 @@ public class Connection extends BaseConnection
         if (type.equals(Message.Type.op__call__))
         {
             Object[] args = (Object[])arg;
-            Object[] kwargs = (Object[])args[2];
-            Map kwargsMap = null;
-            if (kwargs != null && kwargs.length > 0)
-            {
-                kwargsMap = new HashMap();
-                for (int i = 0; i < kwargs.length; ++i)
-                {
-                    Object[] pair = (Object[])kwargs[i];
-                    kwargsMap.put(pair[0], pair[1]);
-                }
-            }
             return ((PushyObject)args[0]).__call__(
-                       (Object[])args[1], kwargsMap);
+                       toObjectArray(args[1]),
+                       getKeywords((Object[])args[2]));
         }
 
         throw new UnsupportedOperationException("Unsupported type: " + type);
     }
 
+    // Convert a tuple of keyword argument items to a map.
+    private static Map getKeywords(Object[] kwargs)
+    {
+        Map kwargsMap = null;
+        if (kwargs != null && kwargs.length > 0)
+        {
+            kwargsMap = new HashMap();
+            for (int i = 0; i < kwargs.length; ++i)
+            {
+                Object[] pair = (Object[])kwargs[i];
+                kwargsMap.put(pair[0], pair[1]);
+            }
+        }
+        return kwargsMap;
+    }
+
     // Convert an object to an array, to support the "as_tuple" message.
     private static Object createArray(Object object)
     {
@@ -25,6 +25,7 @@
 
 package pushy.internal;
 
+import pushy.PushyFuture;
 import pushy.PushyObject;
 
 public class DelegatingPushyObject implements PushyObject
@@ -36,49 +37,78 @@ public class DelegatingPushyObject implements PushyObject
         this.delegate = delegate;
     }
 
+    /**
+     * Get the object to which calls are delegated.
+     */
+    protected PushyObject getDelegate()
+    {
+        return delegate;
+    }
+
     public boolean __hasattr__(String key)
     {
-        return delegate.__hasattr__(key);
+        return getDelegate().__hasattr__(key);
     }
 
     public Object __getattr__(String name)
     {
-        return delegate.__getattr__(name);
+        return getDelegate().__getattr__(name);
+    }
+
+    public Object __getpath__(String path)
+    {
+        return getDelegate().__getpath__(path);
+    }
+
+    public Object __callpath__(String path, Object[] args,
+                               java.util.Map kwargs)
+    {
+        return getDelegate().__callpath__(path, args, kwargs);
     }
 
     public void __setattr__(String name, Object value)
     {
-        delegate.__setattr__(name, value);
+        getDelegate().__setattr__(name, value);
     }
 
     public Object __getitem__(Object key)
     {
-        return delegate.__getitem__(key);
+        return getDelegate().__getitem__(key);
     }
 
     public void __setitem__(Object key, Object value)
     {
-        delegate.__setitem__(key, value);
+        getDelegate().__setitem__(key, value);
     }
 
     public int __len__()
     {
-        return delegate.__len__();
+        return getDelegate().__len__();
     }
 
     public Object __call__()
     {
-        return delegate.__call__();
+        return getDelegate().__call__();
     }
 
     public Object __call__(Object[] args)
     {
-        return delegate.__call__(args);
+        return getDelegate().__call__(args);
     }
 
     public Object __call__(Object[] args, java.util.Map kwargs)
     {
-        return delegate.__call__(args, kwargs);
+        return getDelegate().__call__(args, kwargs);
+    }
+
+    public PushyFuture __call_async__(Object[] args)
+    {
+        return getDelegate().__call_async__(args);
+    }
+
+    public PushyFuture __call_async__(Object[] args, java.util.Map kwargs)
+    {
+        return getDelegate().__call_async__(args, kwargs);
     }
 }
 
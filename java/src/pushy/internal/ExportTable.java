@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2013 Andrew Wilkins <axwalk@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package pushy.internal;
+
+/**
+ * The table of objects exported to the peer, keyed by ID.
+ *
+ * IDs are allocated from a free list: when the peer deletes its proxy for an
+ * object, the object's ID is reused for the next object exported. IDs
+ * therefore stay dense, and objects are stored in an array indexed by ID,
+ * without boxing the keys or hashing.
+ *
+ * Reuse of an ID is safe because the peer holds at most one proxy for an ID
+ * at a time, and deletes it, naming the version it last received, before
+ * the ID is freed. A delete for an older version is ignored.
+ */
+public class ExportTable
+{
+    private static final int INITIAL_CAPACITY = 16;
+
+    private ExportedObject[] objects = new ExportedObject[INITIAL_CAPACITY];
+    private int[] freeIds = new int[INITIAL_CAPACITY];
+    private int freeCount = 0;
+    private int nextId = 0;
+    private int size = 0;
+
+    /**
+     * Allocate an ID for an object to be exported, and store the object
+     * created for it by the factory.
+     */
+    public synchronized ExportedObject export(Factory factory)
+    {
+        int id;
+        if (freeCount > 0)
+        {
+            id = freeIds[--freeCount];
+        }
+        else
+        {
+            id = nextId++;
+            if (id == objects.length)
+            {
+                ExportedObject[] grown = new ExportedObject[id * 2];
+                System.arraycopy(objects, 0, grown, 0, id);
+                objects = grown;
+            }
+        }
+        ExportedObject eo = factory.create(id);
+        objects[id] = eo;
+        ++size;
+        return eo;
+    }
+
+    /**
+     * Get the object with the specified ID, or null if there is none.
+     */
+    public synchronized ExportedObject get(int id)
+    {
+        if (id < 0 || id >= nextId)
+            return null;
+        return objects[id];
+    }
+
+    /**
+     * Check whether the object is still exported under its ID.
+     */
+    public synchronized boolean contains(ExportedObject eo)
+    {
+        return get(eo.getId().intValue()) == eo;
+    }
+
+    /**
+     * Remove the object with the specified ID, if the peer's last received
+     * version of it is the current one, and free the ID. Returns true if the
+     * object was removed.
+     */
+    public synchronized boolean remove(int id, int version)
+    {
+        ExportedObject eo = get(id);
+        if (eo == null || eo.getVersion() != version)
+            return false;
+        objects[id] = null;
+        if (freeCount == freeIds.length)
+        {
+            int[] grown = new int[freeCount * 2];
+            System.arraycopy(freeIds, 0, grown, 0, freeCount);
+            freeIds = grown;
+        }
+        freeIds[freeCount++] = id;
+        --size;
+        return true;
+    }
+
+    /**
+     * Get the number of objects exported.
+     */
+    public synchronized int size()
+    {
+        return size;
+    }
+
+    /**
+     * Creates the exported object for a newly allocated ID.
+     */
+    public static interface Factory
+    {
+        public ExportedObject create(int id);
+    }
+}
@@ -25,6 +25,7 @@
 
 package pushy.internal;
 
+import pushy.PushyFuture;
 import pushy.PushyObject;
 
 public class ExportedObject implements PushyObject
@@ -112,6 +113,12 @@ public class ExportedObject implements PushyObject
     }
 
     public Object __getattr__(String name)
+    {
+        return getField(object, name);
+    }
+
+    // Get the value of an object's public field.
+    private static Object getField(Object object, String name)
     {
         try
         {
@@ -128,6 +135,24 @@ public class ExportedObject implements PushyObject
         }
     }
 
+    public Object __getpath__(String path)
+    {
+        String[] names = Connection.splitPath(path);
+        Object value = object;
+        for (int i = 0; i < names.length; ++i)
+            value = getField(value, names[i]);
+        return value;
+    }
+
+    public Object __callpath__(String path, Object[] args,
+                               java.util.Map kwargs)
+    {
+        Object value = __getpath__(path);
+        if (value instanceof Callable)
+            return ((Callable)value).call(args, kwargs);
+        throw new UnsupportedOperationException("__call__");
+    }
+
     public void __setattr__(String name, Object value)
     {
         try
@@ -162,6 +187,24 @@ public class ExportedObject implements PushyObject
         throw new UnsupportedOperationException("__call__");
     }
 
+    public PushyFuture __call_async__(Object[] args)
+    {
+        return __call_async__(args, null);
+    }
+
+    public PushyFuture __call_async__(Object[] args, java.util.Map kwargs)
+    {
+        // The object is local, so there's nothing to wait for.
+        try
+        {
+            return ResponseFuture.completed(__call__(args, kwargs));
+        }
+        catch (RuntimeException e)
+        {
+            return ResponseFuture.failed(e);
+        }
+    }
+
     public int __len__()
     {
         throw new UnsupportedOperationException("__len__");
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2011 Andrew Wilkins <axwalk@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package pushy.internal;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Periodically sends a connection's pending deletes to the peer, so that
+ * objects released by this JVM are released by the peer even while the
+ * connection is otherwise idle.
+ *
+ * A single daemon thread checks all connections. Deletes that are due are
+ * written by a pool of writer threads, so that a connection whose peer has
+ * stopped reading does not hold up the others. The flusher refers to its
+ * connection weakly, and stops once the connection has been garbage
+ * collected or closed.
+ */
+class GCFlusher implements Runnable
+{
+    private static final Logger logger =
+        Logger.getLogger(GCFlusher.class.getName());
+
+    // The flusher checks at least this often, and more often if the garbage
+    // collection interval is shorter.
+    private static final int MAX_PERIOD_MILLIS = 1000;
+    private static final int MIN_PERIOD_MILLIS = 10;
+
+    private static ScheduledExecutorService scheduler = null;
+    private static ExecutorService writers = null;
+
+    private WeakReference connection;
+
+    private GCFlusher(BaseConnection connection)
+    {
+        this.connection = new WeakReference(connection);
+    }
+
+    /**
+     * Start a flusher for the connection.
+     */
+    static void start(BaseConnection connection)
+    {
+        new GCFlusher(connection).schedule(connection);
+    }
+
+    public void run()
+    {
+        BaseConnection connection = (BaseConnection)this.connection.get();
+        if (connection == null)
+            return;
+        try
+        {
+            if (connection.flushPendingDeletes())
+                schedule(connection);
+            else
+                logger.fine("Garbage collection flusher stopping");
+        }
+        catch (RuntimeException e)
+        {
+            logger.log(Level.WARNING, "Failed to send pending deletes", e);
+            schedule(connection);
+        }
+    }
+
+    private void schedule(BaseConnection connection)
+    {
+        long delay = Math.max(MIN_PERIOD_MILLIS,
+            Math.min(MAX_PERIOD_MILLIS, connection.getGCIntervalMillis()));
+        getScheduler().schedule(this, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Run a task that writes a connection's pending deletes. Writer threads
+     * are created as needed, and exit once they have been idle for a while.
+     */
+    static synchronized void execute(Runnable task)
+    {
+        if (writers == null)
+        {
+            writers = new ThreadPoolExecutor(
+                0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                new SynchronousQueue(),
+                createThreadFactory("pushy-gc-writer"));
+        }
+        writers.execute(task);
+    }
+
+    private static synchronized ScheduledExecutorService getScheduler()
+    {
+        if (scheduler == null)
+        {
+            scheduler = new ScheduledThreadPoolExecutor(
+                1, createThreadFactory("pushy-gc"));
+        }
+        return scheduler;
+    }
+
+    private static ThreadFactory createThreadFactory(final String name)
+    {
+        return new ThreadFactory()
+        {
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
@@ -27,6 +27,9 @@ package pushy.internal;
 
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 
 /**
  * Utility class for local file operations.
@@ -43,18 +46,7 @@ public class LocalFileIO
             FileInputStream in = new FileInputStream(src);
             try
             {
-                FileOutputStream out = new FileOutputStream(dest);
-                try
-                {
-                    byte[] buffer = new byte[1024];
-                    int nread;
-                    while ((nread = in.read(buffer)) > 0)
-                        out.write(buffer, 0, nread);
-                }
-                finally
-                {
-                    out.close();
-                }
+                copy(in, new FileOutputStream(dest));
             }
             finally
             {
@@ -66,5 +58,25 @@ public class LocalFileIO
             throw new RuntimeException(e);
         }
     }
+
+    /**
+     * Copy the contents of an input stream to an output stream, and close
+     * the output stream. The input stream is left open.
+     */
+    public static void copy(InputStream in, OutputStream out)
+        throws IOException
+    {
+        try
+        {
+            byte[] buffer = new byte[65536];
+            int nread;
+            while ((nread = in.read(buffer)) > 0)
+                out.write(buffer, 0, nread);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
 }
 
@@ -25,8 +25,6 @@
 
 package pushy.internal;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.InputStream;
 import java.io.IOException;
@@ -36,7 +34,10 @@ import java.lang.reflect.Array;
 
 import java.math.BigInteger;
 
+import java.nio.ByteBuffer;
+
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 
 /**
@@ -64,8 +65,8 @@ public class Marshal
 
     // Handlers (class -> handler)
     private static Map handlers = new HashMap();
-    // Types (type code -> class)
-    private static Map types = new HashMap();
+    // Loaders (type code -> handler)
+    private static Handler[] loaders = new Handler[256];
 
     /**
      * Object types.
@@ -123,7 +124,18 @@ public class Marshal
      */
     public static boolean isMarshallableType(Class class_)
     {
-        return handlers.containsKey(class_);
+        return handlers.containsKey(class_) || isBytesType(class_);
+    }
+
+    /**
+     * Check if instances of the specified class hold binary data, which is
+     * marshalled as a string of bytes, without character conversion. These
+     * are byte arrays and ByteBuffers.
+     */
+    public static boolean isBytesType(Class class_)
+    {
+        return class_ == byte[].class ||
+               ByteBuffer.class.isAssignableFrom(class_);
     }
 
     /**
@@ -132,16 +144,9 @@ public class Marshal
     public static byte[]
     dump(Object object) throws IOException, MarshalException
     {
-        try
-        {
-            ByteArrayOutputStream stream = new ByteArrayOutputStream();
-            dump(object, stream);
-            return stream.toByteArray();
-        }
-        catch (IOException e)
-        {
-            throw new RuntimeException(e);
-        }
+        MarshalBuffer buffer = new MarshalBuffer();
+        dump(object, buffer);
+        return buffer.toByteArray();
     }
 
     /**
@@ -152,8 +157,7 @@ public class Marshal
     {
         try
         {
-            ByteArrayInputStream stream = new ByteArrayInputStream(bytes);
-            return load(stream);
+            return load(new MarshalReader(bytes, 0, bytes.length));
         }
         catch (IOException e)
         {
@@ -167,11 +171,35 @@ public class Marshal
     public static void
     dump(Object object, OutputStream stream)
         throws IOException, MarshalException
+    {
+        MarshalBuffer buffer = new MarshalBuffer();
+        dump(object, buffer);
+        buffer.writeTo(stream);
+    }
+
+    /**
+     * Marshal an object into a buffer.
+     */
+    static void dump(Object object, MarshalBuffer buffer)
+        throws MarshalException
     {
         // Handle null values.
         if (object == null)
         {
-            stream.write(Type.NONE);
+            buffer.putInt8(Type.NONE);
+            return;
+        }
+
+        // Handle binary data.
+        if (object instanceof byte[])
+        {
+            dumpBytes((byte[])object, buffer);
+            return;
+        }
+        else if (object instanceof ByteBuffer)
+        {
+            buffer.putInt8(Type.STRING);
+            buffer.putBytes((ByteBuffer)object);
             return;
         }
 
@@ -183,11 +211,13 @@ public class Marshal
             // thinks it can't modify any elements. If we say it's a list, then
             // the other side thinks it can modify the list structure. For now,
             // prefer the former.
-            int size = Array.getLength(object);
-            stream.write(Type.TUPLE);
-            putInt32(stream, size);
-            for (int i = 0; i < size; ++i)
-                dump(Array.get(object, i), stream);
+            if (!dumpPrimitiveArray(object, buffer))
+            {
+                int size = Array.getLength(object);
+                dumpTupleHeader(size, buffer);
+                for (int i = 0; i < size; ++i)
+                    dump(Array.get(object, i), buffer);
+            }
             return;
         }
 
@@ -195,7 +225,7 @@ public class Marshal
         Handler handler = (Handler)handlers.get(object.getClass());
         if (handler != null)
         {
-            handler.dump(stream, object);
+            handler.dump(buffer, object);
         }
         else
         {
@@ -205,121 +235,328 @@ public class Marshal
     }
 
     /**
-     * Unmarshal an object from an input stream.
+     * Marshal a byte array as a string, without character conversion.
      */
-    public static Object
-    load(InputStream stream) throws IOException, MarshalException
+    static void dumpBytes(byte[] value, MarshalBuffer buffer)
     {
-        int type = stream.read();
-        if (type == -1)
-            throw new EOFException();
+        buffer.putInt8(Type.STRING);
+        buffer.putBytes(value, 0, value.length);
+    }
 
-        if (type == Type.NULL || type == Type.NONE)
-            return null;
+    /**
+     * Marshal a map as a dictionary. Maps are normally proxied rather than
+     * marshalled; this is for data sent before there is a connection. The
+     * map's values may be further maps, or arrays containing maps.
+     */
+    static void dumpDict(Map map, MarshalBuffer buffer)
+        throws MarshalException
+    {
+        buffer.putInt8(Type.DICT);
+        for (Iterator iter = map.entrySet().iterator(); iter.hasNext();)
+        {
+            Map.Entry entry = (Map.Entry)iter.next();
+            dump(entry.getKey(), buffer);
+            dumpDictValue(entry.getValue(), buffer);
+        }
+        buffer.putInt8(Type.NULL);
+    }
 
-        // Load a tuple: size followed by size*objects.
-        if (type == Type.TUPLE)
+    private static void dumpDictValue(Object value, MarshalBuffer buffer)
+        throws MarshalException
+    {
+        if (value instanceof Map)
+        {
+            dumpDict((Map)value, buffer);
+        }
+        else if (value instanceof Object[])
         {
-            int size = getInt32(stream);
-            java.util.List items = new java.util.ArrayList();
-            for (int i = 0; i < size; ++i)
-                items.add(load(stream));
-            return createArray(items);
+            Object[] items = (Object[])value;
+            dumpTupleHeader(items.length, buffer);
+            for (int i = 0; i < items.length; ++i)
+                dumpDictValue(items[i], buffer);
         }
+        else
+        {
+            dump(value, buffer);
+        }
+    }
 
-        // Handle all other type codes.
-        Class class_ = (Class)types.get(new Integer(type));
-        if (class_ == null)
-            throw new MarshalException("unsupported type: " + (char)type);
-        return ((Handler)handlers.get(class_)).load(stream, type);
+    /**
+     * Write the type code and size of a tuple, which must be followed by
+     * the specified number of elements.
+     */
+    static void dumpTupleHeader(int size, MarshalBuffer buffer)
+    {
+        buffer.putInt8(Type.TUPLE);
+        buffer.putInt32(size);
+    }
+
+    /**
+     * Marshal an integer, without boxing it.
+     */
+    static void dumpInt(int value, MarshalBuffer buffer)
+    {
+        buffer.putInt8(Type.INT);
+        buffer.putInt32(value);
+    }
+
+    /**
+     * Marshal an array of a primitive type as a tuple, without boxing its
+     * elements. Returns false if the array is not of a primitive type whose
+     * wrapper type can be marshalled.
+     */
+    static boolean dumpPrimitiveArray(Object array, MarshalBuffer buffer)
+    {
+        if (array instanceof int[])
+        {
+            int[] values = (int[])array;
+            dumpTupleHeader(values.length, buffer);
+            for (int i = 0; i < values.length; ++i)
+                dumpInt(values[i], buffer);
+        }
+        else if (array instanceof long[])
+        {
+            long[] values = (long[])array;
+            dumpTupleHeader(values.length, buffer);
+            for (int i = 0; i < values.length; ++i)
+            {
+                buffer.putInt8(Type.INT64);
+                buffer.putInt64(values[i]);
+            }
+        }
+        else if (array instanceof short[])
+        {
+            short[] values = (short[])array;
+            dumpTupleHeader(values.length, buffer);
+            for (int i = 0; i < values.length; ++i)
+                dumpInt(values[i], buffer);
+        }
+        else if (array instanceof boolean[])
+        {
+            boolean[] values = (boolean[])array;
+            dumpTupleHeader(values.length, buffer);
+            for (int i = 0; i < values.length; ++i)
+                buffer.putInt8(values[i] ? Type.TRUE : Type.FALSE);
+        }
+        else if (array instanceof double[])
+        {
+            double[] values = (double[])array;
+            dumpTupleHeader(values.length, buffer);
+            for (int i = 0; i < values.length; ++i)
+                FloatHandler.dump(values[i], buffer);
+        }
+        else if (array instanceof float[])
+        {
+            float[] values = (float[])array;
+            dumpTupleHeader(values.length, buffer);
+            for (int i = 0; i < values.length; ++i)
+                FloatHandler.dump(values[i], buffer);
+        }
+        else
+        {
+            return false;
+        }
+        return true;
     }
 
     /**
-     * Write a 8-bit integer (byte).
+     * Unmarshal an object from an input stream.
      */
-    private static void
-    putInt8(OutputStream stream, byte value) throws IOException
+    public static Object
+    load(InputStream stream) throws IOException, MarshalException
     {
-        stream.write(value);
+        return load(new MarshalReader(stream));
     }
 
     /**
-     * Get an 8-bit integer (byte).
+     * Decodes tuples encountered while unmarshalling. This allows a caller
+     * to interpret tuples as it reads them, e.g. to reconstruct proxies,
+     * rather than first loading them as arrays.
      */
-    private static byte getInt8(InputStream stream) throws IOException
+    static interface TupleLoader
     {
-        return (byte)stream.read();
+        /**
+         * Load a tuple, whose type code and size have been read.
+         */
+        public Object loadTuple(MarshalReader reader, int size)
+            throws IOException;
     }
 
+    // Loads tuples as arrays of the most specific type.
+    private static final TupleLoader ARRAY_LOADER = new TupleLoader()
+    {
+        public Object loadTuple(MarshalReader reader, int size)
+            throws IOException
+        {
+            return loadArray(reader, size, this);
+        }
+    };
+
     /**
-     * Get a little-endian 16-bit integer.
+     * Unmarshal an object, loading tuples as arrays.
      */
-    private static short getInt16(InputStream stream) throws IOException
+    static Object load(MarshalReader reader)
+        throws IOException, MarshalException
     {
-        return (short)(stream.read() | (stream.read() << 8));
+        return load(reader, ARRAY_LOADER);
     }
 
     /**
-     * Write a little-endian 16-bit integer.
+     * Unmarshal an object, loading tuples with the specified loader.
      */
-    private static void
-    putInt16(OutputStream stream, short value) throws IOException
+    static Object load(MarshalReader reader, TupleLoader tuples)
+        throws IOException, MarshalException
     {
-        putInt8(stream, (byte)value);
-        putInt8(stream, (byte)(value >> 8));
+        int type = reader.read();
+        if (type == -1)
+            throw new EOFException();
+
+        if (type == Type.NULL || type == Type.NONE)
+            return null;
+
+        if (type == Type.TUPLE)
+            return tuples.loadTuple(reader, reader.readInt32());
+
+        // Handle all other type codes.
+        Handler handler = loaders[type];
+        if (handler == null)
+            throw new MarshalException("unsupported type: " + (char)type);
+        return handler.load(reader, type);
     }
 
     /**
-     * Get a little-endian 32-bit integer.
+     * Unmarshal an integer, without boxing it if it is encoded as a 32-bit
+     * integer.
      */
-    private static int getInt32(InputStream stream) throws IOException
+    static int loadInt(MarshalReader reader)
+        throws IOException, MarshalException
     {
-        int b0 = stream.read();
-        int b1 = stream.read();
-        int b2 = stream.read();
-        int b3 = stream.read();
-        return b0 | (b1 << 8) | (b2 << 16) | (b3 << 24);
+        if (reader.peek() == Type.INT)
+        {
+            reader.read();
+            return reader.readInt32();
+        }
+        return ((Number)load(reader)).intValue();
     }
 
     /**
-     * Write a little-endian 32-bit integer.
+     * Load the elements of a tuple into an array of the most specific type,
+     * as createArray does. Runs of integers, 64-bit integers, floats,
+     * booleans and strings are decoded directly into an array of the
+     * corresponding type. If the run does not extend to the end of the
+     * tuple, the remaining elements are loaded individually, with nested
+     * tuples loaded by the specified loader.
      */
-    private static void
-    putInt32(OutputStream stream, int value) throws IOException
+    static Object loadArray(MarshalReader reader, int size,
+                            TupleLoader tuples)
+        throws IOException, MarshalException
     {
-        putInt8(stream, (byte)value);
-        putInt8(stream, (byte)(value >> 8));
-        putInt8(stream, (byte)(value >> 16));
-        putInt8(stream, (byte)(value >> 24));
+        if (size == 0)
+            return new Object[]{};
+
+        Object array = null;
+        int n = 0;
+        switch (reader.peek())
+        {
+        case Type.INT:
+            int[] ints = new int[size];
+            for (; n < size && reader.peek() == Type.INT; ++n)
+            {
+                reader.read();
+                ints[n] = reader.readInt32();
+            }
+            array = ints;
+            break;
+        case Type.INT64:
+            long[] longs = new long[size];
+            for (; n < size && reader.peek() == Type.INT64; ++n)
+            {
+                reader.read();
+                longs[n] = reader.readInt64();
+            }
+            array = longs;
+            break;
+        case Type.FLOAT:
+            double[] doubles = new double[size];
+            for (; n < size && reader.peek() == Type.FLOAT; ++n)
+            {
+                reader.read();
+                doubles[n] = FloatHandler.load(reader);
+            }
+            array = doubles;
+            break;
+        case Type.TRUE:
+        case Type.FALSE:
+            boolean[] booleans = new boolean[size];
+            for (; n < size && isBoolean(reader.peek()); ++n)
+                booleans[n] = reader.read() == Type.TRUE;
+            array = booleans;
+            break;
+        case Type.STRING:
+        case Type.INTERNED:
+        case Type.UNICODE:
+            String[] strings = new String[size];
+            for (; n < size && isString(reader.peek()); ++n)
+                strings[n] = StringHandler.loadString(reader, reader.read());
+            array = strings;
+            break;
+        }
+        if (n == size)
+            return array;
+
+        // The elements are not all of the same type; box those decoded so
+        // far, and load the remainder individually.
+        Object[] items = new Object[size];
+        for (int i = 0; i < n; ++i)
+            items[i] = Array.get(array, i);
+        for (int i = n; i < size; ++i)
+            items[i] = load(reader, tuples);
+        return createArray(items);
     }
 
     /**
-     * Get a little-endian 64-bit integer.
+     * Unmarshal a string as a byte array, without character conversion.
      */
-    private static long getInt64(InputStream stream) throws IOException
+    static byte[] loadBytes(MarshalReader reader)
+        throws IOException, MarshalException
     {
-        long lo4 = (long)getInt32(stream);
-        long hi4 = (long)getInt32(stream);
-        return ((hi4 << 32) & 0xFFFFFFFF00000000L) | (lo4 & 0xFFFFFFFFL);
+        int type = reader.read();
+        if (type != Type.STRING && type != Type.INTERNED)
+            throw new MarshalException("expected string: " + (char)type);
+        return reader.readBytes(reader.readInt32());
     }
 
     /**
-     * Write a little-endian 64-bit integer.
+     * Load a tuple into an array of the most specific type, with nested
+     * tuples loaded by the specified loader.
      */
-    private static void
-    putInt64(OutputStream stream, long value) throws IOException
+    static Object loadArray(MarshalReader reader, TupleLoader tuples)
+        throws IOException, MarshalException
+    {
+        int type = reader.read();
+        if (type != Type.TUPLE)
+            throw new MarshalException("expected tuple: " + (char)type);
+        return loadArray(reader, reader.readInt32(), tuples);
+    }
+
+    private static boolean isBoolean(int type)
+    {
+        return type == Type.TRUE || type == Type.FALSE;
+    }
+
+    private static boolean isString(int type)
     {
-        putInt32(stream, (int)(value & 0xFFFFFFFFL));
-        putInt32(stream, (int)((value >> 32) & 0xFFFFFFFFL));
+        return type == Type.STRING || type == Type.INTERNED ||
+               type == Type.UNICODE;
     }
 
     /**
      * Get an arbitrary-precision integer.
      * @return A Integer, Long, or BigInteger.
      */
-    private static Number getLong(InputStream stream) throws IOException
+    private static Number getLong(MarshalReader reader) throws IOException
     {
-        int ndigits = getInt32(stream);
+        int ndigits = reader.readInt32();
         if (ndigits == 0)
             return new Integer(0);
 
@@ -330,7 +567,7 @@ public class Marshal
         BigInteger bigint = new BigInteger("0");
         short[] digits = new short[ndigits];
         for (int i = 0; i < ndigits; ++i)
-            digits[i] = getInt16(stream);
+            digits[i] = reader.readInt16();
         for (int i = 0; i < ndigits; ++i)
         {
             bigint = bigint.shiftLeft(LONG_SHIFT);
@@ -374,8 +611,7 @@ public class Marshal
     /**
      * Write an arbitrary-precision integer.
      */
-    private static void
-    putLong(OutputStream stream, BigInteger bigint) throws IOException
+    private static void putLong(MarshalBuffer buffer, BigInteger bigint)
     {
         int ndigits = 0;
         boolean negative = bigint.compareTo(BigInteger.ZERO) < 0;
@@ -388,66 +624,17 @@ public class Marshal
             t = t.shiftRight(LONG_SHIFT);
 
         // Write the size.
-        putInt32(stream, negative ? -ndigits : ndigits);
+        buffer.putInt32(negative ? -ndigits : ndigits);
 
         // Write the digits.
         t = new BigInteger(bigint.toString());
         for (int i = 0; i < ndigits; ++i)
         {
-            putInt16(stream, (short)(t.shortValue() & LONG_MASK));
+            buffer.putInt16(t.shortValue() & LONG_MASK);
             t = t.shiftRight(LONG_SHIFT);
         }
     }
 
-    /**
-     * Read a string.
-     */
-    private static String getString(InputStream stream) throws IOException
-    {
-        return getString(stream, "ISO-8859-1"); // LATIN-1
-    }
-
-    /**
-     * Read a string with the specified character set.
-     */
-    private static String
-    getString(InputStream stream, String charset) throws IOException
-    {
-        int size = getInt32(stream);
-        if (size == 0)
-            return "";
-        byte[] buf = getBytes(stream, size);
-        return new String(buf, charset);
-    }
-
-    private static byte[]
-    getBytes(InputStream stream, int size) throws IOException
-    {
-        byte[] buf = new byte[size];
-        if (size == 0)
-            return buf;
-        int nread = 0;
-        do
-        {
-            int partial = stream.read(buf, nread, buf.length-nread);
-            if (partial == -1)
-                throw new java.io.EOFException();
-            nread += partial;
-        } while (nread < buf.length);
-        return buf;
-    }
-
-    /**
-     * Write a string.
-     */
-    private static void
-    putString(OutputStream stream, String string) throws IOException
-    {
-        putInt32(stream, string.length());
-        byte[] bytes = string.getBytes("ISO-8859-1");
-        stream.write(bytes);
-    }
-
     private static Map primitiveTypes = new HashMap();
     static
     {
@@ -466,58 +653,64 @@ public class Marshal
      * array.
      */
     public static Object createArray(java.util.List list)
+    {
+        return createArray(list.toArray());
+    }
+
+    /**
+     * Convert an object array to an array of the most specific, primitive
+     * array.
+     */
+    static Object createArray(Object[] items)
     {
         // Convert to a type-specific array if all elements are of the
         // same type, otherwise just return an Object array.
-        if (list.isEmpty())
+        if (items.length == 0)
             return new Object[]{};
 
-        // Find the first non-null object in the array. Remember whether any
-        // null objects have been seen, so we know whether or not we can cast
-        // to a primitive array.
-        java.util.Iterator iter = list.iterator();
+        // Check that all non-null elements in the array are of the same
+        // type. Remember whether any null objects have been seen, so we know
+        // whether or not we can cast to a primitive array.
         boolean haveNull = false;
-        Object obj = iter.next();
-        while (obj == null && iter.hasNext())
+        Class compType = null;
+        for (int i = 0; i < items.length; ++i)
         {
-            haveNull = true;
-            obj = iter.next();
-        }
-
-        // Check that all elements in the array are of the same type, or null.
-        Class compType = Object.class;
-        if (obj != null)
-        {
-            compType = obj.getClass();
-            while (!compType.equals(Object.class) && iter.hasNext())
-            {
-                obj = iter.next();
-                if (obj == null)
-                    haveNull = true;
-                else if (!obj.getClass().equals(compType))
-                    compType = Object.class;
-            }
+            if (items[i] == null)
+                haveNull = true;
+            else if (compType == null)
+                compType = items[i].getClass();
+            else if (compType != items[i].getClass())
+                compType = Object.class;
         }
 
         // Either we have an array full of Objects, or an array of
         // heterogeneously typed objects.
-        if (compType.equals(Object.class))
-            return list.toArray(new Object[]{});
+        if (compType == null || compType.equals(Object.class))
+        {
+            if (items.getClass() == Object[].class)
+                return items;
+            Object[] array = new Object[items.length];
+            System.arraycopy(items, 0, array, 0, items.length);
+            return array;
+        }
 
         // If the type is an Object type corresponding to primitive
         // type (e.g. Integer), get the primitive type.
+        Class primitiveType = null;
         if (!haveNull)
-        {
-            Class primitiveType = (Class)primitiveTypes.get(compType);
-            if (primitiveType != null)
-                compType = primitiveType;
-        }
+            primitiveType = (Class)primitiveTypes.get(compType);
 
         // Create the array.
-        Object array = Array.newInstance(compType, list.size());
-        iter = list.iterator();
-        for (int i = 0; iter.hasNext(); ++i)
-            Array.set(array, i, iter.next());
+        if (primitiveType == null)
+        {
+            Object[] array =
+                (Object[])Array.newInstance(compType, items.length);
+            System.arraycopy(items, 0, array, 0, items.length);
+            return array;
+        }
+        Object array = Array.newInstance(primitiveType, items.length);
+        for (int i = 0; i < items.length; ++i)
+            Array.set(array, i, items[i]);
         return array;
     }
 
@@ -533,15 +726,15 @@ public class Marshal
         handlers.put(Double.class,     new FloatHandler());
         handlers.put(Float.class,      new FloatHandler());
 
-        types.put(new Integer(Type.INT),      Integer.class);
-        types.put(new Integer(Type.INT64),    Long.class);
-        types.put(new Integer(Type.LONG),     BigInteger.class);
-        types.put(new Integer(Type.STRING),   String.class);
-        types.put(new Integer(Type.INTERNED), String.class);
-        types.put(new Integer(Type.UNICODE),  String.class);
-        types.put(new Integer(Type.TRUE),     Boolean.class);
-        types.put(new Integer(Type.FALSE),    Boolean.class);
-        types.put(new Integer(Type.FLOAT),    Double.class);
+        loaders[Type.INT]      = (Handler)handlers.get(Integer.class);
+        loaders[Type.INT64]    = (Handler)handlers.get(Long.class);
+        loaders[Type.LONG]     = (Handler)handlers.get(BigInteger.class);
+        loaders[Type.STRING]   = (Handler)handlers.get(String.class);
+        loaders[Type.INTERNED] = (Handler)handlers.get(String.class);
+        loaders[Type.UNICODE]  = (Handler)handlers.get(String.class);
+        loaders[Type.TRUE]     = (Handler)handlers.get(Boolean.class);
+        loaders[Type.FALSE]    = (Handler)handlers.get(Boolean.class);
+        loaders[Type.FLOAT]    = (Handler)handlers.get(Double.class);
     }
 
     /**
@@ -549,68 +742,73 @@ public class Marshal
      */
     private static interface Handler
     {
-        public void dump(OutputStream stream, Object value) throws IOException;
-        public Object load(InputStream stream, int type) throws IOException;
+        public void dump(MarshalBuffer buffer, Object value);
+        public Object load(MarshalReader reader, int type)
+            throws IOException;
     }
 
     private static class IntegerHandler implements Handler
     {
-        public void dump(OutputStream stream, Object value) throws IOException
+        public void dump(MarshalBuffer buffer, Object value)
         {
-            stream.write(Type.INT);
-            putInt32(stream, ((Integer)value).intValue());
+            dumpInt(((Integer)value).intValue(), buffer);
         }
 
-        public Object load(InputStream stream, int type) throws IOException
+        public Object load(MarshalReader reader, int type)
+            throws IOException
         {
-            return new Integer(getInt32(stream));
+            return new Integer(reader.readInt32());
         }
     }
 
     private static class ShortHandler extends IntegerHandler
     {
-        public void dump(OutputStream stream, Object value) throws IOException
+        public void dump(MarshalBuffer buffer, Object value)
         {
-            super.dump(stream, new Integer(((Short)value).shortValue()));
+            dumpInt(((Short)value).shortValue(), buffer);
         }
     }
 
     private static class LongHandler implements Handler
     {
-        public void dump(OutputStream stream, Object value) throws IOException
+        public void dump(MarshalBuffer buffer, Object value)
         {
-            stream.write(Type.INT64);
-            putInt64(stream, ((Long)value).longValue());
+            buffer.putInt8(Type.INT64);
+            buffer.putInt64(((Long)value).longValue());
         }
 
-        public Object load(InputStream stream, int type) throws IOException
+        public Object load(MarshalReader reader, int type)
+            throws IOException
         {
-            return new Long(getInt64(stream));
+            return new Long(reader.readInt64());
         }
     }
 
     private static class BigIntegerHandler implements Handler
     {
-        public void dump(OutputStream stream, Object value) throws IOException
+        public void dump(MarshalBuffer buffer, Object value)
         {
-            stream.write(Type.LONG);
-            putLong(stream, (BigInteger)value);
+            buffer.putInt8(Type.LONG);
+            putLong(buffer, (BigInteger)value);
         }
 
-        public Object load(InputStream stream, int type) throws IOException
+        public Object load(MarshalReader reader, int type)
+            throws IOException
         {
-            return getLong(stream);
+            return getLong(reader);
         }
     }
 
     private static class BooleanHandler implements Handler
     {
-        public void dump(OutputStream stream, Object value) throws IOException
+        public void dump(MarshalBuffer buffer, Object value)
         {
-            stream.write(value.equals(Boolean.TRUE) ? Type.TRUE : Type.FALSE);
+            buffer.putInt8(
+                value.equals(Boolean.TRUE) ? Type.TRUE : Type.FALSE);
         }
 
-        public Object load(InputStream stream, int type) throws IOException
+        public Object load(MarshalReader reader, int type)
+            throws IOException
         {
             return type == Type.TRUE ? Boolean.TRUE : Boolean.FALSE;
         }
@@ -618,57 +816,60 @@ public class Marshal
 
     private static class StringHandler implements Handler
     {
-        public void dump(OutputStream stream, Object value) throws IOException
+        public void dump(MarshalBuffer buffer, Object value)
         {
-            stream.write(Type.STRING);
-            putString(stream, (String)value);
+            buffer.putInt8(Type.STRING);
+            buffer.putLatin1((String)value);
         }
 
-        public Object load(InputStream stream, int type) throws IOException
+        public Object load(MarshalReader reader, int type)
+            throws IOException
         {
+            return loadString(reader, type);
+        }
+
+        static String loadString(MarshalReader reader, int type)
+            throws IOException
+        {
+            String charset = "ISO-8859-1"; // LATIN-1
             if (type == Type.UNICODE)
-                return getString(stream, "UTF-8");
-            return getString(stream);
+                charset = "UTF-8";
+            return reader.readString(reader.readInt32(), charset);
         }
     }
 
     private static class FloatHandler implements Handler
     {
-        public void dump(OutputStream stream, Object value) throws IOException
+        public void dump(MarshalBuffer buffer, Object value)
         {
-            stream.write(Type.FLOAT);
+            dump(((Number)value).doubleValue(), buffer);
+        }
 
-            String s = format(((Number)value).doubleValue());
-            byte[] bytes = s.getBytes("ISO-8859-1");
-            putInt8(stream, (byte)bytes.length);
-            stream.write(bytes);
+        static void dump(double value, MarshalBuffer buffer)
+        {
+            buffer.putInt8(Type.FLOAT);
+            buffer.putShortLatin1(format(value));
         }
 
-        public Object load(InputStream stream, int type) throws IOException
+        public Object load(MarshalReader reader, int type)
+            throws IOException
         {
-            int n = getInt8(stream);
-            byte[] buf = getBytes(stream, n);
-            if (n == 3 && buf[0] == 'n' && buf[1] == 'a' && buf[2] == 'n')
-            {
-                return new Double(Double.NaN);
-            }
-            else if (n == 3 && buf[0] == 'i' && buf[1] == 'n' && buf[2] == 'f')
-            {
-                return new Double(Double.POSITIVE_INFINITY);
-            }
-            else if (n == 4 && buf[0] == '-' && buf[1] == 'i' &&
-                     buf[2] == 'n' && buf[3] == 'f')
-            {
-                return new Double(Double.NEGATIVE_INFINITY);
-            }
-            else
-            {
-                String repr = new String(buf, "ISO-8859-1");
-                return new Double(repr);
-            }
+            return new Double(load(reader));
+        }
+
+        static double load(MarshalReader reader) throws IOException
+        {
+            int n = reader.readInt8();
+            if (n == 3 && reader.match("nan"))
+                return Double.NaN;
+            else if (n == 3 && reader.match("inf"))
+                return Double.POSITIVE_INFINITY;
+            else if (n == 4 && reader.match("-inf"))
+                return Double.NEGATIVE_INFINITY;
+            return Double.parseDouble(reader.readString(n, "ISO-8859-1"));
         }
 
-        private String format(double value)
+        private static String format(double value)
         {
             if (Double.isNaN(value))
                 return "nan";
@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2013 Andrew Wilkins <axwalk@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package pushy.internal;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A growable byte buffer that values are marshalled into directly. Each
+ * thread has a buffer that is reused from one message to the next, so that
+ * encoding a request does not allocate once the buffer has grown to fit.
+ *
+ * Multi-byte integers are written in little-endian order, as required by
+ * the marshal format.
+ */
+class MarshalBuffer
+{
+    private static final int INITIAL_CAPACITY = 256;
+
+    // Buffers that have grown larger than this are not retained between
+    // uses, so a single large message does not pin memory in each thread.
+    private static final int MAX_RETAINED_CAPACITY = 1 << 16;
+
+    private static ThreadLocal threadLocal = new ThreadLocal();
+
+    private byte[] bytes;
+    private int    size;
+    private List   references;
+
+    MarshalBuffer()
+    {
+        this(INITIAL_CAPACITY);
+    }
+
+    MarshalBuffer(int capacity)
+    {
+        bytes = new byte[capacity];
+    }
+
+    /**
+     * Get the current thread's buffer, emptied, with the specified number of
+     * bytes reserved at the front (e.g. for a message header).
+     */
+    static MarshalBuffer get(int reserved)
+    {
+        MarshalBuffer buffer = (MarshalBuffer)threadLocal.get();
+        if (buffer == null || buffer.bytes.length > MAX_RETAINED_CAPACITY)
+        {
+            buffer = new MarshalBuffer();
+            threadLocal.set(buffer);
+        }
+        buffer.ensureCapacity(reserved);
+        buffer.size = reserved;
+        buffer.clearReferences();
+        return buffer;
+    }
+
+    /**
+     * Keep an object reachable until the buffer is next emptied, e.g. a
+     * proxy whose ID has been marshalled, so that it is not garbage
+     * collected before the message is written.
+     */
+    void addReference(Object object)
+    {
+        if (references == null)
+            references = new ArrayList();
+        references.add(object);
+    }
+
+    /**
+     * Release the objects kept reachable by addReference.
+     */
+    void clearReferences()
+    {
+        if (references != null && !references.isEmpty())
+            references.clear();
+    }
+
+    /**
+     * Get the number of bytes written to the buffer, including any reserved
+     * bytes.
+     */
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * Get the underlying array. Only the first size() bytes are valid, and
+     * the array may be replaced when the buffer next grows.
+     */
+    byte[] array()
+    {
+        return bytes;
+    }
+
+    /**
+     * Copy the contents of the buffer into a new array.
+     */
+    byte[] toByteArray()
+    {
+        byte[] copy = new byte[size];
+        System.arraycopy(bytes, 0, copy, 0, size);
+        return copy;
+    }
+
+    /**
+     * Write the contents of the buffer to a stream.
+     */
+    void writeTo(OutputStream stream) throws IOException
+    {
+        stream.write(bytes, 0, size);
+    }
+
+    void putInt8(int value)
+    {
+        ensureCapacity(size + 1);
+        bytes[size++] = (byte)value;
+    }
+
+    void putInt16(int value)
+    {
+        ensureCapacity(size + 2);
+        bytes[size++] = (byte)value;
+        bytes[size++] = (byte)(value >> 8);
+    }
+
+    void putInt32(int value)
+    {
+        ensureCapacity(size + 4);
+        bytes[size++] = (byte)value;
+        bytes[size++] = (byte)(value >> 8);
+        bytes[size++] = (byte)(value >> 16);
+        bytes[size++] = (byte)(value >> 24);
+    }
+
+    void putInt64(long value)
+    {
+        putInt32((int)value);
+        putInt32((int)(value >> 32));
+    }
+
+    /**
+     * Write a length-prefixed string of bytes.
+     */
+    void putBytes(byte[] value, int offset, int length)
+    {
+        putInt32(length);
+        ensureCapacity(size + length);
+        System.arraycopy(value, offset, bytes, size, length);
+        size += length;
+    }
+
+    /**
+     * Write the remaining bytes of a ByteBuffer as a length-prefixed string
+     * of bytes, without changing the ByteBuffer's position.
+     */
+    void putBytes(ByteBuffer value)
+    {
+        int length = value.remaining();
+        if (value.hasArray())
+        {
+            putBytes(value.array(), value.arrayOffset() + value.position(),
+                     length);
+        }
+        else
+        {
+            putInt32(length);
+            ensureCapacity(size + length);
+            value.duplicate().get(bytes, size, length);
+            size += length;
+        }
+    }
+
+    /**
+     * Write a length-prefixed string in ISO-8859-1 (Latin-1). Characters
+     * that cannot be represented are replaced with '?', as String.getBytes
+     * would do.
+     */
+    void putLatin1(String string)
+    {
+        int length = string.length();
+        putInt32(length);
+        ensureCapacity(size + length);
+        for (int i = 0; i < length; ++i)
+        {
+            char c = string.charAt(i);
+            bytes[size++] = (byte)(c > 0xFF ? '?' : c);
+        }
+    }
+
+    /**
+     * Write a string in ISO-8859-1 (Latin-1), prefixed with its length as
+     * an 8-bit integer. The string must be shorter than 256 characters.
+     */
+    void putShortLatin1(String string)
+    {
+        int length = string.length();
+        putInt8(length);
+        ensureCapacity(size + length);
+        for (int i = 0; i < length; ++i)
+            bytes[size++] = (byte)string.charAt(i);
+    }
+
+    /**
+     * Ensure the buffer can hold at least the specified number of bytes,
+     * growing it geometrically if required.
+     */
+    private void ensureCapacity(int capacity)
+    {
+        if (capacity > bytes.length)
+        {
+            int newCapacity = bytes.length * 2;
+            if (newCapacity < capacity)
+                newCapacity = capacity;
+            byte[] newBytes = new byte[newCapacity];
+            System.arraycopy(bytes, 0, newBytes, 0, size);
+            bytes = newBytes;
+        }
+    }
+}
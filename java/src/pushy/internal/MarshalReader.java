@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2013 Andrew Wilkins <axwalk@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package pushy.internal;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A source of marshalled data, read either from an array (e.g. a message's
+ * payload) or from a stream. Multi-byte integers are read in little-endian
+ * order, as required by the marshal format.
+ *
+ * When reading from a stream, only as many bytes as are required to decode
+ * each value are read, so that nothing following a marshalled object is
+ * consumed.
+ */
+class MarshalReader
+{
+    private final InputStream stream;
+    private byte[] bytes;
+    private int    position;
+    private int    limit;
+
+    /**
+     * Create a reader for the specified range of an array.
+     */
+    MarshalReader(byte[] bytes, int offset, int length)
+    {
+        this.stream   = null;
+        this.bytes    = bytes;
+        this.position = offset;
+        this.limit    = offset + length;
+    }
+
+    /**
+     * Create a reader for a stream.
+     */
+    MarshalReader(InputStream stream)
+    {
+        this.stream = stream;
+        this.bytes  = new byte[64];
+    }
+
+    /**
+     * Read an unsigned 8-bit integer, or return -1 at the end of input.
+     */
+    int read() throws IOException
+    {
+        if (position == limit && !fill(1))
+            return -1;
+        return bytes[position++] & 0xFF;
+    }
+
+    /**
+     * Peek at the next unsigned 8-bit integer, without consuming it.
+     * Returns -1 at the end of input.
+     */
+    int peek() throws IOException
+    {
+        if (position == limit && !fill(1))
+            return -1;
+        return bytes[position] & 0xFF;
+    }
+
+    byte readInt8() throws IOException
+    {
+        require(1);
+        return bytes[position++];
+    }
+
+    short readInt16() throws IOException
+    {
+        require(2);
+        int value = (bytes[position] & 0xFF) |
+                    ((bytes[position + 1] & 0xFF) << 8);
+        position += 2;
+        return (short)value;
+    }
+
+    int readInt32() throws IOException
+    {
+        require(4);
+        int value = (bytes[position] & 0xFF) |
+                    ((bytes[position + 1] & 0xFF) << 8) |
+                    ((bytes[position + 2] & 0xFF) << 16) |
+                    ((bytes[position + 3] & 0xFF) << 24);
+        position += 4;
+        return value;
+    }
+
+    long readInt64() throws IOException
+    {
+        long lo4 = readInt32() & 0xFFFFFFFFL;
+        long hi4 = readInt32() & 0xFFFFFFFFL;
+        return (hi4 << 32) | lo4;
+    }
+
+    /**
+     * Read a string of the specified length, in bytes.
+     */
+    String readString(int length, String charset) throws IOException
+    {
+        if (length == 0)
+            return "";
+        require(length);
+        String value = new String(bytes, position, length, charset);
+        position += length;
+        return value;
+    }
+
+    /**
+     * Read the specified number of bytes into a new array.
+     */
+    byte[] readBytes(int length) throws IOException
+    {
+        byte[] value = new byte[length];
+        if (length == 0)
+            return value;
+        require(length);
+        System.arraycopy(bytes, position, value, 0, length);
+        position += length;
+        return value;
+    }
+
+    /**
+     * Check whether the next bytes are equal to the specified ASCII string,
+     * consuming them if so.
+     */
+    boolean match(String ascii) throws IOException
+    {
+        int length = ascii.length();
+        require(length);
+        for (int i = 0; i < length; ++i)
+            if (bytes[position + i] != (byte)ascii.charAt(i))
+                return false;
+        position += length;
+        return true;
+    }
+
+    /**
+     * Ensure that at least the specified number of bytes are available,
+     * throwing EOFException if the input ends first.
+     */
+    private void require(int n) throws IOException
+    {
+        if ((limit - position) < n && !fill(n))
+            throw new EOFException();
+    }
+
+    /**
+     * Read from the stream, if any, until at least n bytes are available.
+     */
+    private boolean fill(int n) throws IOException
+    {
+        if (stream == null)
+            return false;
+
+        // Move the remaining bytes to the front, growing if required.
+        int remaining = limit - position;
+        byte[] target = bytes;
+        if (n > bytes.length)
+            target = new byte[Math.max(n, bytes.length * 2)];
+        System.arraycopy(bytes, position, target, 0, remaining);
+        bytes = target;
+        position = 0;
+        limit = remaining;
+
+        // Read exactly as many bytes as required.
+        while (limit < n)
+        {
+            int nread = stream.read(bytes, limit, n - limit);
+            if (nread == -1)
+                return false;
+            limit += nread;
+        }
+        return true;
+    }
+}
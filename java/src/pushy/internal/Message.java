@@ -25,19 +25,53 @@
 
 package pushy.internal;
 
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
  * A class for decoding, encoding and describing a message.
+ *
+ * The payload of a received message is held in a pooled buffer. Once the
+ * payload has been consumed, the message should be released, returning the
+ * buffer to the pool.
  */
 public class Message
 {
+    // type (1) + source (8) + target (8) + length (4)
+    static final int HEADER_SIZE = 21;
+
+    // Set in the type byte of a message whose payload is compressed with
+    // zlib. Message type codes are all less than this.
+    static final int COMPRESSED = 0x80;
+
+    // Compressors and decompressors are expensive to create, so each
+    // thread keeps one of each.
+    private static ThreadLocal deflaters = new ThreadLocal();
+    private static ThreadLocal inflaters = new ThreadLocal();
+
+    // The largest initial buffer for a decompressed payload, which is
+    // otherwise guessed to be four times the size of the compressed one,
+    // and the largest array that may be allocated.
+    private static final int MAX_INFLATE_GUESS = 1 << 24;
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
     private final Type   type;
-    private final byte[] payload;
+    private byte[]       payload;
+    private int          length;
+    private ByteBuffer   buffer;
+    private int          refCount;
     private long         target;
     private long         source;
+    private Object       value;
+    private RuntimeException error;
 
     /**
      * Create a new message, with the current thread designated as source
@@ -50,10 +84,24 @@ public class Message
 
     public Message(Type type, byte[] payload, long target, long source)
     {
-        this.type    = type;
-        this.payload = payload;
-        this.target  = target;
-        this.source  = source;
+        this.type     = type;
+        this.payload  = payload;
+        this.length   = payload.length;
+        this.target   = target;
+        this.source   = source;
+        this.refCount = 1;
+    }
+
+    // Create a message whose payload is held in a pooled buffer.
+    private Message(Type type, ByteBuffer buffer, long target, long source)
+    {
+        this.type     = type;
+        this.buffer   = buffer;
+        this.payload  = buffer.array();
+        this.length   = buffer.limit();
+        this.target   = target;
+        this.source   = source;
+        this.refCount = 1;
     }
 
     public Type getType()
@@ -71,15 +119,106 @@ public class Message
         return target;
     }
 
+    /**
+     * Get the value unmarshalled from the payload by the receiving
+     * connection, throwing the exception raised while unmarshalling it, if
+     * any.
+     */
+    Object getValue()
+    {
+        if (error != null)
+            throw error;
+        return value;
+    }
+
+    void setValue(Object value)
+    {
+        this.value = value;
+    }
+
+    void setError(RuntimeException error)
+    {
+        this.error = error;
+    }
+
+    /**
+     * Get a copy of the payload. Prefer getPayloadStream, which does not
+     * copy.
+     */
     public final byte[] getPayload()
     {
-        return payload;
+        checkNotReleased();
+        if (buffer == null)
+            return payload;
+        byte[] copy = new byte[length];
+        System.arraycopy(payload, 0, copy, 0, length);
+        return copy;
+    }
+
+    /**
+     * Get the length of the payload, in bytes.
+     */
+    public final int getPayloadLength()
+    {
+        return length;
+    }
+
+    /**
+     * Get a stream for reading the payload, without copying it. The stream
+     * must not be used after the message is released.
+     */
+    public final InputStream getPayloadStream()
+    {
+        checkNotReleased();
+        return new ByteArrayInputStream(payload, 0, length);
+    }
+
+    /**
+     * Get a reader for unmarshalling the payload, without copying it. The
+     * reader must not be used after the message is released.
+     */
+    final MarshalReader getPayloadReader()
+    {
+        checkNotReleased();
+        return new MarshalReader(payload, 0, length);
+    }
+
+    /**
+     * Add a reference to the message, which must be matched by a call to
+     * release.
+     */
+    public synchronized void retain()
+    {
+        checkNotReleased();
+        ++refCount;
+    }
+
+    /**
+     * Release a reference to the message. When the last reference is
+     * released, a pooled payload buffer is returned to the pool, and the
+     * payload may no longer be accessed.
+     */
+    public synchronized void release()
+    {
+        checkNotReleased();
+        if (--refCount == 0 && buffer != null)
+        {
+            BufferPool.release(buffer);
+            buffer = null;
+            payload = null;
+        }
+    }
+
+    private synchronized void checkNotReleased()
+    {
+        if (refCount == 0 && payload == null)
+            throw new IllegalStateException("Message has been released");
     }
 
     public String toString()
     {
         return "Message(" + type + ", " + getSource() + ", " +
-                getTarget() + ", " + payload.length + " bytes)";
+                getTarget() + ", " + length + " bytes)";
     }
 
     public boolean equals(Object rhs)
@@ -87,10 +226,15 @@ public class Message
         if (rhs instanceof Message)
         {
             Message other = (Message)rhs;
-            return type.equals(other.type) &&
-                   target == other.target &&
-                   source == other.source &&
-                   Arrays.equals(payload, other.payload);
+            if (!type.equals(other.type) ||
+                target != other.target ||
+                source != other.source ||
+                length != other.length)
+                return false;
+            for (int i = 0; i < length; ++i)
+                if (payload[i] != other.payload[i])
+                    return false;
+            return true;
         }
         return super.equals(rhs);
     }
@@ -100,112 +244,223 @@ public class Message
      */
     public byte[] pack()
     {
-        // 21 bytes for the header + the payload.
         java.io.ByteArrayOutputStream stream =
-            new java.io.ByteArrayOutputStream(21 + payload.length);
+            new java.io.ByteArrayOutputStream(HEADER_SIZE + length);
         try {
             pack(stream);
-        } catch (java.io.IOException e) {}
+        } catch (IOException e) {}
         return stream.toByteArray();
     }
 
     /**
      * Pack a message into its network representation.
      */
-    public void pack(java.io.OutputStream stream) throws java.io.IOException
+    public void pack(OutputStream stream) throws IOException
     {
-        stream.write((byte)type.getCode());
-        pack(stream, source);
-        pack(stream, target);
-        pack(stream, payload.length);
-        stream.write(payload, 0, payload.length);
+        byte[] header = new byte[HEADER_SIZE];
+        ByteBuffer.wrap(header)
+                  .put((byte)type.getCode())
+                  .putLong(source)
+                  .putLong(target)
+                  .putInt(length);
+        stream.write(header, 0, HEADER_SIZE);
+        stream.write(payload, 0, length);
     }
 
     /**
-     * Read a message from the given input stream.
+     * Write a message whose payload has been marshalled into a buffer
+     * obtained with MarshalBuffer.get(HEADER_SIZE). The header is filled in
+     * to the reserved space, and the message written with a single write,
+     * without creating a Message or copying the payload.
      */
-    public static Message
-    unpack(java.io.InputStream stream) throws java.io.IOException
+    static void pack(OutputStream stream, Type type, long source,
+                     long target, MarshalBuffer buffer) throws IOException
     {
-        // Unpack the header.
-        Type type = Type.getType(stream.read());
-        long source = unpackLong(stream);
-        long target = unpackLong(stream);
-        int length = unpackInteger(stream);
+        pack(stream, type, source, target, buffer, -1);
+    }
 
-        // Read the payload and create the message.
-        byte[] payload = read(stream, length);
-        return new Message(type, payload, target, source);
+    /**
+     * Write a message as above, compressing the payload if it is at least
+     * the specified number of bytes, and compression makes it smaller. A
+     * negative threshold disables compression.
+     */
+    static void pack(OutputStream stream, Type type, long source,
+                     long target, MarshalBuffer buffer, int compressThreshold)
+        throws IOException
+    {
+        byte[] bytes = buffer.array();
+        int length = buffer.size() - HEADER_SIZE;
+        if (compressThreshold >= 0 && length >= compressThreshold)
+        {
+            byte[] compressed = deflate(bytes, HEADER_SIZE, length);
+            if (compressed != null)
+            {
+                bytes = compressed;
+                length = compressed.length - HEADER_SIZE;
+                bytes[0] = (byte)(type.getCode() | COMPRESSED);
+                putLong(bytes, 1, source);
+                putLong(bytes, 9, target);
+                putInt(bytes, 17, length);
+                stream.write(bytes, 0, compressed.length);
+                return;
+            }
+        }
+        bytes[0] = (byte)type.getCode();
+        putLong(bytes, 1, source);
+        putLong(bytes, 9, target);
+        putInt(bytes, 17, length);
+        buffer.writeTo(stream);
     }
 
-    // Utility method for creating and filling up a byte array from an
-    // input stream.
-    private static byte[]
-    read(java.io.InputStream stream, int length) throws java.io.IOException
+    // Compress a payload, returning it after space reserved for the header,
+    // or null if compressing it does not make it smaller.
+    private static byte[] deflate(byte[] bytes, int offset, int length)
     {
-        byte[] buf = new byte[length];
-        read(stream, buf);
-        return buf;
+        Deflater deflater = (Deflater)deflaters.get();
+        if (deflater == null)
+        {
+            deflater = new Deflater();
+            deflaters.set(deflater);
+        }
+        deflater.reset();
+        deflater.setInput(bytes, offset, length);
+        deflater.finish();
+
+        // Give up as soon as the output is no smaller than the input.
+        byte[] compressed = new byte[HEADER_SIZE + length];
+        int size = HEADER_SIZE;
+        while (!deflater.finished() && size < compressed.length)
+            size += deflater.deflate(compressed, size,
+                                     compressed.length - size);
+        if (!deflater.finished() || size >= compressed.length)
+            return null;
+        byte[] result = new byte[size];
+        System.arraycopy(compressed, 0, result, 0, size);
+        return result;
     }
 
-    // Utility method for filling up a byte array from an input stream.
-    private static void
-    read(java.io.InputStream stream, byte[] buf) throws java.io.IOException
+    // Decompress a payload held in a pooled buffer, releasing it and
+    // returning the decompressed payload in another.
+    private static ByteBuffer inflate(ByteBuffer buffer) throws IOException
     {
-        int nread = 0;
-        do
+        Inflater inflater = (Inflater)inflaters.get();
+        if (inflater == null)
         {
-            int partial = stream.read(buf, nread, buf.length-nread);
-            if (partial == -1)
-                throw new java.io.EOFException();
-            nread += partial;
-        } while (nread < buf.length);
+            inflater = new Inflater();
+            inflaters.set(inflater);
+        }
+        inflater.reset();
+        inflater.setInput(buffer.array(), 0, buffer.limit());
+
+        ByteBuffer result = BufferPool.acquire(
+            (int)Math.min(buffer.limit() * 4L, MAX_INFLATE_GUESS));
+        try
+        {
+            int size = 0;
+            while (!inflater.finished())
+            {
+                if (size == result.capacity())
+                {
+                    if (size == MAX_ARRAY_SIZE)
+                        throw new IOException(
+                            "Decompressed payload is too large");
+                    ByteBuffer larger = BufferPool.acquire(
+                        (int)Math.min(size * 2L, MAX_ARRAY_SIZE));
+                    System.arraycopy(result.array(), 0, larger.array(), 0,
+                                     size);
+                    BufferPool.release(result);
+                    result = larger;
+                }
+                int n = inflater.inflate(result.array(), size,
+                                         result.capacity() - size);
+                if (n == 0 && inflater.needsInput())
+                    throw new EOFException("Truncated compressed payload");
+                size += n;
+            }
+            result.limit(size);
+            return result;
+        }
+        catch (java.util.zip.DataFormatException e)
+        {
+            BufferPool.release(result);
+            throw new IOException(
+                "Invalid compressed payload: " + e.getMessage());
+        }
+        catch (IOException e)
+        {
+            BufferPool.release(result);
+            throw e;
+        }
+        finally
+        {
+            BufferPool.release(buffer);
+        }
     }
 
-    // Utility method for packing a network-order "long" into a byte array.
-    private static void
-    pack(java.io.OutputStream stream, long value) throws java.io.IOException
+    // Write a big-endian 64-bit integer into a byte array.
+    private static void putLong(byte[] bytes, int offset, long value)
     {
-        stream.write((byte)((value >> 56) & 0xFF));
-        stream.write((byte)((value >> 48) & 0xFF));
-        stream.write((byte)((value >> 40) & 0xFF));
-        stream.write((byte)((value >> 32) & 0xFF));
-        stream.write((byte)((value >> 24) & 0xFF));
-        stream.write((byte)((value >> 16) & 0xFF));
-        stream.write((byte)((value >> 8) & 0xFF));
-        stream.write((byte)((value) & 0xFF));
+        putInt(bytes, offset, (int)(value >> 32));
+        putInt(bytes, offset + 4, (int)value);
     }
 
-    // Utility method for unpacking a network-order "long" from a byte array.
-    private static long
-    unpackLong(java.io.InputStream stream) throws java.io.IOException
+    // Write a big-endian 32-bit integer into a byte array.
+    private static void putInt(byte[] bytes, int offset, int value)
     {
-        long hi4 = (long)unpackInteger(stream);
-        long lo4 = (long)unpackInteger(stream);
-        return ((hi4 << 32) & 0xFFFFFFFF00000000L) | (lo4 & 0xFFFFFFFFL);
+        bytes[offset]     = (byte)(value >> 24);
+        bytes[offset + 1] = (byte)(value >> 16);
+        bytes[offset + 2] = (byte)(value >> 8);
+        bytes[offset + 3] = (byte)value;
     }
 
-    // Utility method for packing a network-order "int" into a byte array.
-    private static void
-    pack(java.io.OutputStream stream, int value) throws java.io.IOException
+    /**
+     * Read a message from the given input stream. The header and payload
+     * are each read in bulk, the payload into a pooled buffer.
+     */
+    public static Message unpack(InputStream stream) throws IOException
     {
-        stream.write((byte)((value >> 24) & 0xFF));
-        stream.write((byte)((value >> 16) & 0xFF));
-        stream.write((byte)((value >> 8) & 0xFF));
-        stream.write((byte)((value) & 0xFF));
+        // Unpack the header. ByteBuffer is big-endian (network order) by
+        // default.
+        byte[] header = new byte[HEADER_SIZE];
+        read(stream, header, HEADER_SIZE);
+        ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+        int code = headerBuffer.get() & 0xFF;
+        Type type = Type.getType(code & ~COMPRESSED);
+        long source = headerBuffer.getLong();
+        long target = headerBuffer.getLong();
+        int length = headerBuffer.getInt();
+        if (length < 0)
+            throw new IOException("Payload too large: " +
+                                  (length & 0xFFFFFFFFL) + " bytes");
+
+        // Read the payload and create the message.
+        ByteBuffer buffer = BufferPool.acquire(length);
+        try
+        {
+            read(stream, buffer.array(), length);
+        }
+        catch (IOException e)
+        {
+            BufferPool.release(buffer);
+            throw e;
+        }
+        if ((code & COMPRESSED) != 0)
+            buffer = inflate(buffer);
+        return new Message(type, buffer, target, source);
     }
 
-    // Utility method for unpacking a network-order "int" from a byte array.
-    private static int
-    unpackInteger(java.io.InputStream stream) throws java.io.IOException
+    // Utility method for filling up a byte array from an input stream.
+    private static void
+    read(InputStream stream, byte[] buf, int length) throws IOException
     {
-        int b0 = stream.read();
-        int b1 = stream.read();
-        int b2 = stream.read();
-        int b3 = stream.read();
-        if (b0 == -1 || b1 == -1 || b2 == -1 || b3 == -1)
-            throw new java.io.EOFException();
-        return (b0 << 24) | (b1 << 16) | (b2 << 8) | b3;
+        int nread = 0;
+        while (nread < length)
+        {
+            int partial = stream.read(buf, nread, length - nread);
+            if (partial == -1)
+                throw new EOFException();
+            nread += partial;
+        }
     }
 
     /**
@@ -368,6 +623,12 @@ public class Message
         public static final Type op__enter__    = createType("op__enter__");
         public static final Type op__exit__     = createType("op__exit__");
 
+        // Types added since the operators were defined go last, so that
+        // existing codes are unchanged for older peers.
+        public static final Type getpath        = createType("getpath");
+        public static final Type compound       = createType("compound");
+        public static final Type compression    = createType("compression");
+
         /**
          * Check if a message type is a a response type.
          */
@@ -42,6 +42,7 @@ public class Proxy
              Connection connection)
     {
         PushyObjectImpl proxy = new PushyObjectImpl(id, connection);
+        proxy.setCallable(hasOperator(operators, Message.Type.op__call__));
 
         // TODO for "object" types, use the operator mask to determine which
         //      interfaces to implement.
@@ -94,6 +95,34 @@ public class Proxy
         return mask;
     }
 
+    /**
+     * Check if an operator is set in a bitmask received from the peer.
+     */
+    static boolean hasOperator(Number operators, Message.Type type)
+    {
+        if (operators instanceof java.math.BigInteger)
+            return ((java.math.BigInteger)operators).testBit(type.getCode());
+        return type.getCode() < 64 &&
+               ((operators.longValue() >>> type.getCode()) & 1) != 0;
+    }
+
+    /**
+     * Get the PushyObjectImpl underlying a proxy, or null if the object is
+     * not a proxy.
+     */
+    static PushyObjectImpl getImpl(Object proxy)
+    {
+        if (proxy instanceof PushyObjectImpl)
+            return (PushyObjectImpl)proxy;
+        if (proxy instanceof ProxyMap)
+            return ((ProxyMap)proxy).getImpl();
+        if (proxy instanceof ProxyList)
+            return ((ProxyList)proxy).getImpl();
+        if (proxy instanceof DelegatingPushyObject)
+            return getImpl(((DelegatingPushyObject)proxy).getDelegate());
+        return null;
+    }
+
     /**
      * Check if the object supports the specified operator.
      */
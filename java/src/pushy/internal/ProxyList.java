@@ -35,6 +35,11 @@ public class ProxyList extends pushy.util.List implements ProxyObject
         this.proxy = proxy;
     }
 
+    PushyObjectImpl getImpl()
+    {
+        return (PushyObjectImpl)proxy;
+    }
+
     public Object getId()
     {
         return proxy.getId();
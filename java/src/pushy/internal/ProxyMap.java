@@ -35,6 +35,11 @@ public class ProxyMap extends pushy.util.Map implements ProxyObject
         this.proxy = proxy;
     }
 
+    PushyObjectImpl getImpl()
+    {
+        return (PushyObjectImpl)proxy;
+    }
+
     public Object getId()
     {
         return proxy.getId();
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2011 Andrew Wilkins <axwalk@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package pushy.internal;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+/**
+ * A weak reference to a proxy, enqueued on its connection's reference queue
+ * once the proxy is no longer reachable. The reference records the proxy's
+ * ID and most recently received version, so that the peer can be told to
+ * delete the object once the proxy is gone.
+ *
+ * The reference is to the PushyObjectImpl underlying the proxy, which is
+ * what is passed to the connection when the proxy is used. The proxy itself,
+ * such as a ProxyMap wrapping the PushyObjectImpl, is referred to by a
+ * separate weak reference, so that it may be looked up by ID.
+ */
+class ProxyReference extends WeakReference
+{
+    private Object id;
+    private volatile int version;
+    private WeakReference proxy;
+
+    ProxyReference(ProxyObject proxy, PushyObjectImpl impl,
+                   ReferenceQueue queue)
+    {
+        super(impl, queue);
+        this.id = impl.getId();
+        this.version = impl.getVersion();
+        if (proxy != impl)
+            this.proxy = new WeakReference(proxy);
+    }
+
+    /**
+     * Get the proxy, or null if it has been garbage collected.
+     */
+    ProxyObject getProxy()
+    {
+        if (proxy == null)
+            return (ProxyObject)get();
+        return (ProxyObject)proxy.get();
+    }
+
+    Object getId()
+    {
+        return id;
+    }
+
+    int getVersion()
+    {
+        return version;
+    }
+
+    void setVersion(int version)
+    {
+        this.version = version;
+    }
+}
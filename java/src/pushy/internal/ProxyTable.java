@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2013 Andrew Wilkins <axwalk@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package pushy.internal;
+
+/**
+ * A concurrent map from the IDs of the peer's objects to their proxies.
+ *
+ * The map is split into stripes, each an open-addressing hash table with
+ * primitive long keys, guarded by its own lock. Threads resolving different
+ * objects therefore rarely contend. Compound operations on an ID may be made
+ * atomic by synchronizing on {@link #getLock}; the map's own operations
+ * acquire the same lock, which is reentrant.
+ */
+public class ProxyTable
+{
+    private static final int INITIAL_STRIPE_CAPACITY = 16;
+    private static final int MAX_STRIPES = 256;
+
+    private Stripe[] stripes;
+    private int stripeMask;
+
+    public ProxyTable()
+    {
+        this(Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    /**
+     * Create a table with at least the specified number of stripes.
+     */
+    public ProxyTable(int concurrency)
+    {
+        int n = 1;
+        while (n < concurrency && n < MAX_STRIPES)
+            n <<= 1;
+        stripes = new Stripe[n];
+        for (int i = 0; i < n; ++i)
+            stripes[i] = new Stripe();
+        stripeMask = n - 1;
+    }
+
+    /**
+     * Get the lock guarding the entry for an ID.
+     */
+    public Object getLock(long id)
+    {
+        return getStripe(hash(id));
+    }
+
+    /**
+     * Get the value mapped to an ID, or null if there is none.
+     */
+    public Object get(long id)
+    {
+        int hash = hash(id);
+        Stripe stripe = getStripe(hash);
+        synchronized (stripe)
+        {
+            return stripe.get(id, hash);
+        }
+    }
+
+    /**
+     * Map an ID to a value, replacing any existing value.
+     */
+    public void put(long id, Object value)
+    {
+        if (value == null)
+            throw new NullPointerException("value");
+        int hash = hash(id);
+        Stripe stripe = getStripe(hash);
+        synchronized (stripe)
+        {
+            stripe.put(id, hash, value);
+        }
+    }
+
+    /**
+     * Remove the entry for an ID, if it is mapped to the specified value.
+     * Returns true if the entry was removed.
+     */
+    public boolean remove(long id, Object value)
+    {
+        if (value == null)
+            return false;
+        int hash = hash(id);
+        Stripe stripe = getStripe(hash);
+        synchronized (stripe)
+        {
+            return stripe.remove(id, hash, value);
+        }
+    }
+
+    /**
+     * Get the number of entries in the table.
+     */
+    public int size()
+    {
+        int size = 0;
+        for (int i = 0; i < stripes.length; ++i)
+        {
+            synchronized (stripes[i])
+            {
+                size += stripes[i].size;
+            }
+        }
+        return size;
+    }
+
+    private Stripe getStripe(int hash)
+    {
+        // The low bits choose the slot within a stripe, so use the high
+        // bits to choose the stripe.
+        return stripes[(hash >>> 24) & stripeMask];
+    }
+
+    // Mix the bits of an ID. The IDs of Python objects are addresses, so the
+    // low bits are mostly zero.
+    private static int hash(long id)
+    {
+        id ^= id >>> 33;
+        id *= 0xff51afd7ed558ccdL;
+        id ^= id >>> 33;
+        id *= 0xc4ceb9fe1a85ec53L;
+        id ^= id >>> 33;
+        return (int)id;
+    }
+
+    /**
+     * A hash table with linear probing. An entry is empty if its value is
+     * null.
+     */
+    private static class Stripe
+    {
+        private long[] keys = new long[INITIAL_STRIPE_CAPACITY];
+        private Object[] values = new Object[INITIAL_STRIPE_CAPACITY];
+        private int size = 0;
+
+        Object get(long id, int hash)
+        {
+            int mask = keys.length - 1;
+            for (int i = hash & mask; values[i] != null; i = (i + 1) & mask)
+            {
+                if (keys[i] == id)
+                    return values[i];
+            }
+            return null;
+        }
+
+        void put(long id, int hash, Object value)
+        {
+            int mask = keys.length - 1;
+            int i = hash & mask;
+            for (; values[i] != null; i = (i + 1) & mask)
+            {
+                if (keys[i] == id)
+                {
+                    values[i] = value;
+                    return;
+                }
+            }
+            keys[i] = id;
+            values[i] = value;
+            if (++size * 4 > keys.length * 3)
+                resize(keys.length * 2);
+        }
+
+        boolean remove(long id, int hash, Object value)
+        {
+            int mask = keys.length - 1;
+            int i = hash & mask;
+            for (; values[i] != null; i = (i + 1) & mask)
+            {
+                if (keys[i] == id)
+                    break;
+            }
+            if (values[i] != value)
+                return false;
+            values[i] = null;
+            --size;
+
+            // Shift back any following entries that could no longer be
+            // found past the gap.
+            for (int j = (i + 1) & mask; values[j] != null;
+                 j = (j + 1) & mask)
+            {
+                int home = hash(keys[j]) & mask;
+                if (((j - home) & mask) >= ((j - i) & mask))
+                {
+                    keys[i] = keys[j];
+                    values[i] = values[j];
+                    values[j] = null;
+                    i = j;
+                }
+            }
+            return true;
+        }
+
+        private void resize(int capacity)
+        {
+            long[] oldKeys = keys;
+            Object[] oldValues = values;
+            keys = new long[capacity];
+            values = new Object[capacity];
+            int mask = capacity - 1;
+            for (int j = 0; j < oldKeys.length; ++j)
+            {
+                if (oldValues[j] != null)
+                {
+                    int i = hash(oldKeys[j]) & mask;
+                    while (values[i] != null)
+                        i = (i + 1) & mask;
+                    keys[i] = oldKeys[j];
+                    values[i] = oldValues[j];
+                }
+            }
+        }
+    }
+}
@@ -25,6 +25,7 @@
 
 package pushy.internal;
 
+import pushy.PushyFuture;
 import pushy.PushyObject;
 
 public class PushyObjectImpl implements PushyObject, ProxyObject
@@ -32,6 +33,9 @@ public class PushyObjectImpl implements PushyObject, ProxyObject
     private Number id;
     private Connection connection;
     private int version;
+    private ProxyReference reference;
+    private boolean callable;
+    private volatile AttributeCache attributeCache;
 
     PushyObjectImpl(Number id, Connection connection)
     {
@@ -40,10 +44,13 @@ public class PushyObjectImpl implements PushyObject, ProxyObject
         this.version = 0;
     }
 
-    protected void finalize() throws Throwable
+    /**
+     * Set the reference tracking this proxy's lifetime, which is updated
+     * with the proxy's version.
+     */
+    void setReference(ProxyReference reference)
     {
-        connection.deleted(this);
-        super.finalize();
+        this.reference = reference;
     }
 
     public Object getId()
@@ -64,20 +71,86 @@ public class PushyObjectImpl implements PushyObject, ProxyObject
     public void setVersion(int version)
     {
         this.version = version;
+        if (reference != null)
+            reference.setVersion(version);
+    }
+
+    /**
+     * Check whether the remote object is callable.
+     */
+    boolean isCallable()
+    {
+        return callable;
+    }
+
+    void setCallable(boolean callable)
+    {
+        this.callable = callable;
+    }
+
+    /**
+     * Enable or disable caching of this proxy's callable attributes.
+     */
+    void setAttributeCache(AttributeCache cache)
+    {
+        attributeCache = cache;
+    }
+
+    AttributeCache getAttributeCache()
+    {
+        return attributeCache;
     }
 
     public boolean __hasattr__(String key)
     {
-        return connection.hasattr(this, key);
+        if (attributeCache == null)
+            return connection.hasattr(this, key);
+
+        // Look the attribute up, so that it may be cached for later.
+        try
+        {
+            __getattr__(key);
+            return true;
+        }
+        catch (RemoteException e)
+        {
+            return false;
+        }
     }
 
     public Object __getattr__(String key)
     {
-        return connection.getattr(this, key);
+        AttributeCache cache = attributeCache;
+        if (cache == null)
+            return connection.getattr(this, key);
+
+        Object value = cache.get(key);
+        if (value == null)
+        {
+            value = connection.getattr(this, key);
+            PushyObjectImpl impl = Proxy.getImpl(value);
+            if (impl != null && impl.isCallable())
+                cache.put(key, value);
+        }
+        return value;
+    }
+
+    public Object __getpath__(String path)
+    {
+        return connection.getpath(this, path);
+    }
+
+    public Object __callpath__(String path, Object[] args,
+                               java.util.Map kwargs)
+    {
+        return connection.callpath(this, path, args, kwargs);
     }
 
     public void __setattr__(String key, Object value)
     {
+        AttributeCache cache = attributeCache;
+        if (cache != null)
+            cache.invalidate(key);
         connection.setattr(this, key, value);
     }
 
@@ -111,6 +184,16 @@ public class PushyObjectImpl implements PushyObject, ProxyObject
         return connection.call(this, args, kwargs);
     }
 
+    public PushyFuture __call_async__(Object[] args)
+    {
+        return __call_async__(args, null);
+    }
+
+    public PushyFuture __call_async__(Object[] args, java.util.Map kwargs)
+    {
+        return connection.callAsync(this, args, kwargs);
+    }
+
     public String toString()
     {
         return connection.str(this);
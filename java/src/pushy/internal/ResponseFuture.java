@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2013 Andrew Wilkins <axwalk@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package pushy.internal;
+
+import pushy.PushyFuture;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The pending result of a request sent with
+ * {@link BaseConnection#sendRequestAsync}.
+ *
+ * Responses are not read in the background: the first call to {@link #get}
+ * will read from the connection if no other thread has already received the
+ * response on this future's behalf.
+ *
+ * Once received, the response belongs to the future alone: a future that is
+ * dropped without being waited on is collected along with its result.
+ */
+public class ResponseFuture implements PushyFuture
+{
+    private BaseConnection connection;
+    private BaseConnection.ResponseHandler handler;
+    private volatile boolean done;
+    private Object result;
+    private RuntimeException exception;
+    private Lock lock = new ReentrantLock();
+
+    ResponseFuture(BaseConnection connection,
+                   BaseConnection.ResponseHandler handler)
+    {
+        this.connection = connection;
+        this.handler = handler;
+        this.done = false;
+    }
+
+    /**
+     * Create a future whose result is already known.
+     */
+    public static ResponseFuture completed(Object result)
+    {
+        ResponseFuture future = new ResponseFuture(null, null);
+        future.result = result;
+        future.done = true;
+        return future;
+    }
+
+    /**
+     * Create a future whose request is already known to have failed.
+     */
+    public static ResponseFuture failed(RuntimeException exception)
+    {
+        ResponseFuture future = new ResponseFuture(null, null);
+        future.exception = exception;
+        future.done = true;
+        return future;
+    }
+
+    public Object get()
+    {
+        // A lock rather than a monitor is used, so a virtual thread waiting on
+        // the response does not pin its carrier thread.
+        lock.lock();
+        try
+        {
+            if (!done)
+                complete(-1);
+        }
+        catch (TimeoutException e)
+        {
+            // Not possible without a timeout.
+            throw new RuntimeException(e);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        return getResult();
+    }
+
+    public Object get(long timeoutMillis) throws TimeoutException
+    {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        try
+        {
+            if (!lock.tryLock(timeoutMillis, TimeUnit.MILLISECONDS))
+                throw new TimeoutException("Timed out waiting for response");
+        }
+        catch (InterruptedException e)
+        {
+            throw new RuntimeException(e);
+        }
+        try
+        {
+            if (!done)
+            {
+                long remaining = deadline - System.currentTimeMillis();
+                complete(Math.max(remaining, 0));
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        return getResult();
+    }
+
+    /**
+     * Wait for the response, and record the result or exception. A negative
+     * timeout waits indefinitely. The caller must hold the lock.
+     */
+    private void complete(long timeoutMillis) throws TimeoutException
+    {
+        if (isCancelled())
+            throw new CancellationException("Request was cancelled");
+        try
+        {
+            if (timeoutMillis < 0)
+                result = connection.getAsyncResult(handler);
+            else
+                result = connection.getAsyncResult(handler, timeoutMillis);
+        }
+        catch (IOException e)
+        {
+            exception = new RuntimeException(e);
+        }
+        catch (RuntimeException e)
+        {
+            exception = e;
+            if (isCancelled())
+                exception = new CancellationException("Request was cancelled");
+        }
+
+        // An Error leaves the future incomplete, rather than with neither a
+        // result nor an exception.
+        done = true;
+    }
+
+    private Object getResult()
+    {
+        if (exception != null)
+            throw exception;
+        return result;
+    }
+
+    public boolean cancel()
+    {
+        if (done || handler == null)
+            return false;
+        return connection.cancelAsyncRequest(handler);
+    }
+
+    private boolean isCancelled()
+    {
+        return handler != null && handler.isCancelled();
+    }
+
+    public boolean isDone()
+    {
+        return done || isCancelled() || connection.isResponseReceived(handler);
+    }
+}
@@ -34,7 +34,8 @@ package pushy.internal;
 public class ThreadId
 {
     private static ThreadLocal threadLocal = new ThreadLocal();
-    private static Long nextThreadId = new Long(1);
+    private static Object lock = new Object();
+    private static long nextThreadId = 1;
 
     /**
      * Get the current thread's id, which is a non-zero long integer.
@@ -44,17 +45,28 @@ public class ThreadId
         Long value = (Long)threadLocal.get();
         if (value == null)
         {
-            synchronized (nextThreadId)
-            {
-                value = nextThreadId;
-                if (value.longValue() == -1)
-                    nextThreadId = new Long(1);
-                else
-                    nextThreadId = new Long(value.longValue()+1);
-            }
+            value = new Long(nextId());
             threadLocal.set(value);
         }
         return value.longValue();
     }
+
+    /**
+     * Allocate a new, non-zero long integer from the same sequence as thread
+     * ids. This is used to correlate asynchronous requests with their
+     * responses, so the values must never collide with a thread's id.
+     */
+    public static long nextId()
+    {
+        synchronized (lock)
+        {
+            long value = nextThreadId;
+            if (value == -1)
+                nextThreadId = 1;
+            else
+                nextThreadId = value + 1;
+            return value;
+        }
+    }
 }
 
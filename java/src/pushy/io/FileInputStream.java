@@ -27,17 +27,94 @@ package pushy.io;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.LinkedList;
 
 import pushy.Client;
 import pushy.Module;
+import pushy.PushyFuture;
 import pushy.PushyObject;
 
+/**
+ * An input stream reading from a file-like object in the remote
+ * interpreter.
+ *
+ * Files opened by path are read ahead: the file is read in chunks, with up
+ * to {@link #getReadAhead} chunk requests in flight at once, so that large
+ * files are transferred at the speed of the connection rather than one round
+ * trip per read. Chunks start small, so that reading only the start of a
+ * file is cheap, and double in size as the stream is consumed, up to
+ * {@link #getChunkSize} bytes. Streams created for arbitrary file-like
+ * objects, such as pipes, read only what is asked for, as a read of a whole
+ * chunk may block; read-ahead may be enabled for them with
+ * {@link #setReadAhead}.
+ *
+ * Data is buffered locally, so small reads such as those made by line
+ * oriented readers are served without a remote call where possible, and
+ * {@link #mark} and {@link #reset} are supported.
+ */
 public class FileInputStream extends InputStream {
+    /**
+     * The default size of the chunks in which data is read ahead: 1MiB.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+    /**
+     * The default number of chunk requests in flight, for files opened by
+     * path.
+     */
+    public static final int DEFAULT_READ_AHEAD = 4;
+
+    /**
+     * The size of the first chunk read ahead.
+     */
+    public static final int INITIAL_CHUNK_SIZE = 8192;
+
+    // Wraps a remote read method, returning a bytearray, which is received
+    // as a byte[] without character conversion. Evaluates to None if the
+    // remote interpreter has no bytearray type (it is older than Python
+    // 2.6).
+    private static final String READ_BYTES =
+        "(lambda b: b and (lambda read: lambda n: b(read(n))))" +
+        "(getattr(__import__('__builtin__'), 'bytearray', None))";
+
     private PushyObject file;
     private PushyObject readMethod = null;
+    private Client client;
+    private PushyObject readBytesMethod = null;
+
+    // Read-ahead state. Chunk requests are issued in order, and the remote
+    // interpreter handles a connection's requests in the order received, so
+    // chunks are returned in file order.
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private int requestSize = INITIAL_CHUNK_SIZE;
+    private int readAhead = 0;
+    private LinkedList pending = new LinkedList();
+    private boolean eof = false;
+
+    // Local buffer, holding the data from buf[pos] to buf[count] yet to be
+    // consumed. While a mark is set, the data from buf[markPos] is kept too.
+    private byte[] buf = null;
+    private int pos = 0;
+    private int count = 0;
+    private int markPos = -1;
+    private int markLimit = 0;
 
+    /**
+     * Create a stream reading from a remote file object. Data is transferred
+     * as strings, and converted to bytes locally.
+     */
     public FileInputStream(PushyObject file) {
+        this(null, file);
+    }
+
+    /**
+     * Create a stream reading from a remote file object. If the remote
+     * interpreter supports it, data is transferred as binary, without
+     * conversion to and from strings.
+     */
+    public FileInputStream(Client client, PushyObject file) {
         assert file != null;
+        this.client = client;
         this.file = file;
     }
 
@@ -62,50 +139,253 @@ public class FileInputStream extends InputStream {
     }
 
     public FileInputStream(Client client, String path, String mode) {
-        this(open(client, path, mode));
+        this(client, open(client, path, mode));
+        readAhead = DEFAULT_READ_AHEAD;
+    }
+
+    /**
+     * Get the maximum size of the chunks in which data is read ahead.
+     */
+    public synchronized int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Set the maximum size of the chunks in which data is read ahead. This
+     * applies to chunks requested after the call.
+     */
+    public synchronized void setChunkSize(int chunkSize) {
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("chunkSize must be positive");
+        this.chunkSize = chunkSize;
+        requestSize = Math.min(requestSize, chunkSize);
+    }
+
+    /**
+     * Get the maximum number of chunk requests in flight. Zero means data
+     * is not read ahead.
+     */
+    public synchronized int getReadAhead() {
+        return readAhead;
+    }
+
+    /**
+     * Set the maximum number of chunk requests in flight. Zero disables
+     * read-ahead, once data already requested has been consumed.
+     */
+    public synchronized void setReadAhead(int chunks) {
+        if (chunks < 0)
+            throw new IllegalArgumentException("chunks must not be negative");
+        readAhead = chunks;
     }
 
-    public int read() throws IOException {
-        String char_ =
-            (String)readMethod.__call__(new Object[]{new Integer(1)});
-        if (char_.length() == 0)
+    public synchronized int read() throws IOException {
+        if (pos == count && !fill(1))
             return -1;
-        return char_.charAt(0);
+        return buf[pos++] & 0xFF;
     }
 
     public synchronized void close() throws IOException
     {
         if (file != null)
         {
-            ((PushyObject)file.__getattr__("close")).__call__(null);
+            // Collect the chunks still in flight, so their responses aren't
+            // left waiting on the connection.
+            while (!pending.isEmpty())
+            {
+                try {
+                    ((PushyFuture)pending.removeFirst()).get();
+                } catch (RuntimeException e) {
+                }
+            }
+            buf = null;
+            pos = count = 0;
+            markPos = -1;
+            file.__callpath__("close", null, null);
             file = null;
         }
     }
 
-    public int read(byte[] b, int offset, int length) throws IOException {
-        String bytes = getBytes(length);
-        if (bytes == null || bytes.length() == 0)
+    public synchronized int read(byte[] b, int offset, int length)
+        throws IOException
+    {
+        if (length == 0)
+            return 0;
+        if (pos == count && !fill(length))
             return -1;
-        System.arraycopy(
-            bytes.getBytes("ISO-8859-1"), 0, b, offset, bytes.length());
-        return bytes.length();
+        int n = Math.min(length, count - pos);
+        System.arraycopy(buf, pos, b, offset, n);
+        pos += n;
+        return n;
     }
 
     public int read(byte[] b) throws IOException {
         return read(b, 0, b.length);
     }
 
+    public synchronized int available() throws IOException {
+        return count - pos;
+    }
+
+    public boolean markSupported() {
+        return true;
+    }
+
+    /**
+     * Mark the current position in the stream. Up to readlimit bytes may be
+     * read before the mark becomes invalid; as with
+     * java.io.BufferedInputStream, the mark may survive longer if the data
+     * is still buffered.
+     */
+    public synchronized void mark(int readlimit) {
+        markLimit = readlimit;
+        markPos = pos;
+    }
+
+    public synchronized void reset() throws IOException {
+        if (markPos < 0)
+            throw new IOException("Resetting to invalid mark");
+        pos = markPos;
+    }
+
     protected synchronized String getBytes(int n) throws IOException {
+        return (String)getReadMethod().__call__(
+            new Object[]{new Integer(n)});
+    }
+
+    /**
+     * Read up to n bytes from the remote object. Returns null or an empty
+     * array at the end of the stream.
+     */
+    protected synchronized byte[] readBytes(int n) throws IOException {
+        PushyObject method = getReadBytesMethod();
+        if (method != null)
+            return (byte[])method.__call__(new Object[]{new Integer(n)});
+        String bytes = getBytes(n);
+        if (bytes == null)
+            return null;
+        return bytes.getBytes("ISO-8859-1");
+    }
+
+    /**
+     * Get the remote method used to read data.
+     */
+    protected synchronized PushyObject getReadMethod() {
         if (readMethod == null)
             readMethod = (PushyObject)file.__getattr__("read");
-        return (String)readMethod.__call__(new Object[]{new Integer(n)});
+        return readMethod;
+    }
+
+    /**
+     * Get the remote method that reads data as a bytearray, or null if the
+     * remote interpreter doesn't support it.
+     */
+    private PushyObject getReadBytesMethod() {
+        if (readBytesMethod == null && client != null) {
+            PushyObject wrap = (PushyObject)client.evaluate(READ_BYTES);
+            if (wrap != null) {
+                readBytesMethod = (PushyObject)wrap.__call__(
+                    new Object[]{getReadMethod()});
+            }
+
+            // Either way, there is no need to check again; without
+            // bytearray, data is read as strings.
+            client = null;
+        }
+        return readBytesMethod;
+    }
+
+    /**
+     * Refill the buffer once its data has been consumed, requesting up to
+     * the specified number of bytes if not reading ahead. Data from the mark
+     * is retained, unless more than the mark's read limit has been read.
+     * Returns false at the end of the stream.
+     */
+    private boolean fill(int wanted) throws IOException {
+        // Reads continue to be served from chunks already requested after
+        // read-ahead is disabled.
+        byte[] data;
+        if (readAhead > 0 || !pending.isEmpty())
+            data = nextChunk();
+        else
+            data = readBytes(wanted);
+        if (data == null || data.length == 0)
+            return false;
+
+        int kept = 0;
+        if (markPos >= 0 && pos - markPos < markLimit)
+            kept = count - markPos;
+        else
+            markPos = -1;
+
+        if (kept == 0) {
+            // Nothing to keep, so take the data as the new buffer.
+            buf = data;
+            pos = 0;
+            count = data.length;
+            if (markPos >= 0)
+                markPos = 0;
+        } else {
+            // Append the new data to that retained from the mark, moving it
+            // to the start of the buffer.
+            byte[] newbuf = buf;
+            if (buf.length < kept + data.length) {
+                newbuf = new byte[
+                    Math.max(buf.length * 2, kept + data.length)];
+            }
+            System.arraycopy(buf, markPos, newbuf, 0, kept);
+            System.arraycopy(data, 0, newbuf, kept, data.length);
+            buf = newbuf;
+            markPos = 0;
+            pos = kept;
+            count = kept + data.length;
+        }
+        return true;
+    }
+
+    /**
+     * Wait for the next chunk read ahead, keeping the configured number of
+     * chunk requests in flight. The size of the chunks requested doubles
+     * each time, up to the chunk size. Returns null at the end of the
+     * stream.
+     */
+    private byte[] nextChunk() throws IOException {
+        if (eof && pending.isEmpty())
+            return null;
+
+        // Top up the requests in flight, and wait for the oldest.
+        if (!eof) {
+            PushyObject method = getReadBytesMethod();
+            if (method == null)
+                method = getReadMethod();
+            while (pending.size() < Math.max(readAhead, 1)) {
+                Object[] args = new Object[]{new Integer(requestSize)};
+                pending.addLast(method.__call_async__(args));
+                requestSize = Math.min(requestSize * 2, chunkSize);
+            }
+        }
+        Object result = ((PushyFuture)pending.removeFirst()).get();
+
+        byte[] bytes;
+        if (result instanceof String)
+            bytes = ((String)result).getBytes("ISO-8859-1");
+        else
+            bytes = (byte[])result;
+        if (bytes == null || bytes.length == 0) {
+            // Requests after this one will also return nothing; collect
+            // them so they aren't left waiting on the connection.
+            eof = true;
+            while (!pending.isEmpty())
+                ((PushyFuture)pending.removeFirst()).get();
+            return null;
+        }
+        return bytes;
     }
 
     // Open a file in the remote interpreter.
     private static PushyObject open(Client client, String path, String mode) {
         Module builtin = client.getModule("__builtin__");
-        PushyObject open = (PushyObject)builtin.__getattr__("open");
-        return (PushyObject)open.__call__(new String[]{path, mode});
+        return (PushyObject)builtin.__callpath__(
+            "open", new String[]{path, mode}, null);
     }
 }
-
@@ -28,17 +28,49 @@ package pushy.io;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
 
 import pushy.Client;
 import pushy.Module;
+import pushy.PushyFuture;
 import pushy.PushyObject;
 
+/**
+ * An output stream writing to a file-like object in the remote interpreter.
+ *
+ * Files opened by path are written behind: data is collected into chunks
+ * of {@link #getChunkSize} bytes, which are written asynchronously, with up
+ * to {@link #getWriteBehind} chunks in flight at once. Errors writing a
+ * chunk are reported by a later write, or by flush or close. Streams created
+ * for arbitrary file-like objects, such as pipes, write data as soon as it
+ * is given; write-behind may be enabled for them with
+ * {@link #setWriteBehind}.
+ */
 public class FileOutputStream extends OutputStream {
+    /**
+     * The default size of the chunks in which data is written: 1MiB.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+    /**
+     * The default number of chunks in flight, for files opened by path.
+     */
+    public static final int DEFAULT_WRITE_BEHIND = 4;
+
     private PushyObject file;
     private PushyObject writeMethod;
     private PushyObject closeMethod;
     private PushyObject flushMethod;
 
+    // Write-behind state. Chunks are marshalled before __call_async__
+    // returns, so the buffer may be reused as soon as a chunk is sent.
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private int writeBehind = 0;
+    private LinkedList pending = new LinkedList();
+    private byte[] buffer = null;
+    private int count = 0;
+
     /**
      * Create a FileOutputStream for a Pushy file-like object.
      */
@@ -83,34 +115,154 @@ public class FileOutputStream extends OutputStream {
 
     public FileOutputStream(Client client, String path, String mode) {
         this(open(client, path, mode));
+        writeBehind = DEFAULT_WRITE_BEHIND;
+    }
+
+    /**
+     * Get the size of the chunks in which data is written behind.
+     */
+    public synchronized int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Set the size of the chunks in which data is written behind. Any data
+     * already buffered is sent first.
+     */
+    public synchronized void setChunkSize(int chunkSize) throws IOException {
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("chunkSize must be positive");
+        sendBuffer();
+        buffer = null;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Get the maximum number of chunks in flight. Zero means data is
+     * written synchronously.
+     */
+    public synchronized int getWriteBehind() {
+        return writeBehind;
+    }
+
+    /**
+     * Set the maximum number of chunks in flight. Zero makes writes
+     * synchronous, once data already buffered has been written.
+     */
+    public synchronized void setWriteBehind(int chunks) {
+        if (chunks < 0)
+            throw new IllegalArgumentException("chunks must not be negative");
+        writeBehind = chunks;
     }
 
-    public void close() throws IOException {
-        closeMethod.__call__(null);
+    public synchronized void close() throws IOException {
+        try {
+            sendBuffer();
+            waitForPending(0);
+        } finally {
+            closeMethod.__call__(null);
+        }
     }
 
-    public void flush() throws IOException {
+    public synchronized void flush() throws IOException {
+        sendBuffer();
+        waitForPending(0);
         flushMethod.__call__(null);
     }
 
-    public void write(byte[] b, int offset, int length) throws IOException {
-        writeMethod.__call__(
-            new Object[]{new String(b, offset, length, "ISO-8859-1")});
+    public synchronized void write(byte[] b, int offset, int length)
+        throws IOException
+    {
+        if (writeBehind == 0) {
+            // Byte arrays and buffers are sent as binary, without conversion
+            // to a string.
+            sendBuffer();
+            waitForPending(0);
+            Object data = b;
+            if (offset != 0 || length != b.length)
+                data = ByteBuffer.wrap(b, offset, length);
+            writeMethod.__call__(new Object[]{data});
+            return;
+        }
+
+        // Top up the buffer, and send it when full. Whole chunks are sent
+        // straight from the caller's array.
+        while (length > 0) {
+            if (count == 0 && length >= chunkSize) {
+                sendChunk(ByteBuffer.wrap(b, offset, chunkSize));
+                offset += chunkSize;
+                length -= chunkSize;
+            } else {
+                if (buffer == null)
+                    buffer = new byte[chunkSize];
+                int n = Math.min(length, chunkSize - count);
+                System.arraycopy(b, offset, buffer, count, n);
+                count += n;
+                offset += n;
+                length -= n;
+                if (count == chunkSize)
+                    sendBuffer();
+            }
+        }
     }
 
     public void write(byte[] b) throws IOException {
         write(b, 0, b.length);
     }
 
-    public void write(int b) throws IOException {
-        write(new byte[]{(byte)b});
+    public synchronized void write(int b) throws IOException {
+        if (writeBehind > 0 && buffer != null && count < chunkSize) {
+            buffer[count++] = (byte)b;
+            if (count == chunkSize)
+                sendBuffer();
+        } else {
+            write(new byte[]{(byte)b});
+        }
+    }
+
+    /**
+     * Send any buffered data asynchronously.
+     */
+    private void sendBuffer() throws IOException {
+        if (count > 0) {
+            sendChunk(ByteBuffer.wrap(buffer, 0, count));
+            count = 0;
+        }
+    }
+
+    /**
+     * Send a chunk asynchronously, first waiting until there is room for it
+     * in flight.
+     */
+    private void sendChunk(ByteBuffer chunk) throws IOException {
+        waitForPending(Math.max(writeBehind, 1) - 1);
+        pending.addLast(writeMethod.__call_async__(new Object[]{chunk}));
+    }
+
+    /**
+     * Wait until no more than the specified number of chunks are in flight.
+     * If writing a chunk failed, the error is thrown once all chunks to be
+     * waited for have completed.
+     */
+    private void waitForPending(int limit) throws IOException {
+        RuntimeException error = null;
+        while (pending.size() > limit) {
+            try {
+                ((PushyFuture)pending.removeFirst()).get();
+            } catch (RuntimeException e) {
+                if (error == null)
+                    error = e;
+            }
+        }
+        if (error != null)
+            throw error;
     }
 
     // Open a file in the remote interpreter.
     private static PushyObject open(Client client, String path, String mode) {
         Module builtin = client.getModule("__builtin__");
-        PushyObject open = (PushyObject)builtin.__getattr__("open");
-        return (PushyObject)open.__call__(new String[]{path, mode});
+        return (PushyObject)builtin.__callpath__(
+            "open", new String[]{path, mode}, null);
     }
 }
 
@@ -33,8 +33,6 @@ import java.nio.CharBuffer;
 import java.nio.charset.Charset;
 
 import pushy.Client;
-import pushy.PushyObject;
-import pushy.Module;
 
 public class FileReader extends java.io.InputStreamReader {
     private static Charset charset; 
@@ -53,11 +51,8 @@ public class FileReader extends java.io.InputStreamReader {
     }
 
     private static InputStream getInputStream(Client client, String path) {
-        Module builtin = client.getModule("__builtin__");
-        PushyObject open = (PushyObject)builtin.__getattr__("open");
-        PushyObject file =
-            (PushyObject)open.__call__(new String[]{path, "r"});
-        return new FileInputStream(file);
+        // Open by path, so the file is read ahead in chunks.
+        return new FileInputStream(client, path, "r");
     }
 }
 
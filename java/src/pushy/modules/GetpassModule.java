@@ -26,19 +26,15 @@
 package pushy.modules;
 
 import pushy.Client;
-import pushy.PushyObject;
 import pushy.Module;
 
 public class GetpassModule extends Module {
-    private PushyObject getuserMethod;
-
     public GetpassModule(Client client) {
-        super(client, "getpass");
-        getuserMethod = __getmethod__("getuser");
+        super(client, "getpass", true);
     }
 
     public String getuser() {
-        return (String)getuserMethod.__call__();
+        return (String)__getmethod__("getuser").__call__();
     }
 }
 
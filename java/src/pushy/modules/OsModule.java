@@ -33,56 +33,35 @@ import java.util.List;
 import java.util.Map;
 
 public class OsModule extends Module {
-    private PushyObject chdirMethod;
-    private PushyObject chmodMethod;
-    private PushyObject getcwdMethod;
-    private PushyObject killMethod;
-    private PushyObject removeMethod;
-    private PushyObject rmdirMethod;
-    private PushyObject mkdirMethod;
-    private PushyObject makedirsMethod;
-    private PushyObject statMethod;
-    private PushyObject listdirMethod;
-    private PushyObject renameMethod;
-
     public final String sep;
     public final String pathsep;
     public final String linesep;
     public final Map environ;
 
     public OsModule(Client client) {
-        super(client, "os");
-        if (__hasattr__("kill"))
-            killMethod = __getmethod__("kill");
-        chdirMethod = __getmethod__("chdir");
-        chmodMethod = __getmethod__("chmod");
-        getcwdMethod = __getmethod__("getcwd");
-        removeMethod = __getmethod__("remove");
-        rmdirMethod = __getmethod__("rmdir");
-        mkdirMethod = __getmethod__("mkdir");
-        makedirsMethod = __getmethod__("makedirs");
-        statMethod = __getmethod__("stat");
-        listdirMethod = __getmethod__("listdir");
-        renameMethod = __getmethod__("rename");
-
-        // Get module-level attributes.
-        sep = (String)__getattr__("sep");
-        pathsep = (String)__getattr__("pathsep");
-        linesep = (String)__getattr__("linesep");
-        environ = new pushy.util.Map((PushyObject)__getattr__("environ"));
+        super(client, "os", true);
+
+        // Import the module and get module-level attributes in one request.
+        Object[] values = __getattrs__(
+            new String[]{"sep", "pathsep", "linesep", "environ"});
+        sep = (String)values[0];
+        pathsep = (String)values[1];
+        linesep = (String)values[2];
+        environ = new pushy.util.Map((PushyObject)values[3]);
     }
 
     public PushyObject stat(String path) {
-        return (PushyObject)statMethod.__call__(new Object[]{path});
+        return (PushyObject)__getmethod__("stat").__call__(
+            new Object[]{path});
     }
 
     public String getcwd() {
-        return (String)getcwdMethod.__call__();
+        return (String)__getmethod__("getcwd").__call__();
     }
 
     public void kill(int pid, int signal) {
-        if (killMethod != null) {
-            killMethod.__call__(
+        if (__hasmethod__("kill")) {
+            __getmethod__("kill").__call__(
                 new Object[]{new Integer(pid), new Integer(signal)});
         } else {
             throw new UnsupportedOperationException("kill is not supported");
@@ -90,36 +69,38 @@ public class OsModule extends Module {
     }
 
     public void remove(String path) {
-        removeMethod.__call__(new Object[]{path});
+        __getmethod__("remove").__call__(new Object[]{path});
     }
 
     public void rmdir(String path) {
-        rmdirMethod.__call__(new Object[]{path});
+        __getmethod__("rmdir").__call__(new Object[]{path});
     }
 
     public void mkdir(String path) {
-        mkdirMethod.__call__(new Object[]{path});
+        __getmethod__("mkdir").__call__(new Object[]{path});
     }
 
     public void makedirs(String path) {
-        makedirsMethod.__call__(new Object[]{path});
+        __getmethod__("makedirs").__call__(new Object[]{path});
     }
 
     public String[] listdir(String path) {
-        List files = (List)listdirMethod.__call__(new Object[]{path});
+        List files =
+            (List)__getmethod__("listdir").__call__(new Object[]{path});
         return (String[])files.toArray(new String[]{});
     }
 
     public void chdir(String path) {
-        chdirMethod.__call__(new Object[]{path});
+        __getmethod__("chdir").__call__(new Object[]{path});
     }
 
     public void chmod(String path, int mode) {
-        chmodMethod.__call__(new Object[]{path, new Integer(mode)});
+        __getmethod__("chmod").__call__(
+            new Object[]{path, new Integer(mode)});
     }
 
     public void rename(String src, String dest) {
-        renameMethod.__call__(new Object[]{src, dest});
+        __getmethod__("rename").__call__(new Object[]{src, dest});
     }
 }
 
@@ -26,53 +26,41 @@
 package pushy.modules;
 
 import pushy.Client;
-import pushy.PushyObject;
 import pushy.Module;
 
 public class OsPathModule extends Module {
-    private PushyObject existsMethod;
-    private PushyObject isDirMethod;
-    private PushyObject isFileMethod;
-    private PushyObject isAbsMethod;
-    private PushyObject abspathMethod;
-    private PushyObject expanduserMethod;
-
     public OsPathModule(Client client) {
-        super(client, "os.path");
-        existsMethod = __getmethod__("exists");
-        isDirMethod = __getmethod__("isdir");
-        isFileMethod = __getmethod__("isfile");
-        isAbsMethod = __getmethod__("isabs");
-        abspathMethod = __getmethod__("abspath");
-        expanduserMethod = __getmethod__("expanduser");
+        super(client, "os.path", true);
     }
 
     public boolean exists(String path) {
-        return ((Boolean)existsMethod.__call__(
+        return ((Boolean)__getmethod__("exists").__call__(
                    new Object[]{path})).booleanValue();
     }
     
     public boolean isdir(String path) {
-        return ((Boolean)isDirMethod.__call__(
+        return ((Boolean)__getmethod__("isdir").__call__(
                    new Object[]{path})).booleanValue();
     }
     
     public boolean isfile(String path) {
-        return ((Boolean)isFileMethod.__call__(
+        return ((Boolean)__getmethod__("isfile").__call__(
                    new Object[]{path})).booleanValue();
     }
 
     public boolean isabs(String path) {
-        return ((Boolean)isAbsMethod.__call__(
+        return ((Boolean)__getmethod__("isabs").__call__(
                    new Object[]{path})).booleanValue();
     }
 
     public String abspath(String path) {
-        return (String)abspathMethod.__call__(new Object[]{path});
+        return (String)__getmethod__("abspath").__call__(
+            new Object[]{path});
     }
 
     public String expanduser(String path) {
-        return (String)expanduserMethod.__call__(new Object[]{path});
+        return (String)__getmethod__("expanduser").__call__(
+            new Object[]{path});
     }
 }
 
@@ -25,63 +25,47 @@
 
 package pushy.modules;
 
-import pushy.PushyObject;
 import pushy.Client;
 import pushy.Module;
 
 public class PlatformModule extends Module
 {
-    private PushyObject platformMethod;
-    private PushyObject systemMethod;
-    private PushyObject machineMethod;
-    private PushyObject releaseMethod;
-    private PushyObject versionMethod;
-    private PushyObject win32verMethod;
-    private PushyObject architectureMethod;
-
     public PlatformModule(Client client)
     {
-        super(client, "platform");
-        platformMethod = __getmethod__("platform");
-        systemMethod = __getmethod__("system");
-        machineMethod = __getmethod__("machine");
-        releaseMethod = __getmethod__("release");
-        versionMethod = __getmethod__("version");
-        if (__hasattr__("win32_ver"))
-            win32verMethod = __getmethod__("win32_ver");
-        architectureMethod = __getmethod__("architecture");
+        super(client, "platform", true);
     }
 
     public String platform()
     {
-        return (String)platformMethod.__call__();
+        return (String)__getmethod__("platform").__call__();
     }
 
     public String system()
     {
-        return (String)systemMethod.__call__();
+        return (String)__getmethod__("system").__call__();
     }
 
     public String machine()
     {
-        return (String)machineMethod.__call__();
+        return (String)__getmethod__("machine").__call__();
     }
 
     public String version()
     {
-        return (String)versionMethod.__call__();
+        return (String)__getmethod__("version").__call__();
     }
 
     public String release()
     {
-        return (String)releaseMethod.__call__();
+        return (String)__getmethod__("release").__call__();
     }
 
     public String[] win32_ver()
     {
-        if (win32verMethod != null)
+        if (__hasmethod__("win32_ver"))
         {
-            Object[] objects = (Object[])win32verMethod.__call__();
+            Object[] objects =
+                (Object[])__getmethod__("win32_ver").__call__();
             String[] values = new String[objects.length];
             for (int i = 0; i < objects.length; ++i)
                 values[i] = (String)objects[i];
@@ -95,7 +79,7 @@ public class PlatformModule extends Module
      */
     public String[] architecture()
     {
-        return (String[])architectureMethod.__call__();
+        return (String[])__getmethod__("architecture").__call__();
     }
 
     /**
@@ -103,7 +87,8 @@ public class PlatformModule extends Module
      */
     public String[] architecture(String path)
     {
-        return (String[])architectureMethod.__call__(new Object[]{path});
+        return (String[])__getmethod__("architecture").__call__(
+            new Object[]{path});
     }
 }
 
@@ -26,19 +26,16 @@
 package pushy.modules;
 
 import pushy.Client;
-import pushy.PushyObject;
 import pushy.Module;
 
 public class ShutilModule extends Module {
-    private PushyObject copyfileMethod;
     
     public ShutilModule(Client client) {
-        super(client, "shutil");    
-        copyfileMethod = __getmethod__("copyfile");
+        super(client, "shutil", true);    
     }
 
     public void copyfile(String src, String dst) {
-        copyfileMethod.__call__(new Object[]{src, dst});
+        __getmethod__("copyfile").__call__(new Object[]{src, dst});
     }
 }
 
@@ -33,7 +33,7 @@ public class SignalModule extends Module {
     public static final int SIGKILL = 9;
     
     public SignalModule(Client client) {
-        super(client, "signal");
+        super(client, "signal", true);
     }
 
     public int getSignal(String name) {
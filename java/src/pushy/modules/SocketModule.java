@@ -62,24 +62,19 @@ public class SocketModule extends Module {
         new SocketOption("IP_TOS");
 
     private Client client;
-    private PushyObject gethostnameMethod;
-    private PushyObject gethostbynameMethod;
-    private PushyObject socketMethod;
 
     public SocketModule(Client client) {
-        super(client, "socket");
+        super(client, "socket", true);
         this.client = client;
-        gethostnameMethod = __getmethod__("gethostname");
-        gethostbynameMethod = __getmethod__("gethostbyname");
-        socketMethod = __getmethod__("socket");
     }
 
     public String getHostName() {
-        return (String)gethostnameMethod.__call__();
+        return (String)__getmethod__("gethostname").__call__();
     }
 
     public String getHostByName(String name) {
-        return (String)gethostbynameMethod.__call__(new String[]{name});
+        return (String)__getmethod__("gethostbyname").__call__(
+            new String[]{name});
     }
 
     public RemoteSocket socket() {
@@ -96,7 +91,7 @@ public class SocketModule extends Module {
 
     public RemoteSocket socket(int family, int type, int protocol) {
         PushyObject socketObject =
-            (PushyObject)socketMethod.__call__(new Object[]{
+            (PushyObject)__getmethod__("socket").__call__(new Object[]{
                 new Integer(family),
                 new Integer(type),
                 new Integer(protocol)});
@@ -55,7 +55,7 @@ public class StatModule extends Module
     public static final int S_IXOTH = 00001;
 
     public StatModule(Client client) {
-        super(client, "stat");
+        super(client, "stat", true);
     }
 }
 
@@ -28,21 +28,13 @@ package pushy.modules;
 import java.lang.reflect.Array;
 
 import pushy.Client;
-import pushy.PushyObject;
 import pushy.Module;
 
 public class StructModule extends Module
 {
-    private final PushyObject packMethod;
-    private final PushyObject unpackMethod;
-    private final PushyObject calcsizeMethod;
-
     public StructModule(Client client)
     {
-        super(client, "struct");
-        calcsizeMethod = __getmethod__("calcsize");
-        unpackMethod = __getmethod__("unpack");
-        packMethod = __getmethod__("pack");
+        super(client, "struct", true);
     }
 
     public String pack(String format, Object[] values)
@@ -51,12 +43,13 @@ public class StructModule extends Module
         args[0] = format;
         if (values.length > 0)
             System.arraycopy(values, 0, args, 1, values.length);
-        return (String)packMethod.__call__(args);
+        return (String)__getmethod__("pack").__call__(args);
     }
 
     public Object[] unpack(String format, String bytes)
     {
-        Object result = unpackMethod.__call__(new Object[]{format, bytes});
+        Object result =
+            __getmethod__("unpack").__call__(new Object[]{format, bytes});
         if (result instanceof Object[])
             return (Object[])result;
         Object[] array = new Object[Array.getLength(result)];
@@ -67,7 +60,8 @@ public class StructModule extends Module
 
     public int calcsize(String format)
     {
-        Number size = (Number)calcsizeMethod.__call__(new Object[]{format});
+        Number size =
+            (Number)__getmethod__("calcsize").__call__(new Object[]{format});
         return size.intValue();
     }
 }
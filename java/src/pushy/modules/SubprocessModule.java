@@ -41,18 +41,17 @@ public class SubprocessModule extends Module {
     private Client client;
     private OsModule osModule;
     private SignalModule signalModule;
-    private PushyObject Popen;
     private Object PIPE;
     private Object STDOUT;
 
     public SubprocessModule(Client client) {
-        super(client, "subprocess");
+        super(client, "subprocess", true);
         this.client = client;
         osModule = (OsModule)client.getModule("os");
         signalModule = (SignalModule)client.getModule("signal");
-        Popen = __getmethod__("Popen");
-        PIPE = __getattr__("PIPE");
-        STDOUT = __getattr__("STDOUT");
+        Object[] values = __getattrs__(new String[]{"PIPE", "STDOUT"});
+        PIPE = values[0];
+        STDOUT = values[1];
     }
 
     public Process exec(String command) {
@@ -107,7 +106,8 @@ public class SubprocessModule extends Module {
             kwargs.put("env", remoteEnv);
         }
 
-        PushyObject popen = (PushyObject)Popen.__call__(args, kwargs);
+        PushyObject popen =
+            (PushyObject)__getmethod__("Popen").__call__(args, kwargs);
         return new JPushyProcess(client, popen, osModule, signalModule,
                                  combineStderrStdout);
     }
@@ -136,13 +136,13 @@ class JPushyProcess extends Process {
         this.popen = popen;
         this.osModule = osModule;
         this.signalModule = signalModule;
-        stdoutStream =
-            new FileInputStream((PushyObject)popen.__getattr__("stdout"));
+        stdoutStream = new FileInputStream(
+            client, (PushyObject)popen.__getattr__("stdout"));
         stdinStream =
             new FileOutputStream((PushyObject)popen.__getattr__("stdin"));
         if (!combineStderrStdout)
-            stderrStream =
-                new FileInputStream((PushyObject)popen.__getattr__("stderr"));
+            stderrStream = new FileInputStream(
+                client, (PushyObject)popen.__getattr__("stderr"));
     }
 
     private int getPid() {
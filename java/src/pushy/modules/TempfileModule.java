@@ -26,22 +26,19 @@
 package pushy.modules;
 
 import pushy.Client;
-import pushy.PushyObject;
 import pushy.Module;
 import java.io.File;
 
 public class TempfileModule extends Module {
     private Client client;
-    private PushyObject mkdtemp;
 
     public TempfileModule(Client client) {
-        super(client, "tempfile");
+        super(client, "tempfile", true);
         this.client = client;
-        mkdtemp = __getmethod__("mkdtemp");
     }
 
     public pushy.io.File mkdtemp() {
-        String name = (String)mkdtemp.__call__();
+        String name = (String)__getmethod__("mkdtemp").__call__();
         return new pushy.io.File(client, name);
     }
 }
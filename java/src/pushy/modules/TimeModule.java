@@ -26,20 +26,15 @@
 package pushy.modules;
 
 import pushy.Client;
-import pushy.PushyObject;
 import pushy.Module;
 
 public class TimeModule extends Module {
-    private PushyObject timeMethod;
-
     public TimeModule(Client client) {
-        super(client, "time");    
-        timeMethod = __getmethod__("time");
+        super(client, "time", true);    
     }
 
     public float time() {
-        System.out.println(timeMethod.__call__());
-        return ((Float)timeMethod.__call__()).floatValue();
+        return ((Number)__getmethod__("time").__call__()).floatValue();
     }
 }
 
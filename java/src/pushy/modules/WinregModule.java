@@ -26,7 +26,6 @@
 package pushy.modules;
 
 import pushy.Client;
-import pushy.PushyObject;
 import pushy.Module;
 
 public class WinregModule extends Module {
@@ -48,16 +47,8 @@ public class WinregModule extends Module {
     public static final int REG_FULL_RESOURCE_DESCRIPTOR = 9;
     public static final int REG_RESOURCE_REQUIREMENTS_LIST = 10;
 
-    // Methods.
-    private PushyObject openKeyMethod;
-    private PushyObject closeKeyMethod;
-    private PushyObject queryValueExMethod;
-
     public WinregModule(Client client) {
-        super(client, "_winreg");
-        openKeyMethod = __getmethod__("OpenKey");
-        closeKeyMethod = __getmethod__("CloseKey");
-        queryValueExMethod = __getmethod__("QueryValueEx");
+        super(client, "_winreg", true);
     }
 
     /**
@@ -65,7 +56,7 @@ public class WinregModule extends Module {
      */
     public Object openKey(Object key, String subkey)
     {
-        return openKeyMethod.__call__(new Object[]{key, subkey});
+        return __getmethod__("OpenKey").__call__(new Object[]{key, subkey});
     }
 
     /**
@@ -73,7 +64,7 @@ public class WinregModule extends Module {
      */
     public void closeKey(Object key)
     {
-        closeKeyMethod.__call__(new Object[]{key});
+        __getmethod__("CloseKey").__call__(new Object[]{key});
     }
 
     /**
@@ -81,7 +72,8 @@ public class WinregModule extends Module {
      */
     public Object queryValue(Object key, String valueName)
     {
-        Object res = queryValueExMethod.__call__(new Object[]{key, valueName});
+        Object res = __getmethod__("QueryValueEx").__call__(
+            new Object[]{key, valueName});
         if (res != null)
         {
             if (res instanceof int[])
@@ -118,7 +118,7 @@ public class RemoteSocket extends java.net.Socket
     {
         if (!isClosed())
         {
-            ((PushyObject)object.__getattr__("close")).__call__();
+            object.__callpath__("close", null, null);
             if (inputStream != null)
                 inputStream.close();
             object = null;
@@ -226,7 +226,7 @@ public class RemoteSocket extends java.net.Socket
         if (!isInputShutdown)
         {
             if (inputStream == null)
-                inputStream = new RemoteSocketInputStream(object);
+                inputStream = new RemoteSocketInputStream(client, object);
             return inputStream;
         }
         else
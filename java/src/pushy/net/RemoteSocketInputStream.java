@@ -28,21 +28,22 @@ package pushy.net;
 import java.io.IOException;
 import java.io.InputStream;
 
+import pushy.Client;
 import pushy.PushyObject;
 
 public class RemoteSocketInputStream extends pushy.io.FileInputStream
 {
     private PushyObject recv;
 
-    RemoteSocketInputStream(PushyObject socket)
+    RemoteSocketInputStream(Client client, PushyObject socket)
     {
-        super(socket);
+        super(client, socket);
         recv = (PushyObject)socket.__getattr__("recv");
     }
 
-    public String getBytes(int n)
+    protected PushyObject getReadMethod()
     {
-        return (String)recv.__call__(new Object[]{new Integer(n)});
+        return recv;
     }
 }
 
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2013 Andrew Wilkins <axwalk@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package pushy.transport;
+
+import java.io.IOException;
+import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An in-memory transport, connected to another in the same process. This
+ * is useful for serving a connection from Java, and for testing and
+ * benchmarking without starting a Python process.
+ */
+public class LoopbackTransport implements Transport
+{
+    private Pipe.SourceChannel source;
+    private Pipe.SinkChannel sink;
+
+    private LoopbackTransport(Pipe.SourceChannel source, Pipe.SinkChannel sink)
+    {
+        this.source = source;
+        this.sink = sink;
+    }
+
+    /**
+     * Create a pair of transports, each of which reads what the other
+     * writes.
+     */
+    public static LoopbackTransport[] createPair() throws IOException
+    {
+        Pipe a = Pipe.open();
+        Pipe b = Pipe.open();
+        return new LoopbackTransport[]{
+            new LoopbackTransport(a.source(), b.sink()),
+            new LoopbackTransport(b.source(), a.sink())};
+    }
+
+    public ReadableByteChannel getReadChannel()
+    {
+        return source;
+    }
+
+    public WritableByteChannel getWriteChannel()
+    {
+        return sink;
+    }
+
+    public boolean isOpen()
+    {
+        return source.isOpen() && sink.isOpen();
+    }
+
+    /**
+     * Close the transport. The other transport of the pair reads the end of
+     * the stream.
+     */
+    public void close() throws IOException
+    {
+        try
+        {
+            sink.close();
+        }
+        finally
+        {
+            source.close();
+        }
+    }
+}
+
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2013 Andrew Wilkins <axwalk@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package pushy.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A transport over the standard input and output of a subprocess.
+ */
+public class ProcessTransport implements Transport
+{
+    private Process process;
+    private ReadableByteChannel readChannel;
+    private WritableByteChannel writeChannel;
+    private volatile boolean closed = false;
+
+    public ProcessTransport(Process process)
+    {
+        this.process = process;
+        readChannel = new InputStreamChannel(process.getInputStream());
+        writeChannel = new OutputStreamChannel(process.getOutputStream());
+    }
+
+    /**
+     * Start a process with the specified command, and create a transport
+     * over its standard input and output.
+     */
+    public static ProcessTransport exec(String[] command) throws IOException
+    {
+        return new ProcessTransport(Runtime.getRuntime().exec(command));
+    }
+
+    /**
+     * Get the process.
+     */
+    public Process getProcess()
+    {
+        return process;
+    }
+
+    public ReadableByteChannel getReadChannel()
+    {
+        return readChannel;
+    }
+
+    public WritableByteChannel getWriteChannel()
+    {
+        return writeChannel;
+    }
+
+    public boolean isOpen()
+    {
+        if (closed)
+            return false;
+        try
+        {
+            process.exitValue();
+            return false;
+        }
+        catch (IllegalThreadStateException e)
+        {
+            return true;
+        }
+    }
+
+    /**
+     * Close the process's standard input and output, and destroy it.
+     */
+    public synchronized void close() throws IOException
+    {
+        if (!closed)
+        {
+            closed = true;
+            try
+            {
+                writeChannel.close();
+                readChannel.close();
+            }
+            finally
+            {
+                process.destroy();
+            }
+        }
+    }
+
+    // The channels returned by java.nio.channels.Channels close if the thread
+    // using them is interrupted, and copy through an intermediate buffer;
+    // these do neither.
+
+    private static class InputStreamChannel implements ReadableByteChannel
+    {
+        private InputStream stream;
+        private volatile boolean open = true;
+
+        InputStreamChannel(InputStream stream)
+        {
+            this.stream = stream;
+        }
+
+        public int read(ByteBuffer buffer) throws IOException
+        {
+            int nread;
+            if (buffer.hasArray())
+            {
+                nread = stream.read(
+                    buffer.array(), buffer.arrayOffset() + buffer.position(),
+                    buffer.remaining());
+                if (nread > 0)
+                    buffer.position(buffer.position() + nread);
+            }
+            else
+            {
+                byte[] bytes = new byte[buffer.remaining()];
+                nread = stream.read(bytes);
+                if (nread > 0)
+                    buffer.put(bytes, 0, nread);
+            }
+            return nread;
+        }
+
+        public boolean isOpen()
+        {
+            return open;
+        }
+
+        public void close() throws IOException
+        {
+            open = false;
+            stream.close();
+        }
+    }
+
+    private static class OutputStreamChannel implements WritableByteChannel
+    {
+        private OutputStream stream;
+        private volatile boolean open = true;
+
+        OutputStreamChannel(OutputStream stream)
+        {
+            this.stream = stream;
+        }
+
+        public int write(ByteBuffer buffer) throws IOException
+        {
+            int length = buffer.remaining();
+            if (buffer.hasArray())
+            {
+                stream.write(
+                    buffer.array(), buffer.arrayOffset() + buffer.position(),
+                    length);
+                buffer.position(buffer.limit());
+            }
+            else
+            {
+                byte[] bytes = new byte[length];
+                buffer.get(bytes);
+                stream.write(bytes);
+            }
+            stream.flush();
+            return length;
+        }
+
+        public boolean isOpen()
+        {
+            return open;
+        }
+
+        public void close() throws IOException
+        {
+            open = false;
+            stream.close();
+        }
+    }
+}
+
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2013 Andrew Wilkins <axwalk@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package pushy.transport;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A transport over a socket channel, such as a TCP or Unix domain socket
+ * connection to a Pushy daemon (see pushy/server.py).
+ */
+public class SocketTransport implements Transport
+{
+    private SocketChannel channel;
+
+    /**
+     * Create a transport over a connected socket channel. The channel is
+     * switched to non-blocking mode.
+     */
+    public SocketTransport(SocketChannel channel) throws IOException
+    {
+        this.channel = channel;
+        channel.configureBlocking(false);
+    }
+
+    /**
+     * Connect to the specified TCP host and port, with TCP_NODELAY set, as
+     * messages are typically small and latency-sensitive.
+     */
+    public static SocketTransport connect(String host, int port)
+        throws IOException
+    {
+        SocketChannel channel = SocketChannel.open();
+        try
+        {
+            channel.socket().setTcpNoDelay(true);
+            return connect(channel, new InetSocketAddress(host, port));
+        }
+        catch (IOException e)
+        {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Connect to the Unix domain socket at the specified path. This requires
+     * Java 16 or later, and is accessed reflectively so that Pushy may still
+     * be used with earlier versions.
+     */
+    public static SocketTransport connectUnix(String path) throws IOException
+    {
+        SocketAddress address;
+        SocketChannel channel;
+        try
+        {
+            Class family = Class.forName("java.net.ProtocolFamily");
+            Object unix = Class.forName("java.net.StandardProtocolFamily")
+                .getField("UNIX").get(null);
+            Method of = Class.forName("java.net.UnixDomainSocketAddress")
+                .getMethod("of", new Class[]{String.class});
+            Method open =
+                SocketChannel.class.getMethod("open", new Class[]{family});
+            address = (SocketAddress)of.invoke(null, new Object[]{path});
+            channel = (SocketChannel)open.invoke(null, new Object[]{unix});
+        }
+        catch (InvocationTargetException e)
+        {
+            if (e.getCause() instanceof IOException)
+                throw (IOException)e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+        catch (Exception e)
+        {
+            throw new UnsupportedOperationException(
+                "Unix domain sockets require Java 16 or later");
+        }
+        return connect(channel, address);
+    }
+
+    /**
+     * Connect an unconnected channel to the specified address. The channel
+     * is closed if the connection fails.
+     */
+    static SocketTransport
+    connect(SocketChannel channel, SocketAddress address) throws IOException
+    {
+        try
+        {
+            // Connect in blocking mode; the transport is non-blocking.
+            channel.connect(address);
+            return new SocketTransport(channel);
+        }
+        catch (IOException e)
+        {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Get the socket channel.
+     */
+    public SocketChannel getChannel()
+    {
+        return channel;
+    }
+
+    public ReadableByteChannel getReadChannel()
+    {
+        return channel;
+    }
+
+    public WritableByteChannel getWriteChannel()
+    {
+        return channel;
+    }
+
+    public boolean isOpen()
+    {
+        return channel.isOpen();
+    }
+
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+}
+
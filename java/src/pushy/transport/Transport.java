@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2013 Andrew Wilkins <axwalk@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package pushy.transport;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A bidirectional byte stream between a {@link pushy.Client} and a Pushy
+ * server, such as a subprocess's pipes or a socket.
+ *
+ * The channels are used by two threads at a time: one reading, and one
+ * writing. Channels which are non-blocking must be selectable, in which case
+ * reads and writes wait for them to become ready.
+ */
+public interface Transport
+{
+    /**
+     * Get the channel for reading from the server.
+     */
+    public ReadableByteChannel getReadChannel();
+
+    /**
+     * Get the channel for writing to the server.
+     */
+    public WritableByteChannel getWriteChannel();
+
+    /**
+     * Check whether the transport is open. A transport is no longer open
+     * once it has been closed, or it knows the server has gone away, such as
+     * when a server process exits.
+     */
+    public boolean isOpen();
+
+    /**
+     * Close the transport, and release any resources associated with it.
+     * Closing a transport that is already closed has no effect.
+     */
+    public void close() throws IOException;
+}
+
@@ -43,8 +43,6 @@ public class List extends AbstractList {
 
     public List(PushyObject object) {
         this.object = object;
-        insert = (PushyObject)object.__getattr__("insert");
-        append = (PushyObject)object.__getattr__("append");
     }
 
     public Object get(int index) {
@@ -63,10 +61,14 @@ public class List extends AbstractList {
     }
 
     public void add(int index, Object o) {
+        if (insert == null)
+            insert = (PushyObject)object.__getattr__("insert");
         insert.__call__(new Object[]{new Integer(index), o});
     }
 
     public boolean add(Object o) {
+        if (append == null)
+            append = (PushyObject)object.__getattr__("append");
         append.__call__(new Object[]{o});
         return true;
     }
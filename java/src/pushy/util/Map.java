@@ -44,12 +44,14 @@ public class Map extends AbstractMap implements Iterable {
     private PushyObject contains;
     private PushyObject values;
  
+    // Methods are looked up when first used, so that wrapping an object
+    // makes no requests.
     public Map(PushyObject object) {
         this.object = object;
-        update = (PushyObject)object.__getattr__("update");
-        get = (PushyObject)object.__getattr__("get");
-        contains = (PushyObject)object.__getattr__("__contains__");
-        values = (PushyObject)object.__getattr__("values");
+    }
+
+    private PushyObject getMethod(String name) {
+        return (PushyObject)object.__getattr__(name);
     }
 
     public Iterator iterator() {
@@ -57,15 +59,21 @@ public class Map extends AbstractMap implements Iterable {
     }
 
     public boolean containsKey(Object key) {
+        if (contains == null)
+            contains = getMethod("__contains__");
         return ((Boolean)contains.__call__(new Object[]{key})).booleanValue();
     }
 
     public boolean containsValue(Object value) {
+        if (contains == null)
+            contains = getMethod("__contains__");
         Boolean res = (Boolean)contains.__call__(new Object[]{value});
         return res.booleanValue();
     }
 
     public Object get(Object key) {
+        if (get == null)
+            get = getMethod("get");
         return get.__call__(new Object[]{key});
     }
     
@@ -83,6 +91,8 @@ public class Map extends AbstractMap implements Iterable {
                 Map.Entry entry = (Map.Entry)iter.next();
                 items[i++] = new Object[]{entry.getKey(), entry.getValue()};
             }
+            if (update == null)
+                update = getMethod("update");
             update.__call__(new Object[]{items});
         }
     }
@@ -96,6 +106,8 @@ public class Map extends AbstractMap implements Iterable {
     }
 
     public Collection values() {
+        if (values == null)
+            values = getMethod("values");
         return (Collection)values.__call__();
     }
 }
@@ -107,10 +119,11 @@ class PushyMapEntrySet extends AbstractSet {
 
     public PushyMapEntrySet(PushyObject object) {
         this.object = object;
-        items = (PushyObject)object.__getattr__("items");
     }
 
     public Iterator iterator() {
+        if (items == null)
+            items = (PushyObject)object.__getattr__("items");
         java.util.List itemsList = (java.util.List)items.__call__();
         return new PushyMapEntrySetIterator(itemsList.iterator());
     }
@@ -0,0 +1,644 @@
+/*
+ * Copyright (c) 2013 Andrew Wilkins <axwalk@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package pushy;
+
+import junit.framework.TestCase;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import pushy.internal.Callable;
+import pushy.internal.Connection;
+import pushy.internal.Message;
+import pushy.internal.RemoteException;
+
+/**
+ * Tests for asynchronous requests, using a pair of Java connections talking to
+ * each other over a local socket.
+ */
+public class AsyncRequestTest extends TestCase
+{
+    private Socket[] sockets;
+    protected Connection local;
+    protected Connection peer;
+    private Thread peerThread;
+    private int flushCount;
+    private int bytesWritten;
+    private volatile boolean legacyPeer;
+    private volatile int peerDeleteWrites;
+    private final AtomicInteger peerResponseFlushes = new AtomicInteger();
+
+    public void setUp() throws Exception {
+        connect(0);
+    }
+
+    /**
+     * Create the pair of connections, with the specified socket buffer
+     * sizes, or the defaults if zero.
+     */
+    protected void connect(int bufferSize) throws Exception {
+        // Only count flushes made by the test's own thread; in dispatcher
+        // mode, other threads flush responses to the peer's callbacks.
+        final Thread testThread = Thread.currentThread();
+        ServerSocket server = new ServerSocket();
+        try {
+            if (bufferSize > 0)
+                server.setReceiveBufferSize(bufferSize);
+            server.bind(new InetSocketAddress("localhost", 0));
+            sockets = new Socket[2];
+            sockets[0] = new Socket();
+            if (bufferSize > 0) {
+                sockets[0].setReceiveBufferSize(bufferSize);
+                sockets[0].setSendBufferSize(bufferSize);
+            }
+            sockets[0].connect(new InetSocketAddress(
+                "localhost", server.getLocalPort()));
+            sockets[1] = server.accept();
+            if (bufferSize > 0)
+                sockets[1].setSendBufferSize(bufferSize);
+        } finally {
+            server.close();
+        }
+        OutputStream ostream =
+            new FilterOutputStream(sockets[0].getOutputStream()) {
+                public void write(byte[] b, int off, int len)
+                    throws IOException {
+                    bytesWritten += len;
+                    out.write(b, off, len);
+                }
+                public void flush() throws IOException {
+                    if (Thread.currentThread() == testThread)
+                        ++flushCount;
+                    super.flush();
+                }
+            };
+        local = new Connection(sockets[0].getInputStream(), ostream);
+        // Count the writes made by the peer's garbage collection flusher,
+        // and the flushes made by the threads handling its requests.
+        OutputStream peerStream =
+            new FilterOutputStream(sockets[1].getOutputStream()) {
+                public void write(byte[] b, int off, int len)
+                    throws IOException {
+                    if (Thread.currentThread().getName().startsWith(
+                            "pushy-gc"))
+                        ++peerDeleteWrites;
+                    out.write(b, off, len);
+                }
+
+                public void flush() throws IOException {
+                    super.flush();
+                    if (!Thread.currentThread().getName().startsWith(
+                            "pushy-gc"))
+                        peerResponseFlushes.incrementAndGet();
+                }
+            };
+        peer = new Connection(sockets[1].getInputStream(), peerStream) {
+                // Optionally treat requests as a peer that predates the
+                // compression message type does: as an unknown type.
+                protected Object handleInternal(Message.Type type,
+                                                Object arg) {
+                    if (legacyPeer && Message.Type.compression.equals(type))
+                        type = null;
+
+                    // "Calling" a size returns that many bytes, produced by
+                    // the peer itself rather than by calling back.
+                    if (Message.Type.op__call__.equals(type)) {
+                        Object object = ((Object[])arg)[0];
+                        if (object instanceof Integer)
+                            return new byte[((Integer)object).intValue()];
+                    }
+                    return super.handleInternal(type, arg);
+                }
+            };
+        configure();
+        peerThread = new Thread() {
+            public void run() {
+                peer.serve();
+            }
+        };
+        peerThread.setDaemon(true);
+        peerThread.start();
+    }
+
+    /**
+     * Configure the connections before they are used.
+     */
+    protected void configure() {
+    }
+
+    public void tearDown() throws Exception {
+        sockets[0].close();
+        sockets[1].close();
+    }
+
+    /**
+     * Test that several requests may be outstanding at once, and their results
+     * collected in any order.
+     */
+    public void testOutOfOrderResults() {
+        final int n = 10;
+        Callable square = new Callable() {
+            public Object call(Object[] args, Map kwargs) {
+                int value = Integer.parseInt((String)args[0]);
+                return new Integer(value * value);
+            }
+        };
+
+        PushyFuture[] futures = new PushyFuture[n];
+        for (int i = 0; i < n; ++i) {
+            futures[i] = local.callAsync(
+                square, new Object[]{String.valueOf(i)}, null);
+        }
+        for (int i = n - 1; i >= 0; --i) {
+            assertEquals(new Integer(i * i), futures[i].get());
+            assertTrue(futures[i].isDone());
+        }
+
+        // The result is retained.
+        assertEquals(new Integer(81), futures[9].get());
+    }
+
+    /**
+     * Test that an exception raised by the request is thrown by get().
+     */
+    public void testException() {
+        Callable fail = new Callable() {
+            public Object call(Object[] args, Map kwargs) {
+                throw new IllegalStateException("failed");
+            }
+        };
+
+        PushyFuture future = local.callAsync(fail, null, null);
+        try {
+            future.get();
+            fail("Expected RemoteException");
+        } catch (RemoteException e) {
+        }
+    }
+
+    /**
+     * Test that synchronous requests may be interleaved with asynchronous
+     * ones.
+     */
+    public void testInterleavedWithSync() {
+        Callable identity = new Callable() {
+            public Object call(Object[] args, Map kwargs) {
+                return args[0];
+            }
+        };
+
+        PushyFuture future = local.callAsync(
+            identity, new Object[]{"async"}, null);
+        assertEquals("sync",
+            local.call(identity, new Object[]{"sync"}, null));
+        assertEquals("async", future.get());
+    }
+
+    /**
+     * Create a callable that returns its argument after a delay.
+     */
+    private static Callable createSleeper(final long millis) {
+        return new Callable() {
+            public Object call(Object[] args, Map kwargs) {
+                try {
+                    Thread.sleep(millis);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return args[0];
+            }
+        };
+    }
+
+    /**
+     * Test that waiting for a result may time out, and be tried again.
+     */
+    public void testGetTimeout() throws Exception {
+        PushyFuture future = local.callAsync(
+            createSleeper(500), new Object[]{"value"}, null);
+        try {
+            future.get(50);
+            fail("Expected TimeoutException");
+        } catch (TimeoutException e) {
+        }
+        assertFalse(future.isDone());
+        assertEquals("value", future.get(10000));
+        assertEquals("value", future.get());
+    }
+
+    /**
+     * Test that a cancelled request's result is discarded, without
+     * disturbing later requests.
+     */
+    public void testCancel() throws InterruptedException {
+        int flushes = peerResponseFlushes.get();
+
+        // The request is held back until the batch completes, so its result
+        // can't be received before it is cancelled.
+        final PushyFuture[] futures = new PushyFuture[1];
+        local.batch(new Runnable() {
+            public void run() {
+                futures[0] = local.callAsync(new Integer(16), null, null);
+                assertTrue(futures[0].cancel());
+            }
+        });
+        PushyFuture future = futures[0];
+        assertTrue(future.isDone());
+        assertFalse(future.cancel());
+        try {
+            future.get();
+            fail("Expected CancellationException");
+        } catch (CancellationException e) {
+        }
+        assertEquals(8,
+            ((byte[])local.call(new Integer(8), null, null)).length);
+
+        // A request whose result has been received can't be cancelled.
+        future = local.callAsync(new Integer(4), null, null);
+        assertEquals(4, ((byte[])future.get()).length);
+        assertFalse(future.cancel());
+        assertEquals(4, ((byte[])future.get()).length);
+
+        // In dispatcher mode, the cancelled request's result may still be
+        // on its way; wait for it, so it isn't written to a closed socket.
+        long deadline = System.currentTimeMillis() + 10000;
+        while (peerResponseFlushes.get() < flushes + 3 &&
+               System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertTrue("Results were not sent",
+                   peerResponseFlushes.get() >= flushes + 3);
+    }
+
+    /**
+     * Test that asynchronous requests sent within a batch are written out
+     * together when the batch completes.
+     */
+    public void testBatch() {
+        final Callable identity = new Callable() {
+            public Object call(Object[] args, Map kwargs) {
+                return args[0];
+            }
+        };
+
+        final PushyFuture[] futures = new PushyFuture[10];
+        final int flushCountBefore = flushCount;
+        local.batch(new Runnable() {
+            public void run() {
+                for (int i = 0; i < futures.length; ++i) {
+                    futures[i] = local.callAsync(
+                        identity, new Object[]{String.valueOf(i)}, null);
+                }
+                assertEquals(flushCountBefore, flushCount);
+            }
+        });
+        assertEquals(flushCountBefore + 1, flushCount);
+
+        for (int i = 0; i < futures.length; ++i)
+            assertEquals(String.valueOf(i), futures[i].get());
+    }
+
+    /**
+     * Test that asynchronous requests are written out as soon as the
+     * pipeline's buffer size is exceeded.
+     */
+    public void testPipelineBufferSize() {
+        Callable identity = new Callable() {
+            public Object call(Object[] args, Map kwargs) {
+                return args[0];
+            }
+        };
+
+        local.setPipelineWindowMillis(60000);
+        local.setPipelineBufferSize(1);
+        int flushCountBefore = flushCount;
+        PushyFuture future = local.callAsync(
+            identity, new Object[]{"value"}, null);
+        assertEquals(flushCountBefore + 1, flushCount);
+        assertEquals("value", future.get());
+    }
+
+    /**
+     * Test that a large request may be written while the peer is blocked
+     * writing large results of asynchronous requests. They must be read in
+     * the meantime, even though the request holds the write lock.
+     */
+    public void testLargeWriteWithResultsPending() throws Exception {
+        tearDown();
+        connect(8192);
+
+        final int size = 1 << 20;
+        PushyFuture[] futures = new PushyFuture[8];
+        for (int i = 0; i < futures.length; ++i)
+            futures[i] = local.callAsync(new Integer(size), null, null);
+        final Object[] result = new Object[1];
+        Thread caller = new Thread() {
+            public void run() {
+                try {
+                    result[0] = local.call(
+                        new Integer(0), new Object[]{new byte[size]}, null);
+                } catch (Throwable e) {
+                    result[0] = e;
+                }
+            }
+        };
+        caller.setDaemon(true);
+        caller.start();
+        caller.join(30000);
+        assertFalse("Request did not complete", caller.isAlive());
+        assertEquals(0, ((byte[])result[0]).length);
+        for (int i = 0; i < futures.length; ++i)
+            assertEquals(size, ((byte[])futures[i].get()).length);
+    }
+
+    /**
+     * Test that objects passed back and forth are resolved correctly while
+     * their proxies are being garbage collected, and the deletes sent as
+     * soon as possible. A delete must not overtake a message that refers to
+     * the same object, or its ID could be reused for another.
+     */
+    public void testObjectsCollectedWhileInUse() throws Exception {
+        local.setGCBatchSize(1);
+        peer.setGCBatchSize(1);
+        final Callable identity = new Callable() {
+            public Object call(Object[] args, Map kwargs) {
+                return args[0];
+            }
+        };
+        final Throwable[] errors = new Throwable[8];
+        Thread[] threads = new Thread[errors.length];
+        for (int i = 0; i < threads.length; ++i) {
+            final int index = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < 200; ++j) {
+                            Object value = new Object();
+                            assertSame(value, local.call(
+                                identity, new Object[]{value}, null));
+                            if (j % 20 == 0)
+                                System.gc();
+                        }
+                    } catch (Throwable e) {
+                        errors[index] = e;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; ++i) {
+            threads[i].join();
+            if (errors[i] != null)
+                throw new RuntimeException(errors[i]);
+        }
+    }
+
+    /**
+     * Test that pending deletes are still sent while another connection's
+     * peer has stopped reading, and its deletes cannot be written.
+     */
+    public void testStalledConnectionDoesNotHoldUpDeletes()
+        throws Exception {
+        final Callable identity = new Callable() {
+            public Object call(Object[] args, Map kwargs) {
+                return args[0];
+            }
+        };
+
+        // Another pair of connections, whose peer blocks when its deletes
+        // are written, as if the other end had stopped reading.
+        final CountDownLatch stalled = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        ServerSocket server = new ServerSocket(0);
+        Socket[] others = new Socket[2];
+        try {
+            others[0] = new Socket("localhost", server.getLocalPort());
+            others[1] = server.accept();
+        } finally {
+            server.close();
+        }
+        OutputStream stallingStream =
+            new FilterOutputStream(others[1].getOutputStream()) {
+                public void write(byte[] b, int off, int len)
+                    throws IOException {
+                    if (Thread.currentThread().getName().startsWith(
+                            "pushy-gc")) {
+                        stalled.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            throw new IOException(e.toString());
+                        }
+                    }
+                    out.write(b, off, len);
+                }
+            };
+        Connection otherLocal = new Connection(
+            others[0].getInputStream(), others[0].getOutputStream());
+        final Connection otherPeer =
+            new Connection(others[1].getInputStream(), stallingStream);
+        Thread otherPeerThread = new Thread() {
+            public void run() {
+                otherPeer.serve();
+            }
+        };
+        otherPeerThread.setDaemon(true);
+        otherPeerThread.start();
+
+        try {
+            // The peers' proxies for the callable and its argument are
+            // garbage once each call returns.
+            otherPeer.setGCBatchSize(1);
+            otherLocal.call(identity, new Object[]{new Object()}, null);
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!stalled.await(50, TimeUnit.MILLISECONDS)) {
+                assertTrue("Deletes were not written",
+                           System.currentTimeMillis() < deadline);
+                System.gc();
+            }
+
+            peer.setGCBatchSize(1);
+            local.call(identity, new Object[]{new Object()}, null);
+            deadline = System.currentTimeMillis() + 10000;
+            while (peerDeleteWrites == 0 &&
+                   System.currentTimeMillis() < deadline) {
+                System.gc();
+                Thread.sleep(50);
+            }
+            assertTrue("Deletes were not sent", peerDeleteWrites > 0);
+        } finally {
+            release.countDown();
+            others[0].close();
+            others[1].close();
+        }
+    }
+
+    public static class Holder {
+        public Object inner;
+        public Holder(Object inner) {
+            this.inner = inner;
+        }
+    }
+
+    /**
+     * Test that a chain of attributes may be looked up, and the last called,
+     * with a single request.
+     */
+    public void testCallPath() {
+        Callable identity = new Callable() {
+            public Object call(Object[] args, Map kwargs) {
+                return args[0];
+            }
+        };
+        Holder holder = new Holder(new Holder(identity));
+
+        assertSame(identity, local.getpath(holder, "inner.inner"));
+        assertEquals("value",
+            local.callpath(holder, "inner.inner", new Object[]{"value"},
+                           null));
+        try {
+            local.getpath(holder, "inner..inner");
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            local.getpath(holder, "inner.missing");
+            fail("Expected RemoteException");
+        } catch (RemoteException e) {
+        }
+    }
+
+    /**
+     * Test that a sequence of operations, referring to each other's results,
+     * may be executed with a single request.
+     */
+    public void testCompound() {
+        Callable concat = new Callable() {
+            public Object call(Object[] args, Map kwargs) {
+                return (String)args[0] + kwargs.get("suffix");
+            }
+        };
+        Holder holder = new Holder(new Holder(concat));
+
+        Object[] results = local.compound(new Object[]{
+            new Object[]{"getattr", new Object[]{holder, "inner"},
+                         new int[0], new String[0]},
+            new Object[]{"getattr", new Object[]{new Integer(0), "inner"},
+                         new int[]{0}, new String[0]},
+            new Object[]{"call", new Object[]{new Integer(1), "a", "b"},
+                         new int[]{0}, new String[]{"suffix"}}
+        });
+        assertEquals(3, results.length);
+        assertSame(concat, results[1]);
+        assertEquals("ab", results[2]);
+
+        // A failed operation fails the whole request.
+        try {
+            local.compound(new Object[]{
+                new Object[]{"getattr", new Object[]{holder, "missing"},
+                             new int[0], new String[0]}
+            });
+            fail("Expected RemoteException");
+        } catch (RemoteException e) {
+        }
+    }
+
+    /**
+     * Test that compression is negotiated with the peer, and that large
+     * payloads are compressed in both directions.
+     */
+    public void testCompression() {
+        Callable identity = new Callable() {
+            public Object call(Object[] args, Map kwargs) {
+                return args[0];
+            }
+        };
+        StringBuffer buffer = new StringBuffer();
+        for (int i = 0; i < 10000; ++i)
+            buffer.append("pushy");
+        String text = buffer.toString();
+        Object[] args = new Object[]{text};
+
+        bytesWritten = 0;
+        assertEquals(text, local.call(identity, args, null));
+        assertTrue(bytesWritten > text.length());
+
+        local.setCompressionThreshold(1024);
+        assertEquals(1024, local.getCompressionThreshold());
+        assertEquals(1024, peer.getCompressionThreshold());
+        bytesWritten = 0;
+        assertEquals(text, local.call(identity, args, null));
+        assertTrue(bytesWritten < text.length() / 10);
+
+        // Small payloads are sent as they are.
+        assertEquals("abc",
+            local.call(identity, new Object[]{"abc"}, null));
+
+        local.setCompressionThreshold(-1);
+        assertEquals(-1, peer.getCompressionThreshold());
+        bytesWritten = 0;
+        assertEquals(text, local.call(identity, args, null));
+        assertTrue(bytesWritten > text.length());
+    }
+
+    /**
+     * Test that asking a peer that does not support compression to enable
+     * it fails, leaving the connection working uncompressed.
+     */
+    public void testCompressionUnsupported() {
+        Callable identity = new Callable() {
+            public Object call(Object[] args, Map kwargs) {
+                return args[0];
+            }
+        };
+        StringBuffer buffer = new StringBuffer();
+        for (int i = 0; i < 10000; ++i)
+            buffer.append("pushy");
+        String text = buffer.toString();
+
+        legacyPeer = true;
+        try {
+            local.setCompressionThreshold(1024);
+            fail("Expected RemoteException");
+        } catch (RemoteException e) {
+        }
+        assertEquals(-1, local.getCompressionThreshold());
+        assertEquals(-1, peer.getCompressionThreshold());
+
+        bytesWritten = 0;
+        assertEquals(text, local.call(identity, new Object[]{text}, null));
+        assertTrue(bytesWritten > text.length());
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2013 Andrew Wilkins <axwalk@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package pushy;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+
+/**
+ * Tests for caching of remote objects' attributes.
+ */
+public class AttributeCacheTest extends TestCase
+{
+    private Client client;
+
+    public void setUp() throws IOException {
+        client = new Client("local:");
+    }
+
+    public void tearDown() {
+        client.close();
+    }
+
+    /**
+     * Test that callable attributes are cached, and others are not.
+     */
+    public void testCallableAttributesCached() {
+        PushyObject object = (PushyObject)client.evaluate(
+            "type('C', (object,), {'f': lambda self: 1, 'x': 1})()");
+        client.setAttributeCacheEnabled(object, true);
+
+        Object f = object.__getattr__("f");
+        assertSame(f, object.__getattr__("f"));
+        assertTrue(object.__hasattr__("f"));
+        assertFalse(object.__hasattr__("g"));
+
+        // Non-callable attributes are always fetched.
+        assertEquals(new Integer(1), object.__getattr__("x"));
+        object.__setattr__("x", new Integer(2));
+        assertEquals(new Integer(2), object.__getattr__("x"));
+    }
+
+    /**
+     * Test that attributes set through the proxy, or explicitly invalidated,
+     * are fetched again.
+     */
+    public void testInvalidation() {
+        PushyObject object = (PushyObject)client.evaluate(
+            "type('C', (object,), {'f': lambda self: 1})()");
+        client.setAttributeCacheEnabled(object, true);
+
+        PushyObject f = (PushyObject)object.__getattr__("f");
+        object.__setattr__("f", client.evaluate("lambda: 2"));
+        assertEquals(new Integer(2),
+                     ((PushyObject)object.__getattr__("f")).__call__());
+
+        // Changed remotely, so the cached attribute is stale until it is
+        // invalidated.
+        f = (PushyObject)object.__getattr__("f");
+        ((PushyObject)client.evaluate("setattr")).__call__(
+            new Object[]{object, "f", client.evaluate("lambda: 3")});
+        assertSame(f, object.__getattr__("f"));
+        client.invalidateAttribute(object, "f");
+        assertEquals(new Integer(3),
+                     ((PushyObject)object.__getattr__("f")).__call__());
+    }
+
+    /**
+     * Test that cached attributes expire.
+     */
+    public void testExpiry() throws Exception {
+        client.setAttributeCacheTTLMillis(50);
+        PushyObject object = (PushyObject)client.evaluate(
+            "type('C', (object,), {'f': lambda self: 1})()");
+        client.setAttributeCacheEnabled(object, true);
+        Object f = object.__getattr__("f");
+        assertSame(f, object.__getattr__("f"));
+        Thread.sleep(100);
+        assertNotSame(f, object.__getattr__("f"));
+    }
+}
@@ -24,5 +24,19 @@ public class BinaryStringTest extends TestCase
         String value = (String)client.evaluate("'\\xBB\\xEE\\xEE\\xFF'");
         assertEquals("\u00BB\u00EE\u00EE\u00FF", value);
     }
-}
 
+    /**
+     * Test that bytearrays are received as byte arrays, and byte arrays are
+     * sent as binary strings.
+     */
+    public void testBytes() throws Exception {
+        byte[] value =
+            (byte[])client.evaluate("bytearray('\\xBB\\xEE\\x00\\xFF')");
+        assertTrue(java.util.Arrays.equals(
+            new byte[]{(byte)0xBB, (byte)0xEE, 0, (byte)0xFF}, value));
+
+        PushyObject repr = (PushyObject)client.evaluate("repr");
+        assertEquals("'\\xbb\\xee\\x00\\xff'",
+                     repr.__call__(new Object[]{value}));
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2013 Andrew Wilkins <axwalk@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package pushy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.Inflater;
+
+import junit.framework.TestCase;
+
+import pushy.internal.Bootstrap;
+
+/**
+ * Tests for bootstrapping a Pushy server in a process without the Pushy
+ * package.
+ */
+public class BootstrapTest extends TestCase
+{
+    private static final String CLIENT =
+        "def pushy_server(i, o): pass\n" +
+        "realServerLoaderSource = \"\"\"\n" +
+        "serverSourceLength = %d\n" +
+        "assert digest == %r\n" +
+        "pushy_server(stdin, stdout) # 100%%\n" +
+        "\"\"\".strip() % (len(serverSource), md5ServerSource)\n";
+
+    private Bootstrap bootstrap;
+
+    public void setUp() throws IOException
+    {
+        Map sources = new TreeMap();
+        sources.put("pushy/__init__.py", "".getBytes());
+        sources.put("pushy/client.py", CLIENT.getBytes());
+        sources.put("pushy/protocol/__init__.py", "".getBytes());
+        sources.put("pushy/protocol/message.py", "x = 1\r\n".getBytes());
+        bootstrap = new Bootstrap(sources);
+    }
+
+    public void testProgram()
+    {
+        String program = bootstrap.getProgram();
+        assertTrue(program.startsWith("exec reduce("));
+        assertEquals(-1, program.indexOf('"'));
+        assertEquals(-1, program.indexOf('\''));
+
+        // The loader is taken from client.py, and formatted as Python would.
+        String loader = getLoader(program);
+        assertTrue(loader.startsWith("serverSourceLength = "));
+        assertTrue(loader.endsWith("pushy_server(stdin, stdout) # 100%"));
+        assertEquals(-1, loader.indexOf("%d"));
+        assertEquals(-1, loader.indexOf("%r"));
+    }
+
+    public void testClientLoader() throws IOException
+    {
+        // The loader in the real client.py must be usable.
+        File file = new File("../pushy/client.py");
+        byte[] client = new byte[(int)file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try
+        {
+            assertEquals(client.length, in.read(client));
+        }
+        finally
+        {
+            in.close();
+        }
+        Map sources = new TreeMap();
+        sources.put("pushy/client.py", client);
+        String loader = getLoader(new Bootstrap(sources).getProgram());
+        assertTrue(loader.startsWith("import __builtin__"));
+        assertTrue(loader.indexOf("pushy_server(stdin, stdout)") != -1);
+        assertEquals(-1, loader.indexOf("%d"));
+        assertEquals(-1, loader.indexOf("%r"));
+    }
+
+    public void testMissingLoader()
+    {
+        Map sources = new TreeMap();
+        sources.put("pushy/client.py", "def pushy_server(i, o): pass\n"
+                                           .getBytes());
+        try
+        {
+            new Bootstrap(sources);
+            fail("Expected IOException");
+        }
+        catch (IOException e) {}
+    }
+
+    public void testStartCached() throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(bootstrap.start(
+            new ByteArrayInputStream("1".getBytes()), out));
+        String sent = new String(out.toByteArray(), "ISO-8859-1");
+        assertTrue(sent.endsWith(bootstrap.getDigest() + "\n"));
+    }
+
+    public void testStartUncached() throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertFalse(bootstrap.start(
+            new ByteArrayInputStream("0".getBytes()), out));
+        String sent = new String(out.toByteArray(), "ISO-8859-1");
+        int start = sent.indexOf(bootstrap.getDigest() + "\n") +
+                    bootstrap.getDigest().length() + 1;
+        byte[] bytes = out.toByteArray();
+        int length = ((bytes[start] & 0xff) << 24) |
+                     ((bytes[start + 1] & 0xff) << 16) |
+                     ((bytes[start + 2] & 0xff) << 8) |
+                     (bytes[start + 3] & 0xff);
+        assertEquals(bytes.length - start - 4, length);
+
+        Inflater inflater = new Inflater();
+        inflater.setInput(bytes, start + 4, length);
+        byte[] packages = new byte[4096];
+        int size = inflater.inflate(packages);
+        assertTrue(inflater.finished());
+        String marshalled = new String(packages, 0, size, "ISO-8859-1");
+
+        // A tuple of (packages, modules), with "protocol" nested in "pushy".
+        assertTrue(marshalled.startsWith(
+            "(\2\0\0\0{s\5\0\0\0pushy(\3\0\0\0s\5\0\0\0pushy" +
+            "{s\10\0\0\0protocol(\3\0\0\0s\16\0\0\0pushy/protocol{0{"));
+        // Carriage returns are stripped from the sources.
+        assertTrue(marshalled.indexOf("x = 1\n") != -1);
+        assertEquals(-1, marshalled.indexOf('\r'));
+    }
+
+    public void testMissingClient()
+    {
+        try
+        {
+            new Bootstrap(new TreeMap());
+            fail("Expected IOException");
+        }
+        catch (IOException e) {}
+    }
+
+    // Decode the loader from the character codes in the program.
+    private static String getLoader(String program)
+    {
+        String codes = program.substring(
+            program.lastIndexOf('(') + 1, program.indexOf(')'));
+        String[] chars = codes.split(",");
+        StringBuffer loader = new StringBuffer();
+        for (int i = 0; i < chars.length; ++i)
+            loader.append((char)Integer.parseInt(chars[i]));
+        return loader.toString();
+    }
+}
+
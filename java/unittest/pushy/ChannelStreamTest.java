@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2013 Andrew Wilkins <axwalk@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package pushy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import pushy.internal.ChannelInputStream;
+import pushy.internal.ChannelOutputStream;
+
+/**
+ * Tests for the streams over non-blocking channels used by daemon
+ * connections.
+ */
+public class ChannelStreamTest extends TestCase
+{
+    private ServerSocketChannel server;
+    private SocketChannel channel;
+
+    public void setUp() throws IOException
+    {
+        server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        channel = SocketChannel.open(server.socket().getLocalSocketAddress());
+        channel.configureBlocking(false);
+    }
+
+    public void tearDown() throws IOException
+    {
+        channel.close();
+        server.close();
+    }
+
+    public void testReadWhileWriting() throws Exception
+    {
+        final SocketChannel peer = server.accept();
+        try
+        {
+            final InputStream in = new ChannelInputStream(channel);
+            OutputStream out = new ChannelOutputStream(channel);
+
+            // Block a thread reading, then write from this one. The peer
+            // echoes what it receives.
+            final byte[] received = new byte[1 << 20];
+            Thread reader = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        int offset = 0;
+                        while (offset < received.length)
+                            offset += in.read(received, offset,
+                                              received.length - offset);
+                    }
+                    catch (IOException e) {}
+                }
+            };
+            reader.start();
+            Thread echo = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        ByteBuffer buffer = ByteBuffer.allocate(8192);
+                        while (peer.read(buffer) != -1)
+                        {
+                            buffer.flip();
+                            while (buffer.hasRemaining())
+                                peer.write(buffer);
+                            buffer.clear();
+                        }
+                    }
+                    catch (IOException e) {}
+                }
+            };
+            echo.start();
+
+            byte[] sent = new byte[received.length];
+            for (int i = 0; i < sent.length; ++i)
+                sent[i] = (byte)i;
+            out.write(sent);
+            reader.join(10000);
+            assertFalse(reader.isAlive());
+            for (int i = 0; i < sent.length; ++i)
+                assertEquals(sent[i], received[i]);
+        }
+        finally
+        {
+            peer.close();
+        }
+    }
+
+    public void testCloseWakesReader() throws Exception
+    {
+        final InputStream in = new ChannelInputStream(channel);
+        final IOException[] error = new IOException[1];
+        Thread reader = new Thread()
+        {
+            public void run()
+            {
+                try
+                {
+                    in.read();
+                }
+                catch (IOException e)
+                {
+                    error[0] = e;
+                }
+            }
+        };
+        reader.start();
+        Thread.sleep(100);
+        in.close();
+        reader.join(10000);
+        assertFalse(reader.isAlive());
+        assertNotNull(error[0]);
+    }
+
+    public void testEndOfStream() throws IOException
+    {
+        server.accept().close();
+        assertEquals(-1, new ChannelInputStream(channel).read());
+    }
+
+    public void testDaemonClient() throws IOException
+    {
+        Map properties = new HashMap();
+        properties.put("port", new Integer(server.socket().getLocalPort()));
+        Client client = new Client("daemon:127.0.0.1", properties);
+        SocketChannel peer = server.accept();
+        try
+        {
+            assertNotNull(peer);
+            assertFalse(client.isClosed());
+            assertTrue(client.getStartupTimes().containsKey("connect"));
+            client.close();
+            assertTrue(client.isClosed());
+        }
+        finally
+        {
+            peer.close();
+        }
+    }
+}
+
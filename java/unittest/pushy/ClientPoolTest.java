@@ -0,0 +1,75 @@
+package pushy;
+
+import junit.framework.TestCase;
+import java.io.IOException;
+
+/**
+ * Tests for ClientPool.
+ */
+public class ClientPoolTest extends TestCase
+{
+    private ClientPool pool;
+
+    public void setUp() {
+        pool = new ClientPool();
+    }
+
+    public void tearDown() {
+        pool.close();
+    }
+
+    public void testReuse() throws IOException {
+        Client client = pool.borrow("local:");
+        assertEquals(1, pool.getBorrowedCount());
+        pool.release(client);
+        assertEquals(0, pool.getBorrowedCount());
+        assertEquals(1, pool.getIdleCount());
+        assertSame(client, pool.borrow(" local: "));
+        assertEquals(0, pool.getIdleCount());
+        pool.release(client);
+    }
+
+    public void testInvalidate() throws IOException {
+        Client client = pool.borrow("local:");
+        pool.invalidate(client);
+        assertTrue(client.isClosed());
+        assertEquals(0, pool.getIdleCount());
+        Client other = pool.borrow("local:");
+        assertNotSame(client, other);
+        pool.release(other);
+    }
+
+    public void testMaxPerTarget() throws IOException {
+        pool.setMaxPerTarget(1);
+        pool.setMaxWaitMillis(100);
+        Client client = pool.borrow("local:");
+        try {
+            pool.borrow("local:");
+            fail("Expected IOException");
+        } catch (IOException e) {}
+        pool.release(client);
+        assertSame(client, pool.borrow("local:"));
+        pool.release(client);
+    }
+
+    public void testEvictIdle() throws IOException {
+        Client client = pool.borrow("local:");
+        pool.release(client);
+        pool.setIdleTimeoutMillis(0);
+        pool.evictIdle();
+        assertEquals(0, pool.getIdleCount());
+        assertTrue(client.isClosed());
+    }
+
+    public void testReleaseUnknown() throws IOException {
+        Client client = new Client("local:");
+        try {
+            pool.release(client);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        } finally {
+            client.close();
+        }
+    }
+}
+
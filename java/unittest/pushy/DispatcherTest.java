@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2013 Andrew Wilkins <axwalk@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package pushy;
+
+import java.util.Map;
+
+import pushy.internal.Callable;
+
+/**
+ * Tests for the dispatcher mode, in which a dedicated thread reads all
+ * messages from the connection. The asynchronous request tests are repeated
+ * in this mode.
+ */
+public class DispatcherTest extends AsyncRequestTest
+{
+    protected void configure() {
+        local.startReader(null);
+        peer.startReader(null);
+    }
+
+    /**
+     * Test that waiting for the result of an asynchronous request flushes
+     * the request if it is held back by pipelining.
+     */
+    public void testGetFlushesPipeline() {
+        Callable identity = new Callable() {
+            public Object call(Object[] args, Map kwargs) {
+                return args[0];
+            }
+        };
+
+        local.setPipelineWindowMillis(60000);
+        local.setPipelineBufferSize(1 << 20);
+        PushyFuture future = local.callAsync(
+            identity, new Object[]{"value"}, null);
+        assertEquals("value", future.get());
+    }
+
+    /**
+     * Test that many threads may make requests concurrently, with the peer
+     * making requests back to each of them.
+     */
+    public void testConcurrentCallers() throws Exception {
+        final Callable identity = new Callable() {
+            public Object call(Object[] args, Map kwargs) {
+                return args[0];
+            }
+        };
+
+        final Throwable[] errors = new Throwable[16];
+        Thread[] threads = new Thread[errors.length];
+        for (int i = 0; i < threads.length; ++i) {
+            final int index = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < 100; ++j) {
+                            String value = index + ":" + j;
+                            assertEquals(value, local.call(
+                                identity, new Object[]{value}, null));
+                        }
+                    } catch (Throwable e) {
+                        errors[index] = e;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; ++i) {
+            threads[i].join();
+            if (errors[i] != null)
+                throw new RuntimeException(errors[i]);
+        }
+    }
+}
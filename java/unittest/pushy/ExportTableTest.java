@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2013 Andrew Wilkins <axwalk@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package pushy;
+
+import junit.framework.TestCase;
+
+import pushy.internal.ExportTable;
+import pushy.internal.ExportedObject;
+import pushy.internal.Proxy;
+
+/**
+ * Tests for the table of objects exported to a peer.
+ */
+public class ExportTableTest extends TestCase
+{
+    private ExportTable table;
+
+    public void setUp() {
+        table = new ExportTable();
+    }
+
+    private ExportedObject export(final Object object) {
+        return table.export(new ExportTable.Factory() {
+            public ExportedObject create(int id) {
+                return new ExportedObject(
+                    new Integer(id), Proxy.Type.object, object, null);
+            }
+        });
+    }
+
+    /**
+     * Test that IDs are allocated densely, and objects found by ID.
+     */
+    public void testExport() {
+        for (int i = 0; i < 100; ++i) {
+            ExportedObject eo = export(new Integer(i));
+            assertEquals(i, eo.getId().intValue());
+            assertSame(eo, table.get(i));
+            assertTrue(table.contains(eo));
+        }
+        assertEquals(100, table.size());
+        assertNull(table.get(100));
+        assertNull(table.get(-1));
+    }
+
+    /**
+     * Test that deleted objects are removed, and their IDs reused.
+     */
+    public void testRemoveReusesId() {
+        ExportedObject a = export("a");
+        ExportedObject b = export("b");
+        assertTrue(table.remove(0, 0));
+        assertNull(table.get(0));
+        assertFalse(table.contains(a));
+        assertEquals(1, table.size());
+
+        ExportedObject c = export("c");
+        assertEquals(0, c.getId().intValue());
+        assertSame(c, table.get(0));
+        assertSame(b, table.get(1));
+        assertEquals(2, table.size());
+    }
+
+    /**
+     * Test that a delete naming an old version of an object is ignored, as
+     * the object has since been sent to the peer again.
+     */
+    public void testRemoveOldVersion() {
+        ExportedObject a = export("a");
+        a.incrementVersion();
+        assertFalse(table.remove(0, 0));
+        assertSame(a, table.get(0));
+        assertTrue(table.remove(0, 1));
+        assertFalse(table.remove(0, 1));
+        assertEquals(0, table.size());
+    }
+}
@@ -102,6 +102,54 @@ public class FileTest extends TestCase
         }
     }
 
+    /**
+     * Test that pushy.io.FileInputStream supports mark/reset across the
+     * chunks it reads ahead.
+     */
+    public void testFileInputStreamMarkReset() throws Exception {
+        TempfileModule tempfile = (TempfileModule)client.getModule("tempfile");
+        File dir = tempfile.mkdtemp();
+        try {
+            File file = new pushy.io.File(client, dir, "test.bin");
+            byte[] data = new byte[100000];
+            for (int i = 0; i < data.length; ++i)
+                data[i] = (byte)i;
+            pushy.io.FileOutputStream out =
+                new pushy.io.FileOutputStream(client, file);
+            out.write(data);
+            out.close();
+
+            pushy.io.FileInputStream in =
+                new pushy.io.FileInputStream(client, file);
+            try {
+                assertTrue(in.markSupported());
+                assertEquals(0, in.read());
+                in.mark(data.length);
+
+                // Read past the first few chunks, then go back.
+                byte[] read = new byte[data.length - 1];
+                int total = 0;
+                while (total < 50000)
+                    total += in.read(read, total, read.length - total);
+                in.reset();
+                total = 0;
+                while (total < read.length) {
+                    int n = in.read(read, total, read.length - total);
+                    assertTrue(n > 0);
+                    total += n;
+                }
+                for (int i = 0; i < read.length; ++i)
+                    assertEquals(data[i + 1], read[i]);
+                assertEquals(-1, in.read());
+            } finally {
+                in.close();
+                file.delete();
+            }
+        } finally {
+            dir.delete();
+        }
+    }
+
     /**
      * Test that pushy.io.File.listFiles() returns pushy.io.File objects.
      */
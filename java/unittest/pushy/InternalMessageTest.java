@@ -5,6 +5,10 @@ import junit.framework.TestCase;
 import pushy.internal.*;
 import java.io.IOException;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.InputStream;
+import java.util.zip.Deflater;
 
 public class InternalMessageTest extends TestCase
 {
@@ -36,5 +40,98 @@ Sending Message(MessageType(3, 'getattr'), 140247671006960->1,
         assertEquals(Message.Type.getattr, m.getType());
         assertEquals(140247671006960L, m.getSource());
     }
-}
 
+    public void testUnpackCompressed() throws Exception
+    {
+        // Compress a payload with zlib, as the Python side does, and set
+        // the compression flag in the type byte.
+        byte[] payload = new byte[5000];
+        for (int i = 0; i < payload.length; ++i)
+            payload[i] = (byte)(i % 10);
+        Deflater deflater = new Deflater();
+        deflater.setInput(payload);
+        deflater.finish();
+        byte[] buffer = new byte[payload.length];
+        byte[] compressed = new byte[deflater.deflate(buffer)];
+        assertTrue(deflater.finished());
+        System.arraycopy(buffer, 0, compressed, 0, compressed.length);
+
+        Message m1 = new Message(Message.Type.response, compressed, 1, 2);
+        byte[] packed = m1.pack();
+        packed[0] |= (byte)0x80;
+        Message m2 = Message.unpack(new ByteArrayInputStream(packed));
+        assertEquals(Message.Type.response, m2.getType());
+        assertEquals(new Message(Message.Type.response, payload, 1, 2), m2);
+        m2.release();
+
+        // A corrupt payload is an I/O error. The payload follows the 21 byte
+        // header, and starts with the zlib header.
+        packed[21] = 0;
+        try
+        {
+            Message.unpack(new ByteArrayInputStream(packed));
+            fail("Expected IOException");
+        }
+        catch (IOException e)
+        {
+        }
+    }
+
+    public void testUnpackFragmented() throws Exception
+    {
+        // Pack several messages of different sizes, including one larger
+        // than the largest pooled buffer.
+        int[] sizes = new int[]{0, 1, 300, 5000, (1 << 20) + 1};
+        Message[] messages = new Message[sizes.length];
+        ByteArrayOutputStream packed = new ByteArrayOutputStream();
+        for (int i = 0; i < sizes.length; ++i)
+        {
+            byte[] payload = new byte[sizes[i]];
+            for (int j = 0; j < payload.length; ++j)
+                payload[j] = (byte)(i + j);
+            messages[i] = new Message(Message.Type.response, payload, i, i+1);
+            messages[i].pack(packed);
+        }
+
+        // Unpack them from a stream that returns at most 7 bytes per read.
+        byte[] bytes = packed.toByteArray();
+        InputStream stream =
+            new FilterInputStream(new ByteArrayInputStream(bytes))
+            {
+                public int read(byte[] b, int off, int len) throws IOException
+                {
+                    return super.read(b, off, Math.min(len, 7));
+                }
+            };
+        for (int i = 0; i < sizes.length; ++i)
+        {
+            Message m = Message.unpack(stream);
+            assertEquals(messages[i], m);
+            assertEquals(sizes[i], m.getPayloadLength());
+            assertEquals(sizes[i], m.getPayload().length);
+            m.release();
+        }
+    }
+
+    public void testRelease() throws Exception
+    {
+        byte[] payload = new byte[]{1, 2, 3};
+        Message m1 = new Message(Message.Type.response, payload, 0, 1);
+        Message m2 = Message.unpack(new ByteArrayInputStream(m1.pack()));
+
+        // A retained message may be read until it is fully released.
+        m2.retain();
+        m2.release();
+        assertEquals(1, m2.getPayloadStream().read());
+        m2.release();
+        try
+        {
+            m2.getPayloadStream();
+            fail("Expected IllegalStateException");
+        }
+        catch (IllegalStateException e)
+        {
+        }
+        assertEquals(3, m2.getPayloadLength());
+    }
+}
@@ -150,6 +150,104 @@ public class MarshalTest extends TestCase
             Marshal.dump(new int[]{1}));
     }
 
+    public void testMarshalPrimitiveArray() throws Exception
+    {
+        // Primitive arrays are encoded without boxing, and must produce the
+        // same bytes as the equivalent boxed arrays.
+        assertBytesEqual(
+            Marshal.dump(new Object[]{new Long(1), new Long(-1)}),
+            Marshal.dump(new long[]{1, -1}));
+        assertBytesEqual(
+            Marshal.dump(new Object[]{new Short((short)2)}),
+            Marshal.dump(new short[]{2}));
+        assertBytesEqual(
+            Marshal.dump(new Object[]{Boolean.TRUE, Boolean.FALSE}),
+            Marshal.dump(new boolean[]{true, false}));
+        assertBytesEqual(
+            Marshal.dump(new Object[]{new Double(0.5), new Double(1e-19)}),
+            Marshal.dump(new double[]{0.5, 1e-19}));
+        assertBytesEqual(
+            Marshal.dump(new Object[]{new Float(0.3f)}),
+            Marshal.dump(new float[]{0.3f}));
+    }
+
+    public void testUnmarshalArrayTypes() throws Exception
+    {
+        // Homogeneous tuples are loaded into arrays of the most specific
+        // type.
+        assertTrue(
+            Marshal.load(Marshal.dump(new int[]{1, 2})) instanceof int[]);
+        assertTrue(
+            Marshal.load(Marshal.dump(new long[]{1, 2})) instanceof long[]);
+        assertTrue(
+            Marshal.load(Marshal.dump(new double[]{1, 2}))
+                instanceof double[]);
+        assertTrue(
+            Marshal.load(Marshal.dump(new boolean[]{true, false}))
+                instanceof boolean[]);
+        assertTrue(
+            Marshal.load(Marshal.dump(new String[]{"a", "b"}))
+                instanceof String[]);
+
+        // Null elements prevent the use of a primitive array.
+        Object array = Marshal.load(
+            Marshal.dump(new Object[]{new Integer(1), null}));
+        assertTrue(array instanceof Integer[]);
+        assertNull(((Integer[])array)[1]);
+
+        // Mixed elements are loaded into an Object array.
+        array = Marshal.load(
+            Marshal.dump(new Object[]{new Integer(1), new Long(2), "c"}));
+        assertEquals(Object[].class, array.getClass());
+        assertEquals(new Integer(1), ((Object[])array)[0]);
+        assertEquals(new Long(2), ((Object[])array)[1]);
+        assertEquals("c", ((Object[])array)[2]);
+
+        // Nested tuples.
+        array = Marshal.load(Marshal.dump(
+            new Object[]{new int[]{1}, new Object[]{"a", Boolean.TRUE}}));
+        assertEquals(Object[].class, array.getClass());
+        assertTrue(((Object[])array)[0] instanceof int[]);
+        assertEquals(Object[].class, ((Object[])array)[1].getClass());
+    }
+
+    public void testUnmarshalStream() throws Exception
+    {
+        // Only the bytes making up the object are consumed from a stream.
+        byte[] bytes = Marshal.dump(new Object[]{"abc", new Integer(1)});
+        byte[] padded = new byte[bytes.length + 1];
+        System.arraycopy(bytes, 0, padded, 0, bytes.length);
+        padded[bytes.length] = 'N';
+        java.io.InputStream stream = new java.io.ByteArrayInputStream(padded);
+        assertEquals(2, Array.getLength(Marshal.load(stream)));
+        assertEquals('N', stream.read());
+    }
+
+    public void testMarshalBytes() throws Exception
+    {
+        // Binary data is marshalled as a string, without conversion.
+        byte[] expected = new byte[]{'s', 3, 0, 0, 0, 0, (byte)0xff, 'a'};
+        assertBytesEqual(
+            expected, Marshal.dump(new byte[]{0, (byte)0xff, 'a'}));
+        assertBytesEqual(
+            expected,
+            Marshal.dump(java.nio.ByteBuffer.wrap(
+                new byte[]{'x', 0, (byte)0xff, 'a', 'y'}, 1, 3)));
+
+        java.nio.ByteBuffer direct = java.nio.ByteBuffer.allocateDirect(3);
+        direct.put(new byte[]{0, (byte)0xff, 'a'}).flip();
+        assertBytesEqual(expected, Marshal.dump(direct));
+        assertEquals(0, direct.position());
+    }
+
+    public void testMarshalLatin1() throws Exception
+    {
+        // Characters outside of Latin-1 are replaced, as with getBytes.
+        assertBytesEqual(
+            new byte[]{'s', 3, 0, 0, 0, 'a', (byte)0xe9, '?'},
+            Marshal.dump("a\u00e9\u2f92"));
+    }
+
     public void testMarshalFloat() throws Exception
     {
         // Floats are unmarshalled as Doubles.
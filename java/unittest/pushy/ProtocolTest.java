@@ -61,6 +61,30 @@ public class ProtocolTest extends TestCase
         assertTrue(value instanceof List);
     }
 
+    public void testPaths() {
+        Module os = client.getModule("os");
+        assertEquals(client.evaluate("__import__('os').path.sep"),
+                     os.__getpath__("path.sep"));
+        assertEquals("a" + os.__getpath__("path.sep") + "b",
+                     os.__callpath__("path.join",
+                                     new Object[]{"a", "b"}, null));
+    }
+
+    public void testBatch() {
+        Batch batch = client.batch();
+        Batch.Step os = batch.importModule("os.path");
+        Batch.Step join = batch.getattr(os, "join");
+        Batch.Step path = batch.call(join, new Object[]{"a", "b"});
+        Batch.Step sum = batch.call(
+            batch.evaluate("sum"), new Object[]{new int[]{1, 2, 3}});
+        Object[] results = batch.execute();
+        assertEquals(4, results.length);
+        assertSame(join.get(), results[1]);
+        assertEquals(client.evaluate("__import__('os').path.join('a', 'b')"),
+                     path.get());
+        assertEquals(new Integer(6), sum.get());
+    }
+
     /**
      * Make sure the message types in Python match those in Java.
      */
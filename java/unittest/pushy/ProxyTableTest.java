@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2013 Andrew Wilkins <axwalk@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package pushy;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import pushy.internal.ProxyTable;
+
+/**
+ * Tests for the table mapping the peer's object IDs to proxies.
+ */
+public class ProxyTableTest extends TestCase
+{
+    /**
+     * Test basic mapping, replacement and conditional removal.
+     */
+    public void testPutGetRemove() {
+        ProxyTable table = new ProxyTable(1);
+        Object a = "a", b = "b";
+        assertNull(table.get(1));
+        table.put(1, a);
+        assertSame(a, table.get(1));
+        table.put(1, b);
+        assertSame(b, table.get(1));
+        assertEquals(1, table.size());
+
+        // Only removed if mapped to the value given.
+        assertFalse(table.remove(1, a));
+        assertSame(b, table.get(1));
+        assertTrue(table.remove(1, b));
+        assertNull(table.get(1));
+        assertFalse(table.remove(2, a));
+        assertEquals(0, table.size());
+    }
+
+    /**
+     * Test a random sequence of operations against a HashMap, so that
+     * entries are moved by growth and by removals from probe sequences.
+     * The IDs mimic the addresses of Python objects.
+     */
+    public void testRandomOperations() {
+        ProxyTable table = new ProxyTable(2);
+        Map expected = new HashMap();
+        Random random = new Random(1);
+        for (int i = 0; i < 100000; ++i) {
+            long id = 0x7f0000000000L + (random.nextInt(2000) << 4);
+            Long key = new Long(id);
+            if (random.nextInt(3) == 0) {
+                Object value = expected.get(key);
+                assertEquals(value != null, table.remove(id, value));
+                expected.remove(key);
+            } else {
+                Object value = new Integer(i);
+                table.put(id, value);
+                expected.put(key, value);
+            }
+        }
+        assertEquals(expected.size(), table.size());
+        for (Iterator iter = expected.entrySet().iterator();
+             iter.hasNext();) {
+            Map.Entry entry = (Map.Entry)iter.next();
+            assertSame(entry.getValue(),
+                       table.get(((Long)entry.getKey()).longValue()));
+        }
+        for (int i = 0; i < 2000; ++i) {
+            Long key = new Long(0x7f0000000000L + (i << 4));
+            if (!expected.containsKey(key))
+                assertNull(table.get(key.longValue()));
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2013 Andrew Wilkins <axwalk@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package pushy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import pushy.internal.Callable;
+import pushy.internal.ChannelInputStream;
+import pushy.internal.ChannelOutputStream;
+import pushy.internal.Connection;
+import pushy.transport.LoopbackTransport;
+import pushy.transport.ProcessTransport;
+import pushy.transport.SocketTransport;
+import pushy.transport.Transport;
+
+/**
+ * Tests for transports, and for clients over the in-memory loopback
+ * transport, served by a Java connection.
+ */
+public class TransportTest extends TestCase
+{
+    private LoopbackTransport[] transports;
+    private Client client;
+    private Connection peer;
+
+    public void setUp() throws IOException
+    {
+        transports = LoopbackTransport.createPair();
+        client = new Client(transports[0]);
+        peer = new Connection(
+            new ChannelInputStream(transports[1].getReadChannel()),
+            new ChannelOutputStream(transports[1].getWriteChannel()));
+        Thread peerThread = new Thread()
+        {
+            public void run()
+            {
+                peer.serve();
+            }
+        };
+        peerThread.setDaemon(true);
+        peerThread.start();
+    }
+
+    public void tearDown() throws IOException
+    {
+        client.close();
+        transports[1].close();
+    }
+
+    public void testLoopbackClient()
+    {
+        Callable square = new Callable()
+        {
+            public Object call(Object[] args, Map kwargs)
+            {
+                int value = ((Number)args[0]).intValue();
+                return new Integer(value * value);
+            }
+        };
+        Batch batch = client.batch();
+        Batch.Step step = batch.call(square, new Object[]{new Integer(7)});
+        batch.execute();
+        assertEquals(new Integer(49), step.get());
+    }
+
+    public void testClose() throws IOException
+    {
+        assertFalse(client.isClosed());
+        client.close();
+        assertTrue(client.isClosed());
+        assertFalse(transports[0].isOpen());
+
+        // The peer reads the end of the stream.
+        ByteBuffer buffer = ByteBuffer.allocate(1);
+        assertEquals(-1, transports[1].getReadChannel().read(buffer));
+    }
+
+    public void testUnixSocket() throws IOException
+    {
+        // Unix domain sockets are only supported by Java 16 and later.
+        File path = File.createTempFile("pushy", ".sock");
+        path.delete();
+        try
+        {
+            SocketTransport.connectUnix(path.getPath()).close();
+            fail("Expected an exception: no server is listening");
+        }
+        catch (UnsupportedOperationException e)
+        {
+            assertNull(getUnixSocketAddressClass());
+        }
+        catch (IOException e)
+        {
+            assertNotNull(getUnixSocketAddressClass());
+        }
+    }
+
+    private static Class getUnixSocketAddressClass()
+    {
+        try
+        {
+            return Class.forName("java.net.UnixDomainSocketAddress");
+        }
+        catch (ClassNotFoundException e)
+        {
+            return null;
+        }
+    }
+
+    public void testProcessTransport() throws IOException
+    {
+        Transport transport =
+            ProcessTransport.exec(new String[]{"cat"});
+        try
+        {
+            byte[] data = "hello".getBytes();
+            transport.getWriteChannel().write(ByteBuffer.wrap(data));
+            ByteBuffer buffer = ByteBuffer.allocate(data.length);
+            while (buffer.hasRemaining())
+                assertTrue(transport.getReadChannel().read(buffer) > 0);
+            assertEquals("hello", new String(buffer.array()));
+            assertTrue(transport.isOpen());
+        }
+        finally
+        {
+            transport.close();
+        }
+        assertFalse(transport.isOpen());
+    }
+}
+
@@ -39,6 +39,8 @@ Pushy comes packaged with several different transports:
    on the local machine.
  - L{Daemon<pushy.transport.daemon>}, for connecting to a "nailed-up"
    socket-based service.
+ - L{Unix<pushy.transport.unix>}, for connecting to a "nailed-up" service
+   on the same machine over a Unix domain socket.
 
 By using the SSH transport (originally the only transport available), one can
 create and connect to a new Python interpreter on a remote machine, with only
@@ -59,7 +61,8 @@ objects and functions can be transparently accessed from the local interpreter.
 @license: MIT
 """
 
-transports = {"ssh": None, "local": None, "daemon": None, "smb": None}
+transports = {"ssh": None, "local": None, "daemon": None, "smb": None,
+              "unix": None}
 
 from pushy.client import connect
 from pushy.server import serve_forever
@@ -31,9 +31,12 @@ import imp
 import inspect
 import marshal
 import os
+import stat
 import struct
 import sys
 import threading
+import time
+import zlib
 
 # Import zipimport, for use in PushyPackageLoader.
 try:
@@ -195,11 +198,173 @@ def try_set_binary(fd):
         msvcrt.setmode(fd, os.O_BINARY)
     except ImportError: pass
 
+###############################################################################
+# Package payload caching.
+#
+# The packages sent to the server are marshalled and compressed into a single
+# payload, identified by its MD5 digest. The server keeps a compiled copy of
+# each payload it receives, so that later connections need only send the
+# digest, and the server needn't compile the modules again.
+#
+# The server executes whatever code it loads from the cache, so the cache is
+# only used if its directory and files belong to the user running the server,
+# and nobody else can write to them. This requires os.getuid, so payloads are
+# not cached on Windows. Each file starts with the digest of the rest, so that
+# a truncated or corrupt file is not loaded.
+
+def get_payload(packages_and_modules):
+    "Create a compressed package payload, returning (digest, payload)."
+    payload = zlib.compress(marshal.dumps(packages_and_modules, 1), 9)
+    return (hashlib.md5(payload).hexdigest(), payload)
+
+
+def get_cache_path(digest):
+    "Get the path of the cached, compiled payload with the given digest."
+    cache_dir = os.environ.get("PUSHY_CACHE_DIR")
+    if not cache_dir:
+        cache_dir = os.path.join(os.path.expanduser("~"), ".pushy", "cache")
+    # Compiled code is specific to the Python version.
+    magic = "".join(["%02x" % ord(c) for c in imp.get_magic()])
+    return os.path.join(cache_dir, "%s-%s" % (digest, magic))
+
+
+def is_private(path, is_dir):
+    """
+    Check that a cache directory or file belongs to the current user, and
+    cannot be written by anyone else.
+    """
+    st = os.stat(path)
+    if is_dir:
+        if not stat.S_ISDIR(st.st_mode):
+            return False
+    elif not stat.S_ISREG(st.st_mode):
+        return False
+    return st.st_uid == os.getuid() and not (st.st_mode & 022)
+
+
+def get_cache_logger():
+    import logging
+    return logging.getLogger("pushy")
+
+
+def compile_packages(packages, modules):
+    "Replace the module sources in a package hierarchy with compiled code."
+    def compile_modules(dirname, modules):
+        for (name, source) in modules.items():
+            filename = name + ".py"
+            if dirname:
+                filename = dirname + "/" + filename
+            source = marshal.loads(source) + "\n"
+            modules[name] = marshal.dumps(compile(source, filename, "exec"))
+    def compile_tree(packages):
+        for (dirname, subpackages, modules) in packages.values():
+            compile_modules(dirname, modules)
+            compile_tree(subpackages)
+    compile_tree(packages)
+    compile_modules(None, modules)
+
+
+def load_cached_payload(digest):
+    "Load a cached, compiled payload, returning None if it isn't cached."
+    if not hasattr(os, "getuid"):
+        return None
+    path = get_cache_path(digest)
+    if not os.path.exists(path):
+        return None
+    try:
+        if not is_private(os.path.dirname(path), True) or \
+           not is_private(path, False):
+            get_cache_logger().warning(
+                "Ignoring cached payload %s: it may be modified by other "
+                "users", path)
+            return None
+        f = open(path, "rb")
+        try:
+            data = f.read()
+        finally:
+            f.close()
+        newline = data.find("\n")
+        blob = data[newline+1:]
+        if newline == -1 or hashlib.md5(blob).hexdigest() != data[:newline]:
+            get_cache_logger().warning(
+                "Ignoring cached payload %s: it is corrupt", path)
+            return None
+        return marshal.loads(zlib.decompress(blob))
+    except Exception:
+        get_cache_logger().warning(
+            "Failed to load cached payload %s", path, exc_info=True)
+        return None
+
+
+def store_cached_payload(digest, packages_and_modules):
+    "Compile and cache a payload. Failure to do so is logged, not raised."
+    if not hasattr(os, "getuid"):
+        return
+    try:
+        compile_packages(*packages_and_modules)
+        path = get_cache_path(digest)
+        cache_dir = os.path.dirname(path)
+        if not os.path.isdir(cache_dir):
+            try:
+                os.makedirs(cache_dir, 0700)
+            except OSError:
+                # Another server may have created it in the meantime.
+                if not os.path.isdir(cache_dir):
+                    raise
+        if not is_private(cache_dir, True):
+            get_cache_logger().warning(
+                "Not caching payload: %s may be modified by other users",
+                cache_dir)
+            return
+        blob = zlib.compress(marshal.dumps(packages_and_modules))
+        # Write to a temporary file and rename it into place, so that
+        # concurrent servers never see a partially written file.
+        tmp = "%s.%d.tmp" % (path, os.getpid())
+        fd = os.open(tmp, os.O_WRONLY | os.O_CREAT | os.O_EXCL, 0600)
+        f = os.fdopen(fd, "wb")
+        try:
+            f.write(hashlib.md5(blob).hexdigest() + "\n")
+            f.write(blob)
+        finally:
+            f.close()
+        os.rename(tmp, path)
+    except Exception:
+        get_cache_logger().warning(
+            "Failed to cache payload %s", digest, exc_info=True)
+
+
+def read_fully(file, length):
+    data = file.read(length)
+    while len(data) < length:
+        partial = file.read(length - len(data))
+        if not partial:
+            raise IOError, "End of file"
+        data += partial
+    return data
+
+
 def pushy_server(stdin, stdout):
     import sys
 
+    # Read the digest of the package payload, and tell the client whether it
+    # needs to be sent: "1" if it is cached, else "0".
+    digest = stdin.readline().strip()
+    packages_and_modules = load_cached_payload(digest)
+    if packages_and_modules is not None:
+        stdout.write("1")
+        stdout.flush()
+    else:
+        stdout.write("0")
+        stdout.flush()
+        (length,) = struct.unpack(">I", read_fully(stdin, 4))
+        payload = read_fully(stdin, length)
+        if hashlib.md5(payload).hexdigest() != digest:
+            raise IOError, "Package payload digest mismatch"
+        packages_and_modules = marshal.loads(zlib.decompress(payload))
+        store_cached_payload(digest, packages_and_modules)
+
     # Reconstitute the package hierarchy delivered from the client
-    (packages, modules) = marshal.load(stdin)
+    (packages, modules) = packages_and_modules
 
     # Add the package to the in-memory package importer
     importer = InMemoryImporter(packages, modules)
@@ -259,10 +424,9 @@ class AutoImporter(object):
 if not hasattr(__builtin__, "pushy_source"):
     if "__loader__" in locals():
         serverSource = __loader__.get_source(__name__)
-        serverSource = marshal.dumps(serverSource, 1)
     else:
         serverSource = open(inspect.getsourcefile(AutoImporter)).read()
-        serverSource = marshal.dumps(serverSource, 1)
+    serverSource = zlib.compress(marshal.dumps(serverSource, 1), 9)
 else:
     serverSource = __builtin__.pushy_source
 md5ServerSource = hashlib.md5(serverSource).digest()
@@ -271,7 +435,7 @@ md5ServerSource = hashlib.md5(serverSource).digest()
 # predetermined number of bytes, and execute them as a program. So once we
 # start the process up, we immediately write the "real" server source to it.
 realServerLoaderSource = """
-import __builtin__, os, marshal, sys
+import __builtin__, os, marshal, sys, zlib
 try:
     import hashlib
 except ImportError:
@@ -296,7 +460,7 @@ while len(serverSource) < serverSourceLength:
 try:
     assert hashlib.md5(serverSource).digest() == %r
     __builtin__.pushy_source = serverSource
-    serverCode = marshal.loads(serverSource)
+    serverCode = marshal.loads(zlib.decompress(serverSource))
     exec serverCode
     pushy_server(stdin, stdout)
 except:
@@ -347,23 +511,40 @@ class PushyClient(object):
     packages_lock  = threading.Lock()
 
     def __init__(self, target, python="python", **kwargs):
+        self.timings = []
+        """A list of (phase, seconds) pairs, recording how long each phase
+           of starting the connection took."""
+        self.__phase_start = time.time()
+
         (transport, address) = get_transport(target)
 
         # Start the server
         command = [python, "-u", "-c", serverLoaderSource]
         kwargs["address"] = address
         self.server = transport.Popen(command, **kwargs)
+        self.__end_phase("spawn")
 
         try:
             if not self.server.daemon:
                 # Write the "real" server source to the remote process
                 self.server.stdin.write(serverSource)
-                self.server.stdin.flush()
-                # Send the packages over to the server
-                packages = self.__load_packages()
-                self.server.stdin.write(marshal.dumps(packages, 1))
+                (digest, payload) = self.__load_packages()
+                self.server.stdin.write(digest + "\n")
                 self.server.stdin.flush()
 
+                # Send the packages over to the server, unless it has them
+                # cached from an earlier connection.
+                cached = self.server.stdout.read(1)
+                if cached == "0":
+                    self.server.stdin.write(struct.pack(">I", len(payload)))
+                    self.server.stdin.write(payload)
+                    self.server.stdin.flush()
+                    self.__end_phase("bootstrap")
+                elif cached == "1":
+                    self.__end_phase("bootstrap (cached)")
+                else:
+                    raise IOError, "Unexpected response from server"
+
             # Finally... start the connection. Magic! 
             import pushy.protocol
             remote = pushy.protocol.Connection(self.server.stdout,
@@ -394,6 +575,7 @@ class PushyClient(object):
                 self.fs = self.server.fs
             else:
                 self.fs = self.modules.os
+            self.__end_phase("connect")
         except:
             lines = self.server.stderr.readlines()
             msg = "\n" + "".join(["  [remote] " + line for line in lines])
@@ -403,6 +585,15 @@ class PushyClient(object):
             raise ClientInitException, msg, sys.exc_info()[2]
 
 
+    def __end_phase(self, phase):
+        now = time.time()
+        self.timings.append((phase, now - self.__phase_start))
+        self.__phase_start = now
+        import pushy.util
+        pushy.util.logger.debug("Connection %s took %.3fs",
+                                phase, self.timings[-1][1])
+
+
     # With-statement/context-manager support
     def __enter__(self):
         return self
@@ -527,9 +718,12 @@ class PushyClient(object):
         if self.pushy_packages is None:
             self.packages_lock.acquire()
             try:
-                import pushy
-                loader = PushyPackageLoader()
-                self.pushy_packages = loader.load(pushy)
+                # The payload is created once, and shared by all clients.
+                if self.pushy_packages is None:
+                    import pushy
+                    loader = PushyPackageLoader()
+                    PushyClient.pushy_packages = \
+                        get_payload(loader.load(pushy))
             finally:
                 self.packages_lock.release()
         return self.pushy_packages
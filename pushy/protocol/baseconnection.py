@@ -47,6 +47,13 @@ try:
     marshallable_types.append(buffer)
 except NameError: pass
 
+# Binary data types, which are marshalled by value. The 'bytearray' type
+# doesn't exist prior to Python 2.6.
+try:
+    bytes_types = (bytearray,)
+except NameError:
+    bytes_types = ()
+
 
 # Message types that may received in response to a request.
 response_types = (
@@ -59,6 +66,7 @@ marshallable_types = tuple(marshallable_types)
 MARSHAL_TUPLE  = 0
 MARSHAL_ORIGIN = 1
 MARSHAL_PROXY  = 2
+MARSHAL_BYTES  = 3
 
 
 class LoggingFile:
@@ -84,6 +92,8 @@ class MessageStream:
     def __init__(self, file_):
         self.__lock = threading.Lock()
         self.__file = file_
+        # Payload size from which sent messages are compressed, or None.
+        self.compress_threshold = None
     def close(self):
         self.__lock.acquire()
         try:
@@ -91,7 +101,7 @@ class MessageStream:
         finally:
             self.__lock.release()
     def send_message(self, m):
-        bytes_ = m.pack()
+        bytes_ = m.pack(self.compress_threshold)
         self.__lock.acquire()
         try:
             self.__file.write(bytes_)
@@ -142,7 +152,8 @@ class BaseConnection(object):
         # Define message handlers (MessageType -> method)
         self.message_handlers = {
             MessageType.response: self.__handle_response,
-            MessageType.exception: self.__handle_exception
+            MessageType.exception: self.__handle_exception,
+            MessageType.compression: self.__handle_compression
         }
 
         # Attributes required to track responses.
@@ -465,6 +476,11 @@ Proxied Object Count: %r
         if type(obj) is tuple:
             return (MARSHAL_TUPLE, tuple(map(self.__marshal, obj)))
 
+        # Binary data is sent by value. Marshal writes objects supporting
+        # the buffer interface as strings, so there's no need to copy.
+        if type(obj) in bytes_types:
+            return (MARSHAL_BYTES, obj)
+
         i = id(obj)
         if i in self.__proxied_objects:
             # The object has previously been proxied.
@@ -508,6 +524,10 @@ Proxied Object Count: %r
                 return tuple(map(self.__unmarshal, obj[1]))
             elif obj[0] is MARSHAL_ORIGIN:
                 return self.__proxied_objects[obj[1]][0]
+            elif obj[0] is MARSHAL_BYTES:
+                # Binary data is received as a str, which is immutable and
+                # accepted everywhere a bytearray is; no need to copy it.
+                return obj[1]
             elif obj[0] is MARSHAL_PROXY:
                 description, version = obj[1], obj[2]
                 oid = description[0]
@@ -690,6 +710,31 @@ Proxied Object Count: %r
         raise e
 
 
+    def __handle_compression(self, message_type, threshold):
+        # The peer is asking for messages sent to it to be compressed. The
+        # request arrives wrapped in "as_tuple" (see set_compression).
+        self.__ostream.compress_threshold = threshold
+        return ()
+
+
+    def set_compression(self, threshold):
+        """
+        Compress messages sent in both directions whose payload is at least
+        threshold bytes long, if compressing makes them smaller. A threshold
+        of None disables compression.
+
+        The peer is asked to do the same before compression is enabled for
+        messages sent to it. The request is wrapped in an "as_tuple" message,
+        which a peer that predates compression can decode: it fails the
+        request, this raises its exception, and both sides carry on
+        uncompressed.
+        """
+
+        args = (int(MessageType.compression), threshold)
+        self.send_request(MessageType.as_tuple, args)
+        self.__ostream.compress_threshold = threshold
+
+
     def delete(self, id_proxy):
         """
         This is the weakref callback for proxied objects. This will enqueue the
@@ -40,6 +40,8 @@ class Connection(BaseConnection):
             MessageType.getstr:      self.__handle_getstr,
             MessageType.getrepr:     self.__handle_getrepr,
             MessageType.as_tuple:    self.__handle_as_tuple,
+            MessageType.getpath:     self.__handle_getpath,
+            MessageType.compound:    self.__handle_compound,
             MessageType.op__call__:  self.__handle_call,
         })
         for message_type in message_types:
@@ -70,6 +72,19 @@ class Connection(BaseConnection):
         return self.send_request(MessageType.getattr, (object, name))
 
 
+    def getpath(self, object, names, args=None, kwargs=None, call=False):
+        if args is not None:
+            args = tuple(args)
+        if kwargs is not None:
+            kwargs = tuple(kwargs.items())
+        payload = (object, tuple(names), call, args, kwargs)
+        return self.send_request(MessageType.getpath, payload)
+
+
+    def compound(self, operations):
+        return self.send_request(MessageType.compound, tuple(operations))
+
+
     def setattr(self, object, name, value):
         return self.send_request(MessageType.setattr, (object, name, value))
 
@@ -87,6 +102,52 @@ class Connection(BaseConnection):
         return getattr(object, name)
 
 
+    def __handle_getpath(self, type, args_):
+        # Look up a chain of attributes, calling the last if requested, so
+        # that the peer needn't make a request for each step.
+        (object, names, call, args, kwargs) = args_
+        for name in names:
+            object = getattr(object, name)
+        if not call:
+            return object
+        if args is None:
+            args = []
+        else:
+            args = list(args)
+        if kwargs is None:
+            kwargs = {}
+        else:
+            kwargs = dict(kwargs)
+        return object(*args, **kwargs)
+
+
+    def __handle_compound(self, type_, operations):
+        # Execute a sequence of operations, returning all of their results.
+        # Each operation is a tuple of (kind, operands, refs, kwnames): the
+        # operands at the indices in refs are the indices of earlier
+        # operations, whose results are substituted; the last len(kwnames)
+        # operands of a call are keyword arguments.
+        results = []
+        for (kind, operands, refs, kwnames) in operations:
+            operands = list(operands)
+            for i in refs:
+                operands[i] = results[operands[i]]
+            if kind == "evaluate":
+                result = eval(operands[0])
+            elif kind == "getattr":
+                result = getattr(operands[0], operands[1])
+            elif kind == "getitem":
+                result = operands[0][operands[1]]
+            elif kind == "call":
+                nargs = len(operands) - len(kwnames)
+                kwargs = dict(zip(kwnames, operands[nargs:]))
+                result = operands[0](*operands[1:nargs], **kwargs)
+            else:
+                raise ValueError, "Invalid operation: %r" % kind
+            results.append(result)
+        return tuple(results)
+
+
     def __handle_setattr(self, type, args):
         (object, name, value) = args
         return setattr(object, name, value)
@@ -21,7 +21,7 @@
 # FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
 # OTHER DEALINGS IN THE SOFTWARE.
 
-import os, struct, thread
+import os, struct, thread, zlib
 import marshal
 import pushy.util
 
@@ -66,6 +66,10 @@ class Message:
     PACKING_FORMAT = ">BqqI"
     PACKING_SIZE   = struct.calcsize(PACKING_FORMAT)
 
+    # Set in the type byte of a message whose payload is compressed with
+    # zlib. Message type codes are all less than this.
+    COMPRESSED = 0x80
+
     def __init__(self, type, payload, target=0, source=None):
         self.type     = type
         self.payload  = payload
@@ -86,18 +90,32 @@ class Message:
                    (self.type, self.source, self.target, self.payload,
                     len(self.payload))
 
-    def pack(self):
-        return struct.pack(self.PACKING_FORMAT, int(self.type),
-                           self.source, self.target,
-                           len(self.payload)) + self.payload
+    def pack(self, compress_threshold=None):
+        """
+        Pack the message, compressing its payload if it is at least
+        compress_threshold bytes long and compressing makes it smaller.
+        """
+        type, payload = int(self.type), self.payload
+        if compress_threshold is not None and \
+           len(payload) >= compress_threshold:
+            compressed = zlib.compress(payload)
+            if len(compressed) < len(payload):
+                type, payload = type | self.COMPRESSED, compressed
+        return struct.pack(self.PACKING_FORMAT, type, self.source,
+                           self.target, len(payload)) + payload
 
     @staticmethod
     def unpack(file):
         header = read(file, Message.PACKING_SIZE)
         (type, source, target, length) = \
             struct.unpack(Message.PACKING_FORMAT, header)
-        type = message_types[type]
         payload = read(file, length)
+        if type & Message.COMPRESSED:
+            try:
+                payload = zlib.decompress(payload)
+            except zlib.error, e:
+                raise IOError, "Invalid compressed payload: %s" % e
+        type = message_types[type & ~Message.COMPRESSED]
         return Message(type, payload, target, source)
 
 
@@ -116,7 +134,7 @@ message_names = (
   "delete",
   "as_tuple",
 
-  # All object ops go at the end
+  # Object ops
   "op__call__",
   "op__lt__",
   "op__le__",
@@ -196,6 +214,12 @@ message_names = (
   "op__coerce__",
   "op__enter__",
   "op__exit__",
+
+  # Types added since the operators were defined go last, so that existing
+  # codes are unchanged for older peers.
+  "getpath",
+  "compound",
+  "compression",
 )
 message_types = []
 for i,t in enumerate(message_names):
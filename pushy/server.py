@@ -26,12 +26,16 @@ This module provides functions for starting a Pushy server within an existing
 Python process.
 """
 
-import asyncore, os, socket, sys, threading
+import asyncore, errno, os, socket, stat, sys, threading
 
-__all__ = ["DEFAULT_PORT", "serve_forever", "run"]
+__all__ = ["DEFAULT_PORT", "DEFAULT_SOCKET_MODE", "serve_forever", "run"]
 
 DEFAULT_PORT = 10101
 
+# Unix domain sockets are only accessible to their owner by default, since
+# any client may evaluate arbitrary code.
+DEFAULT_SOCKET_MODE = 0600
+
 def serve_forever(stdin, stdout):
     """
     Start a Pushy server-side connection for a single client, and processes
@@ -107,18 +111,50 @@ def serve_stdio_forever(stdin=sys.stdin, stdout=sys.stdout):
         stdin.close()
 
 
+def remove_stale_socket(path):
+    """
+    Remove a Unix domain socket left behind by a server that is no longer
+    running. Raises socket.error if a server is still listening on it.
+    """
+
+    if not os.path.exists(path) or not stat.S_ISSOCK(os.stat(path).st_mode):
+        return
+    sock = socket.socket(socket.AF_UNIX, socket.SOCK_STREAM)
+    try:
+        try:
+            sock.connect(path)
+        except socket.error, e:
+            if e.args[0] != errno.ECONNREFUSED:
+                raise
+            os.unlink(path)
+        else:
+            raise socket.error(errno.EADDRINUSE,
+                               "A server is listening on %s" % path)
+    finally:
+        sock.close()
+
+
 class pushy_server(asyncore.dispatcher):
-    def __init__(self, port):
+    def __init__(self, port=None, path=None, mode=DEFAULT_SOCKET_MODE):
         asyncore.dispatcher.__init__(self)
-        self.create_socket(socket.AF_INET, socket.SOCK_STREAM)
-        self.set_reuse_addr()
-        self.bind(("", port))
+        if path is not None:
+            remove_stale_socket(path)
+            self.create_socket(socket.AF_UNIX, socket.SOCK_STREAM)
+            self.bind(path)
+            # Connections are refused until listen is called, so nobody can
+            # connect before the permissions are restricted.
+            os.chmod(path, mode)
+        else:
+            self.create_socket(socket.AF_INET, socket.SOCK_STREAM)
+            self.set_reuse_addr()
+            self.bind(("", port))
         self.listen(3)
 
     def handle_accept(self):
         (sock,addr) = self.accept()
         sock.setblocking(1)
-        sock.setsockopt(socket.IPPROTO_TCP, socket.TCP_NODELAY, 1)
+        if self.family_and_type[0] == socket.AF_INET:
+            sock.setsockopt(socket.IPPROTO_TCP, socket.TCP_NODELAY, 1)
         stdin = sock.makefile("rb")
         stdout = sock.makefile("wb")
         threading.Thread(target=serve_forever, args=(stdin,stdout)).start()
@@ -127,16 +163,26 @@ class pushy_server(asyncore.dispatcher):
         self.close()
 
 
-def run(port = DEFAULT_PORT):
+def run(port = DEFAULT_PORT, mode = DEFAULT_SOCKET_MODE):
     """
     Start a socket server, which creates Pushy connections as client
     connections come in.
 
-    @param port: The port number to listen on, or "stdio" to use standard I/O.
+    @param port: The port number to listen on, "stdio" to use standard I/O,
+                 or "unix:<path>" to listen on a Unix domain socket, for
+                 clients on the same host.
+    @param mode: The permissions of a Unix domain socket, as an integer or
+                 an octal string. Defaults to 0600 (owner only).
     """
 
     if port == "stdio":
         serve_forever(sys.stdin, sys.stdout)
+    elif str(port).startswith("unix:"):
+        if isinstance(mode, basestring):
+            mode = int(mode, 8)
+        server = pushy_server(path=port[5:], mode=mode)
+        while True:
+            asyncore.loop()
     else:
         server = pushy_server(int(port))
         while True:
@@ -0,0 +1,87 @@
+# Copyright (c) 2013 Andrew Wilkins <axwalk@gmail.com>
+# 
+# Permission is hereby granted, free of charge, to any person
+# obtaining a copy of this software and associated documentation
+# files (the "Software"), to deal in the Software without
+# restriction, including without limitation the rights to use,
+# copy, modify, merge, publish, distribute, sublicense, and/or sell
+# copies of the Software, and to permit persons to whom the
+# Software is furnished to do so, subject to the following
+# conditions:
+# 
+# The above copyright notice and this permission notice shall be
+# included in all copies or substantial portions of the Software.
+# 
+# THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+# EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+# OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+# NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+# HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+# WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+# FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+
+import marshal, os, shutil, sys, tempfile
+
+thisdir = os.path.dirname(__file__)
+sys.path.append(os.path.join(thisdir, ".."))
+
+import pushy.client
+import unittest
+
+class TestPayloadCache(unittest.TestCase):
+    def setUp(self):
+        self.tmpdir = tempfile.mkdtemp()
+        self.cache_dir = os.path.join(self.tmpdir, "cache")
+        self.old_cache_dir = os.environ.get("PUSHY_CACHE_DIR")
+        os.environ["PUSHY_CACHE_DIR"] = self.cache_dir
+
+    def tearDown(self):
+        if self.old_cache_dir is None:
+            del os.environ["PUSHY_CACHE_DIR"]
+        else:
+            os.environ["PUSHY_CACHE_DIR"] = self.old_cache_dir
+        shutil.rmtree(self.tmpdir)
+
+    def store(self, digest):
+        pushy.client.store_cached_payload(
+            digest, ({}, {"module": marshal.dumps("x = 1")}))
+        return pushy.client.get_cache_path(digest)
+
+    def test_store_and_load(self):
+        path = self.store("abc")
+        self.assertEquals(0700, os.stat(self.cache_dir).st_mode & 0777)
+        self.assertEquals(0600, os.stat(path).st_mode & 0777)
+        (packages, modules) = pushy.client.load_cached_payload("abc")
+        self.assertEquals({}, packages)
+        namespace = {}
+        exec marshal.loads(modules["module"]) in namespace
+        self.assertEquals(1, namespace["x"])
+        self.assertEquals(None, pushy.client.load_cached_payload("def"))
+
+    def test_corrupt(self):
+        path = self.store("abc")
+        f = open(path, "r+b")
+        try:
+            f.seek(-1, 2)
+            f.write("\0")
+        finally:
+            f.close()
+        self.assertEquals(None, pushy.client.load_cached_payload("abc"))
+
+    def test_writable_by_others(self):
+        path = self.store("abc")
+        os.chmod(path, 0666)
+        self.assertEquals(None, pushy.client.load_cached_payload("abc"))
+        os.chmod(path, 0600)
+        os.chmod(self.cache_dir, 0777)
+        self.assertEquals(None, pushy.client.load_cached_payload("abc"))
+        self.store("def")
+        path = pushy.client.get_cache_path("def")
+        self.assertFalse(os.path.exists(path))
+
+# Payloads are only cached where file ownership can be checked.
+if not hasattr(os, "getuid"):
+    del TestPayloadCache
+
+if __name__ == "__main__":
+    unittest.main()